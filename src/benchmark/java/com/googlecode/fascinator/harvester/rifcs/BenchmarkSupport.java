@@ -0,0 +1,76 @@
+package com.googlecode.fascinator.harvester.rifcs;
+
+import java.io.File;
+
+import com.googlecode.fascinator.api.PluginManager;
+import com.googlecode.fascinator.api.harvester.Harvester;
+import com.googlecode.fascinator.api.storage.Storage;
+
+/**
+ * Shared set up for the benchmarks.
+ */
+public class BenchmarkSupport {
+
+	/** The field mapping used for the generated datasets */
+	public static final String FIELDS_MAPPING = "{"
+			+ "\"identifier.local\": \"ID\","
+			+ "\"identifier.uri\": \"URI\","
+			+ "\"name.primary\": \"Title\","
+			+ "\"name.primary.title\": \"Honorific\","
+			+ "\"name.primary.given\": \"Given_Name\","
+			+ "\"name.primary.family\": \"Family_Name\","
+			+ "\"location.address.electronic.email\": \"Email\","
+			+ "\"location.address.physical.telephoneNumber\": \"Phone\","
+			+ "\"subject.anzsrc-for\": \"ANZSRC_FOR\","
+			+ "\"description.full\": \"Description\","
+			+ "\"relatedObject.isMemberOf\": \"GroupID_1\","
+			+ "\"relatedInfo.website.Homepage\": \"Homepage\","
+			+ "\"existenceDates.startDate\": \"Start_Year\","
+			+ "\"existenceDates.endDate\": \"End_Year\"" + "}";
+
+	private BenchmarkSupport() {
+	}
+
+	/**
+	 * @return the directory the generated datasets are kept in, from the
+	 *         "benchmark.data.dir" system property (defaults to
+	 *         "target/benchmark-data")
+	 */
+	public static File dataDirectory() {
+		return new File(System.getProperty("benchmark.data.dir",
+				"target/benchmark-data"));
+	}
+
+	/**
+	 * @return a new, empty in-memory storage
+	 * @throws Exception if the storage plugin is not available
+	 */
+	public static Storage ramStorage() throws Exception {
+		Storage ram = PluginManager.getStorage("ram");
+		ram.init("{}");
+		return ram;
+	}
+
+	/**
+	 * Create and initialise a harvester for a file.
+	 * 
+	 * @param storage the storage to harvest into
+	 * @param file the RIF-CS file
+	 * @param options extra harvester options as JSON members, e.g.
+	 *            "\"streaming\": true", or an empty string
+	 * @return the harvester
+	 * @throws Exception if the harvester could not be initialised
+	 */
+	public static RIFCSHarvester harvester(Storage storage, File file,
+			String options) throws Exception {
+		String config = "{\"harvester\": {\"type\": \"xml\", \"xml\": {"
+				+ "\"fileLocation\": \""
+				+ file.getAbsolutePath().replace("\\", "\\\\") + "\","
+				+ "\"recordIDPrefix\": \"bench/\","
+				+ (options.length() > 0 ? options + "," : "")
+				+ "\"filedsMapping\": " + FIELDS_MAPPING + "}}}";
+		Harvester harvester = PluginManager.getHarvester("xml", storage);
+		harvester.init(config);
+		return (RIFCSHarvester) harvester;
+	}
+}
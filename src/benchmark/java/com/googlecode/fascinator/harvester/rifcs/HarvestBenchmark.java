@@ -0,0 +1,74 @@
+package com.googlecode.fascinator.harvester.rifcs;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.googlecode.fascinator.api.storage.Storage;
+
+/**
+ * A complete harvest of a generated file into a fresh in-memory storage, in
+ * the default (DOM) and streaming modes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx4g" })
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+public class HarvestBenchmark {
+
+	@Param({ "10000", "100000", "1000000" })
+	public int records;
+
+	@Param({ "false", "true" })
+	public boolean streaming;
+
+	private File file;
+
+	private Storage storage;
+
+	private RIFCSHarvester harvester;
+
+	@Setup
+	public void generate() throws Exception {
+		file = RIFCSDatasetGenerator.generate(
+				BenchmarkSupport.dataDirectory(),
+				RIFCSDatasetGenerator.MIXED, records);
+	}
+
+	@Setup(Level.Iteration)
+	public void setUp() throws Exception {
+		storage = BenchmarkSupport.ramStorage();
+		harvester = BenchmarkSupport.harvester(storage, file,
+				"\"streaming\": " + streaming);
+	}
+
+	@TearDown(Level.Iteration)
+	public void tearDown() throws Exception {
+		harvester.shutdown();
+		storage.shutdown();
+	}
+
+	@Benchmark
+	public int harvest() throws Exception {
+		int count = 0;
+		while (harvester.hasMoreObjects()) {
+			count += harvester.getObjectIdList().size();
+		}
+		return count;
+	}
+}
@@ -0,0 +1,83 @@
+package com.googlecode.fascinator.harvester.rifcs;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.googlecode.fascinator.api.storage.Storage;
+
+/**
+ * Mapping a single registry object to its JSON data and metadata, for each
+ * RIF-CS class.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class MappingBenchmark {
+
+	private static final int RECORDS = 1000;
+
+	@Param({ "activity", "collection", "party", "service" })
+	public String rifcsClass;
+
+	private Storage storage;
+
+	private RIFCSHarvester harvester;
+
+	private List<HarvestRecord> records;
+
+	private int next;
+
+	@Setup
+	public void setUp() throws Exception {
+		File file = RIFCSDatasetGenerator.generate(
+				BenchmarkSupport.dataDirectory(), rifcsClass, RECORDS);
+		storage = BenchmarkSupport.ramStorage();
+		harvester = BenchmarkSupport.harvester(storage, file, "");
+		records = new ArrayList<HarvestRecord>(RECORDS);
+		RegistryObjectSource source = new StreamingRegistryObjectSource(
+				new FileInputStream(file), file.getName());
+		try {
+			HarvestRecord record;
+			while ((record = source.next()) != null) {
+				records.add(record);
+			}
+		} finally {
+			source.close();
+		}
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		harvester.shutdown();
+		storage.shutdown();
+	}
+
+	@Benchmark
+	public HarvestRecord parseRegistryObject() throws Exception {
+		HarvestRecord parsed = records.get(next);
+		next = (next + 1) % records.size();
+		HarvestRecord record = new HarvestRecord(parsed.getFileName(),
+				parsed.getOrdinal(), parsed.getRegistryObject());
+		harvester.parseRegistryObject(record);
+		return record;
+	}
+}
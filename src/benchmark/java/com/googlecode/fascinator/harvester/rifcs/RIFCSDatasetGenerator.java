@@ -0,0 +1,175 @@
+package com.googlecode.fascinator.harvester.rifcs;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Generates RIF-CS files of any size for the benchmarks.
+ * <p>
+ * Every record has identifiers, a primary name, an address, subjects, a
+ * description of a few hundred characters, a related object and related
+ * info, plus existence dates (activities, parties and services) or coverage
+ * (collections), so all of the mapping code is exercised. The content only
+ * depends on the class and the record number, so the same file is generated
+ * on every machine.
+ * <p>
+ * Usage: <code>RIFCSDatasetGenerator &lt;directory&gt; [records...]</code>,
+ * which writes mixed-class files of 10k, 100k and 1M records by default.
+ */
+public class RIFCSDatasetGenerator {
+
+	/** The four RIF-CS classes */
+	public static final String[] CLASSES = { "activity", "collection",
+			"party", "service" };
+
+	/** Generates records of all four classes in turn */
+	public static final String MIXED = "mixed";
+
+	private static final String DESCRIPTION = "The research group studies"
+			+ " the long term effects of environmental change on coastal"
+			+ " ecosystems, working with state agencies and industry partners"
+			+ " to collect, curate and publish observational data. Its members"
+			+ " supervise postgraduate students across biology, geography and"
+			+ " statistics, and maintain several national data collections"
+			+ " that are used by researchers in Australia and overseas.";
+
+	private static final String[] FOR_CODES = { "0602", "0801", "0804",
+			"0502", "1608", "0406", "0104" };
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1) {
+			System.err.println("Usage: RIFCSDatasetGenerator <directory>"
+					+ " [records...]");
+			System.exit(1);
+		}
+		File directory = new File(args[0]);
+		String[] sizes = { "10000", "100000", "1000000" };
+		if (args.length > 1) {
+			sizes = new String[args.length - 1];
+			System.arraycopy(args, 1, sizes, 0, sizes.length);
+		}
+		for (String size : sizes) {
+			File file = generate(directory, MIXED, Integer.parseInt(size));
+			System.out.println(file + ": " + file.length() + " bytes");
+		}
+	}
+
+	/**
+	 * Generate a RIF-CS file, unless it has already been generated.
+	 * 
+	 * @param directory the directory to write to
+	 * @param rifcsClass one of {@link #CLASSES}, or {@link #MIXED}
+	 * @param records the number of registry objects
+	 * @return the file
+	 * @throws IOException if the file could not be written
+	 */
+	public static File generate(File directory, String rifcsClass,
+			int records) throws IOException {
+		File file = new File(directory, rifcsClass + "-" + records + ".xml");
+		if (file.exists()) {
+			return file;
+		}
+		FileUtils.forceMkdir(directory);
+		File partial = new File(directory, file.getName() + ".part");
+		Writer out = new BufferedWriter(new OutputStreamWriter(
+				new FileOutputStream(partial), "UTF-8"), 64 * 1024);
+		try {
+			out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+			out.write("<registryObjects xmlns=\""
+					+ StreamingRegistryObjectSource.RIFCS_NS + "\">\n");
+			for (int i = 1; i <= records; i++) {
+				String recordClass = MIXED.equals(rifcsClass) ? CLASSES[i
+						% CLASSES.length] : rifcsClass;
+				writeRegistryObject(out, recordClass, i);
+			}
+			out.write("</registryObjects>\n");
+		} finally {
+			out.close();
+		}
+		if (!partial.renameTo(file)) {
+			throw new IOException("Could not rename " + partial + " to "
+					+ file);
+		}
+		return file;
+	}
+
+	private static void writeRegistryObject(Writer out, String rifcsClass,
+			int i) throws IOException {
+		out.write("  <registryObject group=\"Benchmark University\">\n");
+		out.write("    <key>bench/" + rifcsClass + "/" + i + "</key>\n");
+		out.write("    <originatingSource>benchmark</originatingSource>\n");
+		out.write("    <" + rifcsClass + " type=\"" + type(rifcsClass)
+				+ "\">\n");
+		out.write("      <identifier type=\"local\">" + rifcsClass + i
+				+ "</identifier>\n");
+		out.write("      <identifier type=\"uri\">http://example.edu.au/"
+				+ rifcsClass + "/" + i + "</identifier>\n");
+		out.write("      <name type=\"primary\">\n");
+		if ("party".equals(rifcsClass)) {
+			out.write("        <namePart type=\"title\">Dr</namePart>\n");
+			out.write("        <namePart type=\"given\">Given" + i
+					+ "</namePart>\n");
+			out.write("        <namePart type=\"family\">Family" + (i % 997)
+					+ "</namePart>\n");
+		} else {
+			out.write("        <namePart>Benchmark " + rifcsClass + " " + i
+					+ "</namePart>\n");
+		}
+		out.write("      </name>\n");
+		out.write("      <location>\n        <address>\n");
+		out.write("          <electronic type=\"email\"><value>" + rifcsClass
+				+ i + "@example.edu.au</value></electronic>\n");
+		out.write("          <physical><addressPart type=\"telephoneNumber\">"
+				+ "+61 2 9850 " + (1000 + i % 9000)
+				+ "</addressPart></physical>\n");
+		out.write("        </address>\n      </location>\n");
+		for (int s = 0; s < 3; s++) {
+			out.write("      <subject type=\"anzsrc-for\">"
+					+ FOR_CODES[(i + s) % FOR_CODES.length] + "</subject>\n");
+		}
+		out.write("      <description type=\"full\">" + DESCRIPTION
+				+ "</description>\n");
+		out.write("      <relatedObject>\n        <key>bench/group/"
+				+ (i % 50) + "</key>\n"
+				+ "        <relation type=\"isMemberOf\"/>\n"
+				+ "      </relatedObject>\n");
+		out.write("      <relatedInfo type=\"website\">\n"
+				+ "        <identifier type=\"uri\">http://example.edu.au/home/"
+				+ i + "</identifier>\n"
+				+ "        <title>Homepage</title>\n      </relatedInfo>\n");
+		if ("collection".equals(rifcsClass)) {
+			out.write("      <coverage><temporal><date type=\"dateFrom\""
+					+ " dateFormat=\"W3CDTF\">2001-01-01</date></temporal>"
+					+ "</coverage>\n");
+		} else {
+			out.write("      <existenceDates>\n"
+					+ "        <startDate dateFormat=\"W3CDTF\">"
+					+ (1990 + i % 20) + "-01-01</startDate>\n"
+					+ "        <endDate dateFormat=\"W3CDTF\">"
+					+ (2010 + i % 10)
+					+ "-12-31T00:00:00Z</endDate>\n"
+					+ "      </existenceDates>\n");
+		}
+		out.write("    </" + rifcsClass + ">\n");
+		out.write("  </registryObject>\n");
+	}
+
+	private static String type(String rifcsClass) {
+		if ("activity".equals(rifcsClass)) {
+			return "project";
+		}
+		if ("collection".equals(rifcsClass)) {
+			return "dataset";
+		}
+		if ("party".equals(rifcsClass)) {
+			return "person";
+		}
+		return "report";
+	}
+}
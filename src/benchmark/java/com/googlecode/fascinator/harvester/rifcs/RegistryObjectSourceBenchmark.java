@@ -0,0 +1,81 @@
+package com.googlecode.fascinator.harvester.rifcs;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Reading every registry object of a file, comparing the full DOM load with
+ * the streaming reader. Run with a large heap (and compare the GC profiler
+ * output) to see the memory difference as well.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx4g" })
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+public class RegistryObjectSourceBenchmark {
+
+	@Param({ "10000", "100000", "1000000" })
+	public int records;
+
+	private File file;
+
+	@Setup
+	public void generate() throws Exception {
+		file = RIFCSDatasetGenerator.generate(
+				BenchmarkSupport.dataDirectory(),
+				RIFCSDatasetGenerator.MIXED, records);
+	}
+
+	@Benchmark
+	public int documentLoad(Blackhole blackhole) throws Exception {
+		InputStream in = open();
+		return consume(new DocumentRegistryObjectSource(in, file.getName()),
+				blackhole);
+	}
+
+	@Benchmark
+	public int streamingRead(Blackhole blackhole) throws Exception {
+		InputStream in = open();
+		return consume(
+				new StreamingRegistryObjectSource(in, file.getName()),
+				blackhole);
+	}
+
+	private InputStream open() throws Exception {
+		return new BufferedInputStream(new FileInputStream(file),
+				InputFormat.BUFFER_SIZE);
+	}
+
+	private int consume(RegistryObjectSource source, Blackhole blackhole)
+			throws Exception {
+		int count = 0;
+		try {
+			HarvestRecord record;
+			while ((record = source.next()) != null) {
+				blackhole.consume(record);
+				count++;
+			}
+		} finally {
+			source.close();
+		}
+		return count;
+	}
+}
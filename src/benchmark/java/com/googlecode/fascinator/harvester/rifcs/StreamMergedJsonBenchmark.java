@@ -0,0 +1,85 @@
+package com.googlecode.fascinator.harvester.rifcs;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.IOUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.googlecode.fascinator.api.storage.Storage;
+import com.googlecode.fascinator.common.JsonObject;
+import com.googlecode.fascinator.common.JsonSimple;
+
+/**
+ * Serialising the mapped JSON of one record, either into a new payload or
+ * merged into the payload of an earlier harvest. The merge case includes
+ * parsing the existing payload, as the harvester does.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class StreamMergedJsonBenchmark {
+
+	@Param({ "false", "true" })
+	public boolean merge;
+
+	private Storage storage;
+
+	private RIFCSHarvester harvester;
+
+	private JsonObject data;
+
+	private JsonObject metadata;
+
+	private String existing;
+
+	@Setup
+	public void setUp() throws Exception {
+		File file = RIFCSDatasetGenerator.generate(
+				BenchmarkSupport.dataDirectory(), "party", 1);
+		storage = BenchmarkSupport.ramStorage();
+		harvester = BenchmarkSupport.harvester(storage, file, "");
+		RegistryObjectSource source = new StreamingRegistryObjectSource(
+				new FileInputStream(file), file.getName());
+		HarvestRecord record;
+		try {
+			record = source.next();
+		} finally {
+			source.close();
+		}
+		harvester.parseRegistryObject(record);
+		data = record.getData();
+		metadata = record.getMetadata();
+		existing = IOUtils.toString(harvester.streamMergedJson(data,
+				metadata, new JsonSimple()), "UTF-8");
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		harvester.shutdown();
+		storage.shutdown();
+	}
+
+	@Benchmark
+	public byte[] streamMergedJson() throws Exception {
+		JsonSimple json = merge ? new JsonSimple(existing) : new JsonSimple();
+		InputStream in = harvester.streamMergedJson(data, metadata, json);
+		return IOUtils.toByteArray(in);
+	}
+}
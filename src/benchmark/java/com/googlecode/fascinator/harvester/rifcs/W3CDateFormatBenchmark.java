@@ -0,0 +1,43 @@
+package com.googlecode.fascinator.harvester.rifcs;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing existence dates in each of the W3C date formats, with a new
+ * {@link W3CDateFormat} per date (as the harvester used to) and with
+ * {@link W3CDate}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class W3CDateFormatBenchmark {
+
+	@Param({ "1997", "1997-07", "1997-07-16", "1997-07-16T19:20+01:00",
+			"1997-07-16T19:20:30+01:00", "1997-07-16T19:20:30.45+01:00" })
+	public String date;
+
+	@Benchmark
+	public Date parse() throws Exception {
+		return new W3CDateFormat().parse(date);
+	}
+
+	@Benchmark
+	public W3CDate w3cDateParse() {
+		return W3CDate.parse(date);
+	}
+}
@@ -0,0 +1,157 @@
+package com.googlecode.fascinator.harvester.rifcs;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import org.apache.commons.io.IOUtils;
+import org.w3c.dom.Element;
+
+import com.googlecode.fascinator.api.harvester.HarvesterException;
+import com.googlecode.fascinator.common.JsonObject;
+
+/**
+ * Receives the records which could not be mapped or stored, writing each one
+ * to a file as a line of JSON with the error and the registry object's xml:
+ *
+ * <pre>
+ * {"file":"parties.xml","ordinal":2,"key":"1002","oid":null,"error":"...","xml":"&lt;registryObject ..."}
+ * </pre>
+ *
+ * The object ID is null if the record failed before it was known. In
+ * streaming mode the xml holds only the sections which were read.
+ * <p>
+ * Records may be written from any thread; lines are written whole.
+ */
+public class DeadLetterSink {
+
+	private final File file;
+
+	private OutputStream out;
+
+	private long records;
+
+	/**
+	 * @param file the file to write, replaced if it exists
+	 * @throws HarvesterException if the file could not be created
+	 */
+	public DeadLetterSink(File file) throws HarvesterException {
+		this.file = file;
+		try {
+			File parent = file.getAbsoluteFile().getParentFile();
+			if (!parent.isDirectory() && !parent.mkdirs()) {
+				throw new IOException("Could not create " + parent);
+			}
+			out = new BufferedOutputStream(new FileOutputStream(file));
+		} catch (IOException e) {
+			throw new HarvesterException("Error creating dead letter file '"
+					+ file + "'", e);
+		}
+	}
+
+	/**
+	 * @param record a record which failed
+	 * @param error the reason it failed
+	 * @throws HarvesterException if the line could not be written
+	 */
+	public void write(HarvestRecord record, Throwable error)
+			throws HarvesterException {
+		JsonObject line = new JsonObject();
+		line.put("file", record.getFileName());
+		line.put("ordinal", record.getOrdinal());
+		line.put("key", record.getKey());
+		line.put("oid", record.getOid());
+		line.put("error", describe(error));
+		Element element = record.getElement();
+		line.put("xml", element == null ? null : toXml(element));
+		synchronized (this) {
+			if (out == null) {
+				throw new HarvesterException("Dead letter file '" + file
+						+ "' is closed");
+			}
+			try {
+				IOUtils.copy(new JsonPayloadStream(line), out);
+				out.write('\n');
+				// Kept on disk as it goes, for a harvest which dies later
+				out.flush();
+			} catch (IOException e) {
+				throw new HarvesterException("Error writing dead letter file '"
+						+ file + "'", e);
+			}
+			records++;
+		}
+	}
+
+	/**
+	 * @return the error and its causes, one per line
+	 */
+	private static String describe(Throwable error) {
+		StringBuilder text = new StringBuilder(error.toString());
+		for (Throwable cause = error.getCause(); cause != null; cause = cause
+				.getCause()) {
+			text.append("\nCaused by: ").append(cause);
+		}
+		return text.toString();
+	}
+
+	/**
+	 * @return the element serialised, or a note if it could not be
+	 */
+	private static String toXml(Element element) {
+		try {
+			Transformer transformer = TransformerFactory.newInstance()
+					.newTransformer();
+			transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION,
+					"yes");
+			StringWriter xml = new StringWriter();
+			transformer.transform(new DOMSource(element), new StreamResult(
+					xml));
+			return xml.toString();
+		} catch (TransformerException e) {
+			return "Could not serialise the registry object: " + e;
+		}
+	}
+
+	/**
+	 * @return the file written
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * @return the number of records written
+	 */
+	public synchronized long getRecords() {
+		return records;
+	}
+
+	/**
+	 * Close the file.
+	 *
+	 * @throws HarvesterException if the last lines could not be written
+	 */
+	public synchronized void close() throws HarvesterException {
+		if (out == null) {
+			return;
+		}
+		try {
+			out.close();
+		} catch (IOException e) {
+			throw new HarvesterException("Error writing dead letter file '"
+					+ file + "'", e);
+		} finally {
+			out = null;
+		}
+	}
+}
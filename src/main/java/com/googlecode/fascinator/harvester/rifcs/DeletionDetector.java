@@ -0,0 +1,273 @@
+package com.googlecode.fascinator.harvester.rifcs;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.googlecode.fascinator.api.harvester.HarvesterException;
+
+/**
+ * Finds the objects of earlier harvests whose registry objects have gone from
+ * their source file, using an {@link OidManifest} per source file name.
+ * <p>
+ * Only the source files seen by a harvest are compared, so a file which is
+ * missing altogether (or was not selected this time) does not lose its
+ * objects. Nor does a file some of whose records could not be harvested, as
+ * their objects can not be told apart from vanished ones.
+ * <p>
+ * Vanished objects stay in the manifests until they are deleted: when they
+ * are only reported, they are kept in the new manifests, and when they are
+ * to be deleted, the new manifests replace the old ones only once every
+ * vanished object has been handed out and the caller asks for more. The
+ * vanished object IDs are spooled to a temporary file and read back a batch
+ * at a time.
+ * <p>
+ * This class is not thread-safe.
+ */
+public class DeletionDetector {
+
+	private final Logger log = LoggerFactory.getLogger(DeletionDetector.class);
+
+	private final File directory;
+
+	private final int maxInMemory;
+
+	private final Map<String, OidManifest> manifests = new LinkedHashMap<String, OidManifest>();
+
+	private final Set<String> incomplete = new HashSet<String>();
+
+	private File vanishedFile;
+
+	private DataInputStream vanished;
+
+	private long remaining;
+
+	/** Whether new manifests are written and waiting to be installed */
+	private boolean finished;
+
+	/**
+	 * @param directory the directory holding the manifests
+	 * @param maxInMemory the number of object IDs of each source file kept in
+	 *            memory before they are spilled to disk
+	 */
+	public DeletionDetector(File directory, int maxInMemory) {
+		this.directory = directory;
+		this.maxInMemory = maxInMemory;
+	}
+
+	/**
+	 * Note an object harvested from a source file.
+	 *
+	 * @param fileName the name used to generate object IDs for the file
+	 * @param oid the object ID
+	 * @throws HarvesterException if the manifest could not spill to disk
+	 */
+	public void add(String fileName, String oid) throws HarvesterException {
+		OidManifest manifest = getManifest(fileName);
+		try {
+			manifest.add(oid);
+		} catch (IOException e) {
+			throw new HarvesterException("Error writing manifest '"
+					+ manifest.getFile() + "'", e);
+		}
+	}
+
+	/**
+	 * Note a record of a source file which could not be harvested. None of
+	 * the objects in the file's manifest are reported as vanished by this
+	 * harvest; they are kept in the manifest until a complete harvest of the
+	 * file.
+	 *
+	 * @param fileName the name used to generate object IDs for the file
+	 */
+	public void incomplete(String fileName) {
+		getManifest(fileName);
+		incomplete.add(fileName);
+	}
+
+	private OidManifest getManifest(String fileName) {
+		OidManifest manifest = manifests.get(fileName);
+		if (manifest == null) {
+			manifest = new OidManifest(new File(directory,
+					manifestName(fileName)), maxInMemory);
+			manifests.put(fileName, manifest);
+		}
+		return manifest;
+	}
+
+	private static String manifestName(String fileName) {
+		try {
+			return URLEncoder.encode(fileName, "UTF-8") + ".oids";
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Compare every manifest with the objects of this harvest. Call once the
+	 * harvest is complete.
+	 * <p>
+	 * When the vanished objects are to be deleted, they are read with
+	 * {@link #next(int)}, and the manifests are replaced once
+	 * {@link #hasMore()} finds none are left. Otherwise the manifests are
+	 * replaced now, keeping the vanished objects in them.
+	 *
+	 * @param delete true if the vanished objects are to be deleted
+	 * @return the number of vanished objects
+	 * @throws HarvesterException if a manifest could not be read or written
+	 */
+	public long finish(boolean delete) throws HarvesterException {
+		DataOutputStream out = null;
+		long count = 0;
+		try {
+			if (!directory.isDirectory() && !directory.mkdirs()) {
+				throw new IOException("Could not create " + directory);
+			}
+			if (delete) {
+				vanishedFile = File.createTempFile("rifcs-vanished", ".oids",
+						directory);
+				out = new DataOutputStream(new BufferedOutputStream(
+						new FileOutputStream(vanishedFile)));
+			}
+			for (Map.Entry<String, OidManifest> entry : manifests.entrySet()) {
+				if (incomplete.contains(entry.getKey())) {
+					entry.getValue().merge(null, true);
+					log.info("Some records of '{}' could not be harvested,"
+							+ " so none of its objects are reported as vanished",
+							entry.getKey());
+					continue;
+				}
+				long vanishedCount = entry.getValue().merge(out, !delete);
+				if (vanishedCount > 0) {
+					log.info("{} objects are no longer in '{}'",
+							vanishedCount, entry.getKey());
+				}
+				count += vanishedCount;
+			}
+			if (out != null) {
+				out.close();
+				out = null;
+				vanished = new DataInputStream(new BufferedInputStream(
+						new FileInputStream(vanishedFile)));
+				remaining = count;
+			}
+		} catch (IOException e) {
+			close();
+			throw new HarvesterException("Error updating manifests in '"
+					+ directory + "'", e);
+		} finally {
+			IOUtils.closeQuietly(out);
+		}
+		incomplete.clear();
+		finished = true;
+		if (remaining == 0) {
+			install();
+		}
+		return count;
+	}
+
+	/**
+	 * Replace the manifests with those written by {@link #finish(boolean)}.
+	 *
+	 * @throws HarvesterException if a manifest could not be replaced
+	 */
+	private void install() throws HarvesterException {
+		try {
+			for (OidManifest manifest : manifests.values()) {
+				manifest.install();
+			}
+		} catch (IOException e) {
+			close();
+			throw new HarvesterException("Error updating manifests in '"
+					+ directory + "'", e);
+		}
+		manifests.clear();
+		finished = false;
+		closeVanished();
+	}
+
+	/**
+	 * Once every vanished object has been read, and so dealt with by the
+	 * caller, the manifests are replaced.
+	 *
+	 * @return true if there are vanished objects left to read
+	 */
+	public boolean hasMore() {
+		if (remaining > 0) {
+			return true;
+		}
+		if (finished) {
+			try {
+				install();
+			} catch (HarvesterException e) {
+				// The objects are reported again by the next harvest
+				log.warn("Could not update the manifests", e);
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Read the next vanished objects.
+	 *
+	 * @param max the most to read, 0 for all of them
+	 * @return the object IDs
+	 * @throws HarvesterException if the spooled IDs could not be read
+	 */
+	public Set<String> next(int max) throws HarvesterException {
+		Set<String> oids = new HashSet<String>();
+		try {
+			while (remaining > 0 && (max <= 0 || oids.size() < max)) {
+				oids.add(OidManifest.toHex(vanished.readLong(),
+						vanished.readLong()));
+				remaining--;
+			}
+		} catch (IOException e) {
+			close();
+			throw new HarvesterException("Error reading vanished objects", e);
+		}
+		if (remaining == 0) {
+			closeVanished();
+		}
+		return oids;
+	}
+
+	private void closeVanished() {
+		IOUtils.closeQuietly(vanished);
+		vanished = null;
+		remaining = 0;
+		if (vanishedFile != null) {
+			vanishedFile.delete();
+			vanishedFile = null;
+		}
+	}
+
+	/**
+	 * Discard everything, leaving the manifests of unfinished harvests, and of
+	 * harvests whose vanished objects were not all read, as they were.
+	 */
+	public void close() {
+		for (OidManifest manifest : manifests.values()) {
+			manifest.close();
+		}
+		manifests.clear();
+		incomplete.clear();
+		finished = false;
+		closeVanished();
+	}
+}
@@ -0,0 +1,187 @@
+package com.googlecode.fascinator.harvester.rifcs;
+
+import java.io.InputStream;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.ands.rifcs.base.RIFCSWrapper;
+import org.ands.rifcs.base.RegistryObject;
+import org.ands.rifcs.ch.RIFCSReader;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import com.googlecode.fascinator.api.harvester.HarvesterException;
+
+/**
+ * Registry object source which loads the whole RIF-CS document into a DOM
+ * before handing out its registry objects.
+ * <p>
+ * Registry objects are returned in document order and numbered by their
+ * position among the &lt;registryObject&gt; elements, as by
+ * {@link StreamingRegistryObjectSource}, so both give a record the same
+ * ordinal. The object model keeps registry objects by key, so an object
+ * whose key is repeated later in the document, and is therefore missing from
+ * it, is wrapped on its own.
+ * <p>
+ * The object model wraps the whole document at once, so one registry object
+ * it rejects would reject them all. When that happens, each registry object
+ * is wrapped on its own instead, and those which are rejected are returned as
+ * records holding the error.
+ */
+public class DocumentRegistryObjectSource implements RegistryObjectSource {
+
+	private final String fileName;
+
+	/** The parsed document, until it is wrapped by the object model */
+	private Document document;
+
+	/** The registry object elements, in document order */
+	private NodeList elements;
+
+	/**
+	 * The registry objects wrapped with the whole document, by element, or
+	 * null if the object model rejected it
+	 */
+	private Map<Node, RegistryObject> registryObjects;
+
+	private DocumentBuilder documentBuilder;
+
+	private int ordinal;
+
+	/**
+	 * Parse the whole document from the given stream.
+	 * 
+	 * @param in the RIF-CS xml
+	 * @param fileName the name of the file being read
+	 * @throws HarvesterException if the document could not be parsed
+	 */
+	public DocumentRegistryObjectSource(InputStream in, String fileName)
+			throws HarvesterException {
+		this(in, fileName, 0);
+	}
+
+	/**
+	 * Parse the whole document from the given stream, passing over its first
+	 * few registry objects.
+	 * 
+	 * @param in the RIF-CS xml
+	 * @param fileName the name of the file being read
+	 * @param skip the number of registry objects to pass over; the first
+	 *            record returned has the ordinal <code>skip + 1</code>
+	 * @throws HarvesterException if the document could not be parsed
+	 */
+	public DocumentRegistryObjectSource(InputStream in, String fileName,
+			int skip) throws HarvesterException {
+		this.fileName = fileName;
+		RIFCSReader rifcsReader = new RIFCSReader();
+		try {
+			rifcsReader.mapToDOM(in);
+			document = rifcsReader.getDocument();
+		} catch (Exception e) {
+			throw new HarvesterException(e);
+		}
+		elements = document.getElementsByTagNameNS(
+				StreamingRegistryObjectSource.RIFCS_NS, "registryObject");
+		ordinal = Math.min(skip, elements.getLength());
+	}
+
+	@Override
+	public HarvestRecord next() throws HarvesterException {
+		if (elements == null || ordinal >= elements.getLength()) {
+			return null;
+		}
+		if (document != null) {
+			wrapDocument();
+		}
+		Element element = (Element) elements.item(ordinal++);
+		RegistryObject registryObject = registryObjects == null ? null
+				: registryObjects.get(element);
+		if (registryObject != null) {
+			return new HarvestRecord(fileName, ordinal, registryObject);
+		}
+		return wrapElement(element);
+	}
+
+	/**
+	 * Wrap the whole document in the object model, keeping its registry
+	 * objects by element.
+	 */
+	private void wrapDocument() {
+		try {
+			registryObjects = new IdentityHashMap<Node, RegistryObject>();
+			for (RegistryObject registryObject : wrap(document)) {
+				registryObjects.put(registryObject.getElement(),
+						registryObject);
+			}
+		} catch (HarvesterException e) {
+			// One registry object it rejects fails them all, so wrap them
+			// one at a time to find it
+			registryObjects = null;
+		}
+		document = null;
+	}
+
+	/**
+	 * Wrap a registry object element in a document of its own.
+	 *
+	 * @param element the &lt;registryObject&gt; element
+	 * @return the record, holding the error if the object model rejects it
+	 * @throws HarvesterException if the document builder could not be
+	 *             created
+	 */
+	private HarvestRecord wrapElement(Element element)
+			throws HarvesterException {
+		if (documentBuilder == null) {
+			try {
+				documentBuilder = StreamingRegistryObjectSource
+						.createDocumentBuilder();
+			} catch (ParserConfigurationException e) {
+				throw new HarvesterException(e);
+			}
+		}
+		Document single = documentBuilder.newDocument();
+		Element root = single.createElementNS(
+				StreamingRegistryObjectSource.RIFCS_NS, element.getParentNode()
+						.getNodeName());
+		single.appendChild(root);
+		root.appendChild(single.importNode(element, true));
+		try {
+			return new HarvestRecord(fileName, ordinal, wrap(single)
+					.iterator().next());
+		} catch (HarvesterException e) {
+			return new HarvestRecord(fileName, ordinal, element, e);
+		}
+	}
+
+	/**
+	 * Wrap a document in the RIF-CS object model.
+	 * 
+	 * @param document the whole RIF-CS document, or one holding a single
+	 *            &lt;registryObject&gt;
+	 * @return the registry objects of the document
+	 * @throws HarvesterException if the object model rejects the document
+	 */
+	protected Collection<RegistryObject> wrap(Document document)
+			throws HarvesterException {
+		try {
+			return new RIFCSWrapper(document).getRIFCSObject()
+					.getRegistryObjects().values();
+		} catch (Exception e) {
+			throw new HarvesterException(e);
+		}
+	}
+
+	@Override
+	public void close() {
+		document = null;
+		registryObjects = null;
+		elements = null;
+		documentBuilder = null;
+	}
+}
@@ -0,0 +1,101 @@
+package com.googlecode.fascinator.harvester.rifcs;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.apache.commons.io.IOUtils;
+
+import com.googlecode.fascinator.api.harvester.HarvesterException;
+import com.googlecode.fascinator.common.JsonObject;
+
+/**
+ * Receives the mapped records of a dry run in place of storage, writing each
+ * one to a file as a line of JSON:
+ *
+ * <pre>
+ * {"oid":"&lt;oid&gt;","file":"parties.xml","ordinal":1,"data":{...},"metadata":{...}}
+ * </pre>
+ *
+ * Records may be written from any thread; lines are written whole.
+ */
+public class DryRunSink {
+
+	private final File file;
+
+	private OutputStream out;
+
+	private long records;
+
+	/**
+	 * @param file the file to write, replaced if it exists
+	 * @throws HarvesterException if the file could not be created
+	 */
+	public DryRunSink(File file) throws HarvesterException {
+		this.file = file;
+		try {
+			File parent = file.getAbsoluteFile().getParentFile();
+			if (!parent.isDirectory() && !parent.mkdirs()) {
+				throw new IOException("Could not create " + parent);
+			}
+			out = new BufferedOutputStream(new FileOutputStream(file));
+		} catch (IOException e) {
+			throw new HarvesterException("Error creating dry run output '"
+					+ file + "'", e);
+		}
+	}
+
+	/**
+	 * @param record a mapped record
+	 * @throws HarvesterException if the line could not be written
+	 */
+	public synchronized void write(HarvestRecord record)
+			throws HarvesterException {
+		if (out == null) {
+			throw new HarvesterException("Dry run output '" + file
+					+ "' is closed");
+		}
+		JsonObject line = new JsonObject();
+		line.put("oid", record.getOid());
+		line.put("file", record.getFileName());
+		line.put("ordinal", record.getOrdinal());
+		line.put("data", record.getData());
+		line.put("metadata", record.getMetadata());
+		try {
+			IOUtils.copy(new JsonPayloadStream(line), out);
+			out.write('\n');
+		} catch (IOException e) {
+			throw new HarvesterException("Error writing dry run output '"
+					+ file + "'", e);
+		}
+		records++;
+	}
+
+	/**
+	 * @return the number of records written
+	 */
+	public synchronized long getRecords() {
+		return records;
+	}
+
+	/**
+	 * Flush and close the file.
+	 *
+	 * @throws HarvesterException if the last lines could not be written
+	 */
+	public synchronized void close() throws HarvesterException {
+		if (out == null) {
+			return;
+		}
+		try {
+			out.close();
+		} catch (IOException e) {
+			throw new HarvesterException("Error writing dry run output '"
+					+ file + "'", e);
+		} finally {
+			out = null;
+		}
+	}
+}
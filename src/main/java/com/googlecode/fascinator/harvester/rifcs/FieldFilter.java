@@ -0,0 +1,68 @@
+package com.googlecode.fascinator.harvester.rifcs;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * The "includedFields" and "ignoredFields" configuration: which mapped fields
+ * are written to the record.
+ * <p>
+ * A field is accepted if the included list is empty or names it, and the
+ * ignored list does not. The "ID" field names the stored object, so it is
+ * always accepted.
+ * <p>
+ * Instances are immutable and may be shared between threads.
+ */
+public class FieldFilter {
+
+	/** The field holding the record identifier */
+	public static final String ID = "ID";
+
+	private final Set<String> included;
+
+	private final Set<String> ignored;
+
+	/**
+	 * @param included the fields to keep, or empty to keep every field
+	 * @param ignored the fields to leave out
+	 */
+	public FieldFilter(Collection<String> included, Collection<String> ignored) {
+		this.included = included.isEmpty() ? null : new HashSet<String>(
+				included);
+		this.ignored = new HashSet<String>(ignored);
+	}
+
+	/**
+	 * @param field a field name
+	 * @return true if the field is written to the record
+	 */
+	public boolean accept(String field) {
+		if (ID.equals(field)) {
+			return true;
+		}
+		return (included == null || included.contains(field))
+				&& !ignored.contains(field);
+	}
+
+	/**
+	 * Check whether any numbered field, such as "ANZSRC_FOR_1", may be
+	 * accepted.
+	 *
+	 * @param prefix the field name before the number, e.g. "ANZSRC_FOR"
+	 * @return false if no field starting with <code>prefix + "_"</code>
+	 *         could be accepted
+	 */
+	public boolean acceptNumbered(String prefix) {
+		if (included == null) {
+			return true;
+		}
+		String start = prefix + "_";
+		for (String field : included) {
+			if (field.startsWith(start) && !ignored.contains(field)) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,142 @@
+package com.googlecode.fascinator.harvester.rifcs;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Reads another stream gzip compressed, compressing it as it is read.
+ * <p>
+ * {@link java.util.zip.GZIPOutputStream} can only be written to, while
+ * storage plugins read a payload from an input stream; this turns the
+ * compression around, so a payload can be compressed on its way into storage
+ * without a pipe, a thread or a compressed copy in memory.
+ * <p>
+ * This class is not thread-safe.
+ */
+public class GzipCompressingInputStream extends InputStream {
+
+	/** Magic, deflate, no flags, no time, no extra flags, unknown OS */
+	private static final byte[] HEADER = { (byte) 0x1f, (byte) 0x8b, 8, 0, 0,
+			0, 0, 0, 0, (byte) 0xff };
+
+	private static final int BUFFER_SIZE = 8192;
+
+	private static final int HEADER_STAGE = 0;
+
+	private static final int BODY_STAGE = 1;
+
+	private static final int TRAILER_STAGE = 2;
+
+	private static final int DONE_STAGE = 3;
+
+	private final InputStream in;
+
+	private final Deflater deflater;
+
+	private final CRC32 crc = new CRC32();
+
+	private final byte[] input = new byte[BUFFER_SIZE];
+
+	private final byte[] output = new byte[BUFFER_SIZE];
+
+	private int position;
+
+	private int limit;
+
+	private int stage = HEADER_STAGE;
+
+	/**
+	 * @param in the stream to compress, closed by {@link #close()}
+	 */
+	public GzipCompressingInputStream(InputStream in) {
+		this(in, Deflater.DEFAULT_COMPRESSION);
+	}
+
+	/**
+	 * @param in the stream to compress, closed by {@link #close()}
+	 * @param level the compression level, 0 to 9
+	 */
+	public GzipCompressingInputStream(InputStream in, int level) {
+		this.in = in;
+		this.deflater = new Deflater(level, true);
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] one = new byte[1];
+		return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] bytes, int offset, int length) throws IOException {
+		if (length == 0) {
+			return 0;
+		}
+		while (position == limit) {
+			if (!fill()) {
+				return -1;
+			}
+		}
+		int n = Math.min(length, limit - position);
+		System.arraycopy(output, position, bytes, offset, n);
+		position += n;
+		return n;
+	}
+
+	/**
+	 * Produce the next output, which may be empty.
+	 *
+	 * @return false once the trailer has been read
+	 */
+	private boolean fill() throws IOException {
+		position = 0;
+		limit = 0;
+		switch (stage) {
+		case HEADER_STAGE:
+			System.arraycopy(HEADER, 0, output, 0, HEADER.length);
+			limit = HEADER.length;
+			stage = BODY_STAGE;
+			return true;
+		case BODY_STAGE:
+			if (deflater.needsInput() && !deflater.finished()) {
+				int n = in.read(input);
+				if (n < 0) {
+					deflater.finish();
+				} else if (n > 0) {
+					crc.update(input, 0, n);
+					deflater.setInput(input, 0, n);
+				}
+			}
+			limit = deflater.deflate(output);
+			if (deflater.finished()) {
+				stage = TRAILER_STAGE;
+			}
+			return true;
+		case TRAILER_STAGE:
+			writeInt((int) crc.getValue());
+			writeInt((int) deflater.getBytesRead());
+			stage = DONE_STAGE;
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Append a little-endian int to the output.
+	 */
+	private void writeInt(int value) {
+		output[limit++] = (byte) value;
+		output[limit++] = (byte) (value >> 8);
+		output[limit++] = (byte) (value >> 16);
+		output[limit++] = (byte) (value >> 24);
+	}
+
+	@Override
+	public void close() throws IOException {
+		deflater.end();
+		in.close();
+	}
+}
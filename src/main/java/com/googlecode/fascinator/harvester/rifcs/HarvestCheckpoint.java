@@ -0,0 +1,237 @@
+package com.googlecode.fascinator.harvester.rifcs;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.googlecode.fascinator.api.harvester.HarvesterException;
+
+/**
+ * The position of a harvest, saved to a small properties file so that a
+ * harvest interrupted by a crash or restart can carry on where it stopped.
+ * <p>
+ * For each file (by the name used to generate object IDs) the checkpoint
+ * holds the ordinal of the last registry object which was stored, along with
+ * the total number of records committed. Records within a file are stored in
+ * order, so every record up to that ordinal has been stored.
+ * <p>
+ * A checkpoint is only resumed by a harvest with the same configuration key
+ * and the same source files, by path, size and modification time. A harvest
+ * with anything else, or a checkpoint file which can not be read, starts again
+ * from the beginning.
+ */
+public class HarvestCheckpoint {
+
+	private static final String CONFIG = "config";
+
+	private static final String SOURCES = "sources";
+
+	private static final String RECORDS = "records";
+
+	private static final String FILE_PREFIX = "file.";
+
+	private final Logger log = LoggerFactory.getLogger(HarvestCheckpoint.class);
+
+	private final File file;
+
+	private final String configKey;
+
+	private final String sourceKey;
+
+	/** Last committed ordinal of each file when the harvest was resumed */
+	private final Map<String, Integer> resumed = new HashMap<String, Integer>();
+
+	/** Last ordinal dispatched of each file, committed by the next save */
+	private final Map<String, Integer> dispatched = new HashMap<String, Integer>();
+
+	private long records;
+
+	private long dispatchedRecords;
+
+	/**
+	 * @param file the checkpoint file
+	 * @param configKey identifies the harvest configuration the checkpoint
+	 *            belongs to
+	 * @param sourceKey identifies the content of the source files, see
+	 *            {@link #sourceKey(List)}
+	 */
+	public HarvestCheckpoint(File file, String configKey, String sourceKey) {
+		this.file = file;
+		this.configKey = configKey;
+		this.sourceKey = sourceKey;
+	}
+
+	/**
+	 * Identify the content of the source files of a harvest by their paths,
+	 * sizes and modification times, so a file replaced at the same path is
+	 * not resumed part way through.
+	 *
+	 * @param files the source files
+	 * @return the key
+	 */
+	public static String sourceKey(List<File> files) {
+		StringBuilder sources = new StringBuilder();
+		for (File source : files) {
+			sources.append(source.getAbsolutePath()).append('\n')
+					.append(source.length()).append('\n')
+					.append(source.lastModified()).append('\n');
+		}
+		return DigestUtils.md5Hex(sources.toString());
+	}
+
+	/**
+	 * Load the checkpoint file, if there is one for this configuration.
+	 *
+	 * @return true if a checkpoint was loaded and the harvest will resume
+	 */
+	public synchronized boolean load() {
+		if (!file.exists()) {
+			return false;
+		}
+		Properties properties = new Properties();
+		InputStream in = null;
+		try {
+			in = new FileInputStream(file);
+			properties.load(in);
+		} catch (IOException e) {
+			log.warn("Could not read checkpoint '" + file
+					+ "', starting from the beginning", e);
+			return false;
+		} finally {
+			IOUtils.closeQuietly(in);
+		}
+		if (properties.getProperty(CONFIG) == null
+				|| properties.getProperty(SOURCES) == null) {
+			// e.g. torn by a crash while it was written
+			log.warn("Checkpoint '{}' is incomplete, starting from the"
+					+ " beginning", file);
+			return false;
+		}
+		if (!configKey.equals(properties.getProperty(CONFIG))) {
+			log.warn("Checkpoint '{}' is for a different configuration,"
+					+ " starting from the beginning", file);
+			return false;
+		}
+		if (!sourceKey.equals(properties.getProperty(SOURCES))) {
+			log.warn("The source files have changed since checkpoint '{}'"
+					+ " was saved, starting from the beginning", file);
+			return false;
+		}
+		long loadedRecords;
+		Map<String, Integer> loaded = new HashMap<String, Integer>();
+		try {
+			loadedRecords = Long.parseLong(properties.getProperty(RECORDS, "0"));
+			for (String name : properties.stringPropertyNames()) {
+				if (name.startsWith(FILE_PREFIX)) {
+					loaded.put(name.substring(FILE_PREFIX.length()),
+							Integer.valueOf(properties.getProperty(name)));
+				}
+			}
+		} catch (NumberFormatException e) {
+			log.warn("Invalid checkpoint '" + file
+					+ "', starting from the beginning", e);
+			return false;
+		}
+		records = loadedRecords;
+		resumed.putAll(loaded);
+		dispatchedRecords = records;
+		dispatched.putAll(resumed);
+		log.info("Resuming harvest from checkpoint '{}' after {} records",
+				file, records);
+		return true;
+	}
+
+	/**
+	 * @param fileName the name used to generate object IDs for a file
+	 * @return the number of registry objects of the file stored before the
+	 *         harvest was resumed
+	 */
+	public synchronized int getResumeOrdinal(String fileName) {
+		Integer ordinal = resumed.get(fileName);
+		return ordinal == null ? 0 : ordinal;
+	}
+
+	/**
+	 * @return the number of records committed by this and earlier runs
+	 */
+	public synchronized long getRecords() {
+		return records;
+	}
+
+	/**
+	 * Note a record which has been stored, or handed to the storage writers.
+	 * It is committed by the next {@link #save()}.
+	 *
+	 * @param record the record
+	 */
+	public synchronized void dispatched(HarvestRecord record) {
+		dispatched.put(record.getFileName(), record.getOrdinal());
+		dispatchedRecords++;
+	}
+
+	/**
+	 * Commit every dispatched record and write the checkpoint file. The
+	 * caller must make sure those records are stored first.
+	 *
+	 * @throws HarvesterException if the file could not be written
+	 */
+	public synchronized void save() throws HarvesterException {
+		Properties properties = new Properties();
+		properties.setProperty(CONFIG, configKey);
+		properties.setProperty(SOURCES, sourceKey);
+		properties.setProperty(RECORDS, Long.toString(dispatchedRecords));
+		for (Map.Entry<String, Integer> entry : dispatched.entrySet()) {
+			properties.setProperty(FILE_PREFIX + entry.getKey(), entry
+					.getValue().toString());
+		}
+
+		// Write a new file and swap it in once it is on disk, so a crash or
+		// power loss never leaves half a checkpoint behind
+		File parent = file.getAbsoluteFile().getParentFile();
+		File partial = new File(parent, file.getName() + ".tmp");
+		FileOutputStream out = null;
+		try {
+			if (!parent.isDirectory() && !parent.mkdirs()) {
+				throw new IOException("Could not create " + parent);
+			}
+			out = new FileOutputStream(partial);
+			properties.store(out, "RIF-CS harvest checkpoint");
+			out.flush();
+			out.getFD().sync();
+			out.close();
+			out = null;
+			if (!partial.renameTo(file)
+					&& !(file.delete() && partial.renameTo(file))) {
+				throw new IOException("Could not rename " + partial + " to "
+						+ file);
+			}
+		} catch (IOException e) {
+			throw new HarvesterException("Error writing checkpoint '" + file
+					+ "'", e);
+		} finally {
+			IOUtils.closeQuietly(out);
+		}
+		records = dispatchedRecords;
+	}
+
+	/**
+	 * Remove the checkpoint file once the harvest is complete, so the next
+	 * harvest starts from the beginning.
+	 */
+	public synchronized void delete() {
+		if (file.exists() && !file.delete()) {
+			log.warn("Could not delete checkpoint '{}'", file);
+		}
+	}
+}
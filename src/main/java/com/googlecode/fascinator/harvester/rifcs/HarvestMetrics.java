@@ -0,0 +1,430 @@
+package com.googlecode.fascinator.harvester.rifcs;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters and latency histograms for one harvest. All methods may be called
+ * from any thread.
+ * <p>
+ * The phases timed are:
+ * <ul>
+ * <li>parse: reading the next registry object from the RIF-CS files</li>
+ * <li>map: mapping a registry object to JSON</li>
+ * <li>store: writing a record to storage, including the storage calls</li>
+ * <li>storage: looking up and creating objects through
+ * <code>getStorage()</code></li>
+ * </ul>
+ */
+public class HarvestMetrics implements HarvestMetricsMBean {
+
+	private final long startTime = System.currentTimeMillis();
+
+	private final AtomicLong recordsParsed = new AtomicLong();
+
+	private final AtomicLong recordsStored = new AtomicLong();
+
+	private final AtomicLong recordsSkipped = new AtomicLong();
+
+	private final AtomicLong recordsDryRun = new AtomicLong();
+
+	private final AtomicLong recordsFailed = new AtomicLong();
+
+	private final AtomicLong activities = new AtomicLong();
+
+	private final AtomicLong collections = new AtomicLong();
+
+	private final AtomicLong parties = new AtomicLong();
+
+	private final AtomicLong services = new AtomicLong();
+
+	private final AtomicLong bytesRead = new AtomicLong();
+
+	private final AtomicLong payloadBytesWritten = new AtomicLong();
+
+	private final LatencyHistogram parse = new LatencyHistogram();
+
+	private final LatencyHistogram map = new LatencyHistogram();
+
+	private final LatencyHistogram store = new LatencyHistogram();
+
+	private final LatencyHistogram storage = new LatencyHistogram();
+
+	private final StringInternTable strings;
+
+	private final InFlightBudget budget;
+
+	public HarvestMetrics() {
+		this(null, null);
+	}
+
+	/**
+	 * @param strings the table canonicalising repeated values, whose hit rate
+	 *            is reported, or null if there is none
+	 * @param budget the limit on records in flight, whose usage is reported,
+	 *            or null if there is none
+	 */
+	public HarvestMetrics(StringInternTable strings, InFlightBudget budget) {
+		this.strings = strings;
+		this.budget = budget;
+	}
+
+	/**
+	 * A registry object was read from a file.
+	 *
+	 * @param nanos the time taken to read it
+	 */
+	public void recordParsed(long nanos) {
+		recordsParsed.incrementAndGet();
+		parse.record(nanos);
+	}
+
+	/**
+	 * A registry object was mapped to JSON.
+	 *
+	 * @param rifcsClass the local name of the class element: "activity",
+	 *            "collection", "party" or "service"
+	 * @param nanos the time taken to map it
+	 */
+	public void recordMapped(String rifcsClass, long nanos) {
+		if ("activity".equals(rifcsClass)) {
+			activities.incrementAndGet();
+		} else if ("collection".equals(rifcsClass)) {
+			collections.incrementAndGet();
+		} else if ("party".equals(rifcsClass)) {
+			parties.incrementAndGet();
+		} else if ("service".equals(rifcsClass)) {
+			services.incrementAndGet();
+		}
+		map.record(nanos);
+	}
+
+	/**
+	 * A record was written to storage.
+	 *
+	 * @param nanos the time taken to store it
+	 */
+	public void recordStored(long nanos) {
+		recordsStored.incrementAndGet();
+		store.record(nanos);
+	}
+
+	/**
+	 * A record was left in storage unchanged.
+	 *
+	 * @param nanos the time taken to check it
+	 */
+	public void recordSkipped(long nanos) {
+		recordsSkipped.incrementAndGet();
+		store.record(nanos);
+	}
+
+	/**
+	 * A record was mapped but not stored, as the harvest is a dry run.
+	 *
+	 * @param nanos the time taken to pass it over
+	 */
+	public void recordDryRun(long nanos) {
+		recordsDryRun.incrementAndGet();
+		store.record(nanos);
+	}
+
+	/**
+	 * A record could not be mapped or stored.
+	 */
+	public void recordFailed() {
+		recordsFailed.incrementAndGet();
+	}
+
+	/**
+	 * A call was made through <code>getStorage()</code>.
+	 *
+	 * @param nanos the time the call took
+	 */
+	public void recordStorageCall(long nanos) {
+		storage.record(nanos);
+	}
+
+	/**
+	 * @param in a RIF-CS file
+	 * @return the stream, counting the bytes read from it
+	 */
+	public InputStream countBytesRead(InputStream in) {
+		return new CountingStream(in, bytesRead);
+	}
+
+	/**
+	 * @param in a payload being written
+	 * @return the stream, counting the bytes read from it by storage
+	 */
+	public InputStream countPayloadBytes(InputStream in) {
+		return new CountingStream(in, payloadBytesWritten);
+	}
+
+	@Override
+	public long getElapsedMillis() {
+		return System.currentTimeMillis() - startTime;
+	}
+
+	@Override
+	public long getRecordsParsed() {
+		return recordsParsed.get();
+	}
+
+	@Override
+	public long getRecordsStored() {
+		return recordsStored.get();
+	}
+
+	@Override
+	public long getRecordsSkipped() {
+		return recordsSkipped.get();
+	}
+
+	@Override
+	public long getRecordsDryRun() {
+		return recordsDryRun.get();
+	}
+
+	@Override
+	public long getRecordsFailed() {
+		return recordsFailed.get();
+	}
+
+	@Override
+	public long getActivities() {
+		return activities.get();
+	}
+
+	@Override
+	public long getCollections() {
+		return collections.get();
+	}
+
+	@Override
+	public long getParties() {
+		return parties.get();
+	}
+
+	@Override
+	public long getServices() {
+		return services.get();
+	}
+
+	@Override
+	public long getBytesRead() {
+		return bytesRead.get();
+	}
+
+	@Override
+	public long getRecordsPerSecond() {
+		long elapsed = getElapsedMillis();
+		return elapsed == 0 ? 0 : getRecordsParsed() * 1000 / elapsed;
+	}
+
+	@Override
+	public double getMegabytesReadPerSecond() {
+		long elapsed = getElapsedMillis();
+		return elapsed == 0 ? 0 : getBytesRead() * 1000.0 / elapsed
+				/ (1024 * 1024);
+	}
+
+	@Override
+	public long getPayloadBytesWritten() {
+		return payloadBytesWritten.get();
+	}
+
+	@Override
+	public long getParseMeanMicros() {
+		return micros(parse.getMean());
+	}
+
+	@Override
+	public long getParseP99Micros() {
+		return micros(parse.getPercentile(99));
+	}
+
+	@Override
+	public long getParseMaxMicros() {
+		return micros(parse.getMax());
+	}
+
+	@Override
+	public long getMapMeanMicros() {
+		return micros(map.getMean());
+	}
+
+	@Override
+	public long getMapP99Micros() {
+		return micros(map.getPercentile(99));
+	}
+
+	@Override
+	public long getMapMaxMicros() {
+		return micros(map.getMax());
+	}
+
+	@Override
+	public long getStoreMeanMicros() {
+		return micros(store.getMean());
+	}
+
+	@Override
+	public long getStoreP99Micros() {
+		return micros(store.getPercentile(99));
+	}
+
+	@Override
+	public long getStoreMaxMicros() {
+		return micros(store.getMax());
+	}
+
+	@Override
+	public long getStorageCalls() {
+		return storage.getCount();
+	}
+
+	@Override
+	public long getStorageMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(storage.getTotal());
+	}
+
+	@Override
+	public long getStorageP99Micros() {
+		return micros(storage.getPercentile(99));
+	}
+
+	@Override
+	public long getInternHits() {
+		return strings == null ? 0 : strings.getHits();
+	}
+
+	@Override
+	public long getInternMisses() {
+		return strings == null ? 0 : strings.getMisses();
+	}
+
+	@Override
+	public int getInternHitPercent() {
+		return strings == null ? 0 : strings.getHitPercent();
+	}
+
+	@Override
+	public int getInFlightRecords() {
+		return budget == null ? 0 : budget.getRecords();
+	}
+
+	@Override
+	public long getInFlightBytes() {
+		return budget == null ? 0 : budget.getBytes();
+	}
+
+	@Override
+	public int getPeakInFlightRecords() {
+		return budget == null ? 0 : budget.getPeakRecords();
+	}
+
+	@Override
+	public long getPeakInFlightBytes() {
+		return budget == null ? 0 : budget.getPeakBytes();
+	}
+
+	@Override
+	public long getBudgetWaitMillis() {
+		return budget == null ? 0 : TimeUnit.NANOSECONDS.toMillis(budget
+				.getWaitNanos());
+	}
+
+	public LatencyHistogram getParseLatency() {
+		return parse;
+	}
+
+	public LatencyHistogram getMapLatency() {
+		return map;
+	}
+
+	public LatencyHistogram getStoreLatency() {
+		return store;
+	}
+
+	public LatencyHistogram getStorageLatency() {
+		return storage;
+	}
+
+	@Override
+	public String getSummary() {
+		return getRecordsParsed() + " parsed (" + getActivities()
+				+ " activities, " + getCollections() + " collections, "
+				+ getParties() + " parties, " + getServices() + " services), "
+				+ getRecordsStored() + " stored, "
+				+ (getRecordsDryRun() == 0 ? "" : getRecordsDryRun()
+						+ " not stored (dry run), ") + getRecordsSkipped()
+				+ " skipped, " + getRecordsFailed() + " failed in "
+				+ getElapsedMillis() + " ms (" + getRecordsPerSecond()
+				+ " records/s, "
+				+ String.format("%.1f", getMegabytesReadPerSecond())
+				+ " MB/s read); " + getBytesRead()
+				+ " bytes read, " + getPayloadBytesWritten()
+				+ " payload bytes written; parse " + parse + "; map " + map
+				+ "; store " + store + "; storage " + storage
+				+ (strings == null ? "" : "; interned " + strings)
+				+ (budget == null ? "" : "; " + budget + ", waited "
+						+ getBudgetWaitMillis() + " ms");
+	}
+
+	@Override
+	public String toString() {
+		return getSummary();
+	}
+
+	private static long micros(long nanos) {
+		return TimeUnit.NANOSECONDS.toMicros(nanos);
+	}
+
+	/**
+	 * Adds the number of bytes read through a stream to a counter.
+	 */
+	private static class CountingStream extends FilterInputStream {
+
+		private final AtomicLong counter;
+
+		CountingStream(InputStream in, AtomicLong counter) {
+			super(in);
+			this.counter = counter;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b >= 0) {
+				counter.incrementAndGet();
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length)
+				throws IOException {
+			int n = super.read(buffer, offset, length);
+			if (n > 0) {
+				counter.addAndGet(n);
+			}
+			return n;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = super.skip(n);
+			counter.addAndGet(skipped);
+			return skipped;
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+	}
+}
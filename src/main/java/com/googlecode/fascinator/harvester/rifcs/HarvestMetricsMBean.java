@@ -0,0 +1,80 @@
+package com.googlecode.fascinator.harvester.rifcs;
+
+/**
+ * The JMX view of {@link HarvestMetrics}. Latencies are in microseconds.
+ */
+public interface HarvestMetricsMBean {
+
+	long getElapsedMillis();
+
+	long getRecordsParsed();
+
+	long getRecordsStored();
+
+	long getRecordsSkipped();
+
+	long getRecordsDryRun();
+
+	long getRecordsFailed();
+
+	long getActivities();
+
+	long getCollections();
+
+	long getParties();
+
+	long getServices();
+
+	long getBytesRead();
+
+	long getRecordsPerSecond();
+
+	double getMegabytesReadPerSecond();
+
+	long getPayloadBytesWritten();
+
+	long getParseMeanMicros();
+
+	long getParseP99Micros();
+
+	long getParseMaxMicros();
+
+	long getMapMeanMicros();
+
+	long getMapP99Micros();
+
+	long getMapMaxMicros();
+
+	long getStoreMeanMicros();
+
+	long getStoreP99Micros();
+
+	long getStoreMaxMicros();
+
+	long getStorageCalls();
+
+	long getStorageMillis();
+
+	long getStorageP99Micros();
+
+	long getInternHits();
+
+	long getInternMisses();
+
+	int getInternHitPercent();
+
+	int getInFlightRecords();
+
+	long getInFlightBytes();
+
+	int getPeakInFlightRecords();
+
+	long getPeakInFlightBytes();
+
+	long getBudgetWaitMillis();
+
+	/**
+	 * @return a one line summary of all the metrics
+	 */
+	String getSummary();
+}
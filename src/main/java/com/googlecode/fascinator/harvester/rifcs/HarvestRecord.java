@@ -0,0 +1,187 @@
+package com.googlecode.fascinator.harvester.rifcs;
+
+import java.util.List;
+
+import org.ands.rifcs.base.RegistryObject;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import com.googlecode.fascinator.common.JsonObject;
+
+/**
+ * A single registry object on its way through the harvester: the source
+ * object, the file it came from, its position in that file and, once mapped,
+ * the JSON data and metadata to store under its object identifier.
+ * <p>
+ * Every record owns its own output objects, so records can be mapped on
+ * different threads without sharing state.
+ */
+public class HarvestRecord {
+
+	private final String fileName;
+
+	private final int ordinal;
+
+	private final RegistryObject registryObject;
+
+	/** The registry object element, when the object model rejected it */
+	private final Element element;
+
+	private JsonObject data;
+
+	private JsonObject metadata;
+
+	private String oid;
+
+	private String fingerprint;
+
+	private List<RelationshipIndex.Edge> edges;
+
+	private long size;
+
+	private Throwable error;
+
+	/**
+	 * @param fileName the name of the file the registry object was read from,
+	 *            used to derive its object identifier
+	 * @param ordinal the position of the registry object in its file,
+	 *            starting from 1
+	 * @param registryObject the registry object to map
+	 */
+	public HarvestRecord(String fileName, int ordinal,
+			RegistryObject registryObject) {
+		this.fileName = fileName;
+		this.ordinal = ordinal;
+		this.registryObject = registryObject;
+		this.element = null;
+	}
+
+	/**
+	 * A record whose registry object was rejected by the RIF-CS object model
+	 * as it was read, and so can not be mapped.
+	 *
+	 * @param fileName the name of the file the registry object was read from
+	 * @param ordinal the position of the registry object in its file,
+	 *            starting from 1
+	 * @param element the &lt;registryObject&gt; element, or null if it could
+	 *            not be found
+	 * @param error why the registry object was rejected
+	 */
+	public HarvestRecord(String fileName, int ordinal, Element element,
+			Throwable error) {
+		this.fileName = fileName;
+		this.ordinal = ordinal;
+		this.registryObject = null;
+		this.element = element;
+		this.error = error;
+	}
+
+	public String getFileName() {
+		return fileName;
+	}
+
+	public int getOrdinal() {
+		return ordinal;
+	}
+
+	/**
+	 * @return the registry object, or null if it was rejected as it was read
+	 */
+	public RegistryObject getRegistryObject() {
+		return registryObject;
+	}
+
+	/**
+	 * @return the &lt;registryObject&gt; element, or null if it is not known
+	 */
+	public Element getElement() {
+		return registryObject != null ? registryObject.getElement() : element;
+	}
+
+	/**
+	 * @return the key of the registry object, or null if it is not known
+	 */
+	public String getKey() {
+		if (registryObject != null) {
+			return registryObject.getKey();
+		}
+		if (element != null) {
+			for (Node child = element.getFirstChild(); child != null; child = child
+					.getNextSibling()) {
+				if (child.getNodeType() == Node.ELEMENT_NODE
+						&& "key".equals(child.getLocalName())) {
+					return child.getTextContent();
+				}
+			}
+		}
+		return null;
+	}
+
+	public JsonObject getData() {
+		return data;
+	}
+
+	public void setData(JsonObject data) {
+		this.data = data;
+	}
+
+	public JsonObject getMetadata() {
+		return metadata;
+	}
+
+	public void setMetadata(JsonObject metadata) {
+		this.metadata = metadata;
+	}
+
+	public String getOid() {
+		return oid;
+	}
+
+	public void setOid(String oid) {
+		this.oid = oid;
+	}
+
+	public String getFingerprint() {
+		return fingerprint;
+	}
+
+	public void setFingerprint(String fingerprint) {
+		this.fingerprint = fingerprint;
+	}
+
+	/**
+	 * @return the relations to other registry objects, or null unless the
+	 *         harvest builds a relationship index
+	 */
+	public List<RelationshipIndex.Edge> getEdges() {
+		return edges;
+	}
+
+	public void setEdges(List<RelationshipIndex.Edge> edges) {
+		this.edges = edges;
+	}
+
+	/**
+	 * @return the estimated size the record holds against the in-flight
+	 *         budget, 0 unless the budget limits bytes
+	 */
+	public long getSize() {
+		return size;
+	}
+
+	public void setSize(long size) {
+		this.size = size;
+	}
+
+	/**
+	 * @return why the record could not be read, mapped or stored, or null if
+	 *         it was
+	 */
+	public Throwable getError() {
+		return error;
+	}
+
+	public void setError(Throwable error) {
+		this.error = error;
+	}
+}
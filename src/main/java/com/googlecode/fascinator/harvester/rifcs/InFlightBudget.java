@@ -0,0 +1,190 @@
+package com.googlecode.fascinator.harvester.rifcs;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ * A limit on the records held between reading and storage, by count and by
+ * estimated size.
+ * <p>
+ * A record takes its share of the budget when it has been read and gives it
+ * back once it has been stored, skipped or has failed. A record is always let
+ * in while nothing else is in flight, so a single record larger than the byte
+ * limit can not stall the harvest.
+ * <p>
+ * All methods may be called from any thread.
+ */
+public class InFlightBudget {
+
+	/** Estimated heap bytes of a DOM node besides its text */
+	private static final int NODE_OVERHEAD = 64;
+
+	private final int maxRecords;
+
+	private final long maxBytes;
+
+	private int records;
+
+	private long bytes;
+
+	private int peakRecords;
+
+	private long peakBytes;
+
+	private long waitNanos;
+
+	/**
+	 * @param maxRecords the most records in flight, 0 for no limit
+	 * @param maxBytes the most estimated bytes in flight, 0 for no limit
+	 */
+	public InFlightBudget(int maxRecords, long maxBytes) {
+		this.maxRecords = maxRecords;
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * @return true if records need their size estimated
+	 */
+	public boolean isLimitingBytes() {
+		return maxBytes > 0;
+	}
+
+	/**
+	 * Set the estimated size of a record, when sizes are limited.
+	 *
+	 * @param record the record read
+	 */
+	public void measure(HarvestRecord record) {
+		if (isLimitingBytes()) {
+			Element element = record.getElement();
+			record.setSize(element == null ? 0 : estimateSize(element));
+		}
+	}
+
+	/**
+	 * Take a record's share of the budget if it is available.
+	 *
+	 * @param size the estimated size of the record
+	 * @return false if the budget is exhausted
+	 */
+	public synchronized boolean tryAcquire(long size) {
+		if (!fits(size)) {
+			return false;
+		}
+		take(size);
+		return true;
+	}
+
+	/**
+	 * Take a record's share of the budget, waiting for other records to be
+	 * released if it is exhausted. Only call this when the records in flight
+	 * are held by other threads.
+	 *
+	 * @param size the estimated size of the record
+	 * @throws InterruptedException if the wait was interrupted
+	 */
+	public synchronized void acquire(long size) throws InterruptedException {
+		if (!fits(size)) {
+			long start = System.nanoTime();
+			try {
+				while (!fits(size)) {
+					wait();
+				}
+			} finally {
+				waitNanos += System.nanoTime() - start;
+			}
+		}
+		take(size);
+	}
+
+	/**
+	 * Give back a record's share of the budget.
+	 *
+	 * @param size the estimated size the record was acquired with
+	 */
+	public synchronized void release(long size) {
+		records--;
+		bytes -= size;
+		notifyAll();
+	}
+
+	private boolean fits(long size) {
+		if (records == 0) {
+			return true;
+		}
+		return (maxRecords <= 0 || records < maxRecords)
+				&& (maxBytes <= 0 || bytes + size <= maxBytes);
+	}
+
+	private void take(long size) {
+		records++;
+		bytes += size;
+		peakRecords = Math.max(peakRecords, records);
+		peakBytes = Math.max(peakBytes, bytes);
+	}
+
+	public synchronized int getRecords() {
+		return records;
+	}
+
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	public synchronized int getPeakRecords() {
+		return peakRecords;
+	}
+
+	public synchronized long getPeakBytes() {
+		return peakBytes;
+	}
+
+	/**
+	 * @return the time spent waiting for the budget, in nanoseconds
+	 */
+	public synchronized long getWaitNanos() {
+		return waitNanos;
+	}
+
+	/**
+	 * Estimate the heap used by a DOM tree: two bytes per character of text,
+	 * names and attribute values, and a fixed overhead per node.
+	 *
+	 * @param node the root of the tree
+	 * @return the estimated size in bytes
+	 */
+	public static long estimateSize(Node node) {
+		long size = NODE_OVERHEAD;
+		String name = node.getNodeName();
+		if (name != null) {
+			size += name.length() * 2;
+		}
+		if (node.getNodeType() == Node.TEXT_NODE
+				|| node.getNodeType() == Node.CDATA_SECTION_NODE) {
+			String value = node.getNodeValue();
+			if (value != null) {
+				size += value.length() * 2;
+			}
+		}
+		NamedNodeMap attributes = node.getAttributes();
+		if (attributes != null) {
+			for (int i = 0; i < attributes.getLength(); i++) {
+				Node attribute = attributes.item(i);
+				size += NODE_OVERHEAD + attribute.getNodeName().length() * 2
+						+ attribute.getNodeValue().length() * 2;
+			}
+		}
+		for (Node child = node.getFirstChild(); child != null; child = child
+				.getNextSibling()) {
+			size += estimateSize(child);
+		}
+		return size;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return records + " records (" + bytes + " bytes) in flight, peak "
+				+ peakRecords + " records (" + peakBytes + " bytes)";
+	}
+}
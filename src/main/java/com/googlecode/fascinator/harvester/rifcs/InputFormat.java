@@ -0,0 +1,112 @@
+package com.googlecode.fascinator.harvester.rifcs;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+import org.tukaani.xz.XZInputStream;
+
+/**
+ * The container formats RIF-CS files are accepted in, recognised by their
+ * leading bytes rather than the file name.
+ */
+public enum InputFormat {
+
+	/** Uncompressed xml */
+	PLAIN(null, null),
+	/** A gzip compressed xml file, e.g. "parties.xml.gz" */
+	GZIP(new byte[] { (byte) 0x1f, (byte) 0x8b }, ".gz"),
+	/** An xz compressed xml file, e.g. "parties.xml.xz" */
+	XZ(new byte[] { (byte) 0xfd, '7', 'z', 'X', 'Z', 0 }, ".xz"),
+	/** A zip archive, each entry of which is a RIF-CS document */
+	ZIP(new byte[] { 'P', 'K', 3, 4 }, ".zip");
+
+	/** Buffer size for reading and decompressing input files */
+	public static final int BUFFER_SIZE = 64 * 1024;
+
+	private static final int MAX_MAGIC_LENGTH = 6;
+
+	private final byte[] magic;
+
+	private final String extension;
+
+	InputFormat(byte[] magic, String extension) {
+		this.magic = magic;
+		this.extension = extension;
+	}
+
+	/**
+	 * Recognise the format of a stream without consuming any of it.
+	 * 
+	 * @param in a stream supporting mark and reset
+	 * @return the format, PLAIN if no other format matches
+	 * @throws IOException if the stream could not be read
+	 */
+	public static InputFormat detect(BufferedInputStream in)
+			throws IOException {
+		byte[] header = new byte[MAX_MAGIC_LENGTH];
+		in.mark(MAX_MAGIC_LENGTH);
+		int length = 0;
+		int read;
+		while (length < header.length
+				&& (read = in.read(header, length, header.length - length)) > 0) {
+			length += read;
+		}
+		in.reset();
+
+		for (InputFormat format : values()) {
+			if (format.matches(header, length)) {
+				return format;
+			}
+		}
+		return PLAIN;
+	}
+
+	private boolean matches(byte[] header, int length) {
+		if (magic == null || length < magic.length) {
+			return false;
+		}
+		for (int i = 0; i < magic.length; i++) {
+			if (header[i] != magic[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Wrap a stream of a single compressed document so it reads the
+	 * uncompressed xml. Zip archives are read entry by entry instead.
+	 * 
+	 * @param in the compressed stream
+	 * @return the uncompressed stream
+	 * @throws IOException if the stream header is invalid
+	 */
+	public InputStream decompress(InputStream in) throws IOException {
+		switch (this) {
+		case GZIP:
+			return new GZIPInputStream(in, BUFFER_SIZE);
+		case XZ:
+			return new XZInputStream(in);
+		default:
+			return in;
+		}
+	}
+
+	/**
+	 * Remove the extension of this format from a file name, so that a
+	 * compressed file generates the same object IDs as the uncompressed file.
+	 * 
+	 * @param fileName the file name, e.g. "parties.xml.gz"
+	 * @return the file name without the extension, e.g. "parties.xml"
+	 */
+	public String stripExtension(String fileName) {
+		if (extension != null && fileName.endsWith(extension)
+				&& fileName.length() > extension.length()) {
+			return fileName.substring(0, fileName.length()
+					- extension.length());
+		}
+		return fileName;
+	}
+}
@@ -0,0 +1,266 @@
+package com.googlecode.fascinator.harvester.rifcs;
+
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Reads a JSON object tree as compact UTF-8 JSON, serialising it on demand as
+ * the stream is read.
+ * <p>
+ * Storage plugins copy a payload from an input stream, so the payload is
+ * written straight from the tree: no JSON string or byte array of the whole
+ * document is ever built. Only the token being written is buffered, which for
+ * a long string value is the encoded string.
+ * <p>
+ * Maps become JSON objects (keys are written with <code>toString()</code>),
+ * collections and arrays become JSON arrays, numbers and booleans are written
+ * as they are, and any other value is written as a string. Infinite and NaN
+ * numbers are written as <code>null</code>, as JSON has no representation for
+ * them.
+ * <p>
+ * The tree must not be modified while it is being read. This class is not
+ * thread-safe.
+ */
+public class JsonPayloadStream extends InputStream {
+
+	/** Bytes produced by each refill, once the buffer holds that much */
+	private static final int CHUNK_SIZE = 8192;
+
+	private static final byte[] HEX = "0123456789abcdef".getBytes();
+
+	private static final byte[] NULL = "null".getBytes();
+
+	/** An object or array being written */
+	private static class Frame {
+
+		private final Iterator<?> iterator;
+
+		private final boolean object;
+
+		private boolean first = true;
+
+		Frame(Iterator<?> iterator, boolean object) {
+			this.iterator = iterator;
+			this.object = object;
+		}
+	}
+
+	private final Deque<Frame> stack = new ArrayDeque<Frame>();
+
+	private Object pending;
+
+	private boolean hasPending;
+
+	private byte[] buffer = new byte[CHUNK_SIZE + 64];
+
+	private int position;
+
+	private int limit;
+
+	/**
+	 * @param root the tree to serialise, usually a map
+	 */
+	public JsonPayloadStream(Object root) {
+		pending = root;
+		hasPending = true;
+	}
+
+	@Override
+	public int read() {
+		if (position == limit && !fill()) {
+			return -1;
+		}
+		return buffer[position++] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] bytes, int offset, int length) {
+		if (length == 0) {
+			return 0;
+		}
+		int count = 0;
+		while (count < length) {
+			if (position == limit && !fill()) {
+				break;
+			}
+			int n = Math.min(length - count, limit - position);
+			System.arraycopy(buffer, position, bytes, offset + count, n);
+			position += n;
+			count += n;
+		}
+		return count == 0 ? -1 : count;
+	}
+
+	@Override
+	public int available() {
+		return limit - position;
+	}
+
+	/**
+	 * Serialise the next tokens into the empty buffer.
+	 *
+	 * @return false once the whole tree has been read
+	 */
+	private boolean fill() {
+		position = 0;
+		limit = 0;
+		while (limit < CHUNK_SIZE && step()) {
+			// keep going
+		}
+		return limit > 0;
+	}
+
+	/**
+	 * Write the next token.
+	 *
+	 * @return false if there are no more tokens
+	 */
+	private boolean step() {
+		if (hasPending) {
+			Object value = pending;
+			pending = null;
+			hasPending = false;
+			writeValue(value);
+			return true;
+		}
+		Frame frame = stack.peek();
+		if (frame == null) {
+			return false;
+		}
+		if (!frame.iterator.hasNext()) {
+			stack.pop();
+			writeByte(frame.object ? '}' : ']');
+			return true;
+		}
+		if (!frame.first) {
+			writeByte(',');
+		}
+		frame.first = false;
+		if (frame.object) {
+			Map.Entry<?, ?> entry = (Map.Entry<?, ?>) frame.iterator.next();
+			writeString(String.valueOf(entry.getKey()));
+			writeByte(':');
+			pending = entry.getValue();
+		} else {
+			pending = frame.iterator.next();
+		}
+		hasPending = true;
+		return true;
+	}
+
+	private void writeValue(Object value) {
+		if (value == null) {
+			writeAscii(NULL);
+		} else if (value instanceof Map) {
+			writeByte('{');
+			stack.push(new Frame(((Map<?, ?>) value).entrySet().iterator(),
+					true));
+		} else if (value instanceof Collection) {
+			writeByte('[');
+			stack.push(new Frame(((Collection<?>) value).iterator(), false));
+		} else if (value instanceof Object[]) {
+			writeByte('[');
+			stack.push(new Frame(Arrays.asList((Object[]) value)
+					.iterator(), false));
+		} else if (value instanceof Double
+				&& (((Double) value).isNaN() || ((Double) value).isInfinite())) {
+			writeAscii(NULL);
+		} else if (value instanceof Float
+				&& (((Float) value).isNaN() || ((Float) value).isInfinite())) {
+			writeAscii(NULL);
+		} else if (value instanceof Number || value instanceof Boolean) {
+			writeAscii(value.toString().getBytes());
+		} else {
+			writeString(value.toString());
+		}
+	}
+
+	private void writeByte(char c) {
+		ensureCapacity(1);
+		buffer[limit++] = (byte) c;
+	}
+
+	private void writeAscii(byte[] bytes) {
+		ensureCapacity(bytes.length);
+		System.arraycopy(bytes, 0, buffer, limit, bytes.length);
+		limit += bytes.length;
+	}
+
+	/**
+	 * Write a quoted, escaped string in UTF-8.
+	 */
+	private void writeString(String value) {
+		// At most six bytes per char, for an escaped control character
+		ensureCapacity(value.length() * 6 + 2);
+		byte[] out = buffer;
+		int n = limit;
+		out[n++] = '"';
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '"' || c == '\\') {
+				out[n++] = '\\';
+				out[n++] = (byte) c;
+			} else if (c < 0x20 || c == '\u2028' || c == '\u2029') {
+				out[n++] = '\\';
+				switch (c) {
+				case '\n':
+					out[n++] = 'n';
+					break;
+				case '\r':
+					out[n++] = 'r';
+					break;
+				case '\t':
+					out[n++] = 't';
+					break;
+				case '\b':
+					out[n++] = 'b';
+					break;
+				case '\f':
+					out[n++] = 'f';
+					break;
+				default:
+					out[n++] = 'u';
+					out[n++] = HEX[c >> 12];
+					out[n++] = HEX[(c >> 8) & 0xf];
+					out[n++] = HEX[(c >> 4) & 0xf];
+					out[n++] = HEX[c & 0xf];
+				}
+			} else if (c < 0x80) {
+				out[n++] = (byte) c;
+			} else if (c < 0x800) {
+				out[n++] = (byte) (0xc0 | (c >> 6));
+				out[n++] = (byte) (0x80 | (c & 0x3f));
+			} else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+					&& Character.isLowSurrogate(value.charAt(i + 1))) {
+				int codePoint = Character.toCodePoint(c, value.charAt(++i));
+				out[n++] = (byte) (0xf0 | (codePoint >> 18));
+				out[n++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+				out[n++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+				out[n++] = (byte) (0x80 | (codePoint & 0x3f));
+			} else if (c >= Character.MIN_SURROGATE
+					&& c <= Character.MAX_SURROGATE) {
+				// An unpaired surrogate can not be encoded
+				out[n++] = '?';
+			} else {
+				out[n++] = (byte) (0xe0 | (c >> 12));
+				out[n++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+				out[n++] = (byte) (0x80 | (c & 0x3f));
+			}
+		}
+		out[n++] = '"';
+		limit = n;
+	}
+
+	private void ensureCapacity(int bytes) {
+		if (limit + bytes > buffer.length) {
+			byte[] grown = new byte[Math.max(buffer.length * 2, limit + bytes)];
+			System.arraycopy(buffer, 0, grown, 0, limit);
+			buffer = grown;
+		}
+	}
+}
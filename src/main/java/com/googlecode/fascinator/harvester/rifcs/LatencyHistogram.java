@@ -0,0 +1,132 @@
+package com.googlecode.fascinator.harvester.rifcs;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of latencies in nanoseconds.
+ * <p>
+ * Each power of two is split into eight buckets, so percentiles are accurate
+ * to within 12.5% whatever the range of values, in a fixed 4KB of counters.
+ */
+public class LatencyHistogram {
+
+	/** Buckets per power of two, as a number of bits */
+	private static final int SUB_BUCKET_BITS = 3;
+
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(
+			bucket(Long.MAX_VALUE) + 1);
+
+	private final AtomicLong count = new AtomicLong();
+
+	private final AtomicLong total = new AtomicLong();
+
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Record one latency.
+	 *
+	 * @param nanos the latency in nanoseconds, negative values count as zero
+	 */
+	public void record(long nanos) {
+		if (nanos < 0) {
+			nanos = 0;
+		}
+		buckets.incrementAndGet(bucket(nanos));
+		count.incrementAndGet();
+		total.addAndGet(nanos);
+		long current = max.get();
+		while (nanos > current && !max.compareAndSet(current, nanos)) {
+			current = max.get();
+		}
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * @return the sum of all latencies in nanoseconds
+	 */
+	public long getTotal() {
+		return total.get();
+	}
+
+	/**
+	 * @return the largest latency in nanoseconds
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * @return the mean latency in nanoseconds, 0 if nothing was recorded
+	 */
+	public long getMean() {
+		long n = count.get();
+		return n == 0 ? 0 : total.get() / n;
+	}
+
+	/**
+	 * @param percentile the percentile, from 0 to 100
+	 * @return the latency in nanoseconds below which the given percentage of
+	 *         latencies fall, 0 if nothing was recorded
+	 */
+	public long getPercentile(double percentile) {
+		long n = count.get();
+		if (n == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(n * percentile / 100);
+		long seen = 0;
+		for (int i = 0; i < buckets.length(); i++) {
+			seen += buckets.get(i);
+			if (seen >= Math.max(rank, 1)) {
+				return Math.min(midpoint(i), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	/**
+	 * @return the count, mean, median, 99th percentile and maximum
+	 */
+	@Override
+	public String toString() {
+		return getCount() + " x mean " + micros(getMean()) + " / p50 "
+				+ micros(getPercentile(50)) + " / p99 "
+				+ micros(getPercentile(99)) + " / max " + micros(getMax())
+				+ " us";
+	}
+
+	private static long micros(long nanos) {
+		return TimeUnit.NANOSECONDS.toMicros(nanos);
+	}
+
+	/**
+	 * Values below {@link #SUB_BUCKETS} have a bucket each; larger values are
+	 * bucketed on their highest bit and the {@link #SUB_BUCKET_BITS} bits
+	 * below it.
+	 */
+	static int bucket(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int shift = exponent - SUB_BUCKET_BITS;
+		int subBucket = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+		return (shift + 1) * SUB_BUCKETS + subBucket;
+	}
+
+	private static long midpoint(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		int shift = bucket / SUB_BUCKETS - 1;
+		long lower = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+		return lower + ((1L << shift) >>> 1);
+	}
+}
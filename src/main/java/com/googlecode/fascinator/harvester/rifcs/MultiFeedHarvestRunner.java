@@ -0,0 +1,424 @@
+package com.googlecode.fascinator.harvester.rifcs;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.googlecode.fascinator.api.PluginException;
+import com.googlecode.fascinator.api.PluginManager;
+import com.googlecode.fascinator.api.harvester.Harvester;
+import com.googlecode.fascinator.api.harvester.HarvesterException;
+import com.googlecode.fascinator.api.storage.Storage;
+import com.googlecode.fascinator.api.storage.StorageException;
+import com.googlecode.fascinator.common.JsonSimple;
+
+/**
+ * Runs the harvests of several RIF-CS feeds at the same time in one process,
+ * e.g. the Parties_People, Parties_Groups, Activities and Services
+ * configurations, so they pay for one JVM start and plugin load between them.
+ * <p>
+ * The feeds share:
+ * <ul>
+ * <li>one storage plugin, and one pool of storage writer threads in place of
+ * the "storageThreads" of each feed</li>
+ * <li>the xml parser factories, which are looked up once rather than once per
+ * file</li>
+ * <li>a summary of the harvest metrics of every feed, logged when the run
+ * finishes; each feed's own metrics are still available over JMX</li>
+ * </ul>
+ * <p>
+ * Feeds are harvested a batch at a time and take turns: after each batch a
+ * feed goes to the back of the queue, so a large feed holds up the others for
+ * at most one batch. Feeds configured without a "batchSize" are given the
+ * runner's. A feed which fails is logged and abandoned without stopping the
+ * others.
+ * <p>
+ * Usage:
+ * <code>MultiFeedHarvestRunner [-threads n] [-storageThreads n]
+ * [-batchSize n] config.json...</code>
+ * <br>
+ * The storage plugin is the one named by "storage.type" in the first
+ * configuration, initialised from that file. Objects deleted from a feed are
+ * removed from storage.
+ */
+public class MultiFeedHarvestRunner {
+
+	/**
+	 * Receives the objects of each feed as its batches are harvested.
+	 * Called from the runner threads, for one batch of a feed at a time.
+	 */
+	public interface FeedListener {
+
+		/**
+		 * @param config the configuration file of the feed
+		 * @param objectIdList the objects stored by a batch
+		 * @throws HarvesterException to abandon the feed
+		 */
+		void harvested(File config, Set<String> objectIdList)
+				throws HarvesterException;
+
+		/**
+		 * @param config the configuration file of the feed
+		 * @param objectIdList objects which have gone from the feed
+		 * @throws HarvesterException to abandon the feed
+		 */
+		void deleted(File config, Set<String> objectIdList)
+				throws HarvesterException;
+	}
+
+	/** Default number of records in each batch of a feed */
+	public static final int DEFAULT_BATCH_SIZE = 1000;
+
+	/** Default number of storage writer threads */
+	public static final int DEFAULT_STORAGE_THREADS = 4;
+
+	/** Default storage plugin */
+	private static final String DEFAULT_STORAGE = "file-system";
+
+	/** Plugin id of the RIF-CS harvester */
+	private static final String HARVESTER_TYPE = "xml";
+
+	private final Logger log = LoggerFactory
+			.getLogger(MultiFeedHarvestRunner.class);
+
+	private final Storage storage;
+
+	private final int threads;
+
+	private final int batchSize;
+
+	private final StorageWriterPool writerPool;
+
+	private final List<Feed> feeds = new ArrayList<Feed>();
+
+	private long elapsed;
+
+	/**
+	 * @param storage the storage shared by every feed
+	 * @param threads the most feeds harvested at the same time
+	 * @param storageThreads the number of storage writer threads shared by
+	 *            every feed
+	 * @param batchSize the batch size of feeds which do not set one
+	 */
+	public MultiFeedHarvestRunner(Storage storage, int threads,
+			int storageThreads, int batchSize) {
+		this.storage = storage;
+		this.threads = Math.max(threads, 1);
+		this.batchSize = batchSize > 0 ? batchSize : DEFAULT_BATCH_SIZE;
+		writerPool = new StorageWriterPool(storageThreads);
+	}
+
+	/**
+	 * Load a harvester for a feed and initialise it.
+	 *
+	 * @param config the harvest configuration of the feed
+	 * @throws HarvesterException if the configuration could not be read or is
+	 *             not for the RIF-CS harvester, or the harvester could not be
+	 *             initialised
+	 */
+	public void addFeed(File config) throws HarvesterException {
+		JsonSimple json;
+		try {
+			json = new JsonSimple(config);
+		} catch (IOException e) {
+			throw new HarvesterException("Error reading '" + config + "'", e);
+		}
+		if (!HARVESTER_TYPE.equals(json.getString(null, "harvester", "type"))) {
+			throw new HarvesterException("'" + config
+					+ "' is not a RIF-CS harvest configuration");
+		}
+		if (json.getInteger(0, "harvester", HARVESTER_TYPE, "batchSize") <= 0) {
+			json.writeObject("harvester", HARVESTER_TYPE).put("batchSize",
+					batchSize);
+		}
+		Harvester harvester = PluginManager.getHarvester(HARVESTER_TYPE,
+				storage);
+		if (!(harvester instanceof RIFCSHarvester)) {
+			throw new HarvesterException("RIF-CS harvester plugin not found");
+		}
+		RIFCSHarvester rifcsHarvester = (RIFCSHarvester) harvester;
+		rifcsHarvester.setStorageWriterPool(writerPool);
+		try {
+			rifcsHarvester.init(json.toString(true));
+		} catch (PluginException e) {
+			throw new HarvesterException("Error initialising harvest of '"
+					+ config + "'", e);
+		}
+		feeds.add(new Feed(config, rifcsHarvester));
+	}
+
+	/**
+	 * Harvest every feed to the end, taking turns a batch at a time.
+	 *
+	 * @param listener receives the objects harvested and deleted
+	 * @throws HarvesterException if any feed failed, once the others have
+	 *             finished
+	 */
+	public void run(FeedListener listener) throws HarvesterException {
+		long start = System.currentTimeMillis();
+		CountDownLatch done = new CountDownLatch(feeds.size());
+		ExecutorService runners = Executors.newFixedThreadPool(
+				Math.min(threads, Math.max(feeds.size(), 1)),
+				new RunnerThreadFactory());
+		try {
+			// The pool's queue is first in, first out, so feeds queued again
+			// after a batch go behind every other feed
+			for (Feed feed : feeds) {
+				runners.execute(new Batch(feed, listener, runners, done));
+			}
+			done.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new HarvesterException("Interrupted while harvesting feeds",
+					e);
+		} finally {
+			runners.shutdownNow();
+			elapsed = System.currentTimeMillis() - start;
+			log.info("Harvest of {} feeds finished: {}", feeds.size(),
+					getSummary());
+		}
+		for (Feed feed : feeds) {
+			if (feed.failure != null) {
+				throw new HarvesterException("Harvest of '" + feed.config
+						+ "' failed", feed.failure);
+			}
+		}
+	}
+
+	/**
+	 * @return the combined counts of every feed, as a single line
+	 */
+	public String getSummary() {
+		long parsed = 0;
+		long stored = 0;
+		long dryRun = 0;
+		long skipped = 0;
+		long failed = 0;
+		long bytesRead = 0;
+		int failedFeeds = 0;
+		for (Feed feed : feeds) {
+			HarvestMetrics metrics = feed.harvester.getMetrics();
+			parsed += metrics.getRecordsParsed();
+			stored += metrics.getRecordsStored();
+			dryRun += metrics.getRecordsDryRun();
+			skipped += metrics.getRecordsSkipped();
+			failed += metrics.getRecordsFailed();
+			bytesRead += metrics.getBytesRead();
+			if (feed.failure != null) {
+				failedFeeds++;
+			}
+		}
+		return feeds.size() + " feeds (" + failedFeeds + " failed) in "
+				+ elapsed + "ms, " + parsed + " records read ("
+				+ (elapsed == 0 ? 0 : parsed * 1000 / elapsed) + "/s, "
+				+ bytesRead + " bytes), " + stored + " stored, "
+				+ (dryRun == 0 ? "" : dryRun + " not stored (dry run), ")
+				+ skipped + " skipped, " + failed + " failed";
+	}
+
+	/**
+	 * @return the harvester of each feed, in the order they were added
+	 */
+	public List<RIFCSHarvester> getHarvesters() {
+		List<RIFCSHarvester> harvesters = new ArrayList<RIFCSHarvester>();
+		for (Feed feed : feeds) {
+			harvesters.add(feed.harvester);
+		}
+		return Collections.unmodifiableList(harvesters);
+	}
+
+	/**
+	 * Shut down the harvester of every feed and the storage writer threads.
+	 */
+	public void shutdown() {
+		for (Feed feed : feeds) {
+			try {
+				feed.harvester.shutdown();
+			} catch (PluginException e) {
+				log.warn("Error shutting down harvest of '" + feed.config
+						+ "'", e);
+			}
+		}
+		writerPool.shutdown();
+	}
+
+	/**
+	 * A feed and its harvester. Only one batch of a feed is harvested at a
+	 * time.
+	 */
+	private static class Feed {
+
+		private final File config;
+
+		private final RIFCSHarvester harvester;
+
+		private volatile Throwable failure;
+
+		private Feed(File config, RIFCSHarvester harvester) {
+			this.config = config;
+			this.harvester = harvester;
+		}
+	}
+
+	/**
+	 * Harvests one batch of a feed, then queues the next batch behind the
+	 * other feeds.
+	 */
+	private class Batch implements Runnable {
+
+		private final Feed feed;
+
+		private final FeedListener listener;
+
+		private final ExecutorService runners;
+
+		private final CountDownLatch done;
+
+		private Batch(Feed feed, FeedListener listener,
+				ExecutorService runners, CountDownLatch done) {
+			this.feed = feed;
+			this.listener = listener;
+			this.runners = runners;
+			this.done = done;
+		}
+
+		@Override
+		public void run() {
+			RIFCSHarvester harvester = feed.harvester;
+			try {
+				Set<String> objectIdList = harvester.getObjectIdList();
+				if (!objectIdList.isEmpty()) {
+					listener.harvested(feed.config, objectIdList);
+				}
+				if (harvester.hasMoreObjects()) {
+					runners.execute(this);
+					return;
+				}
+				while (harvester.hasMoreDeletedObjects()) {
+					Set<String> deleted = harvester.getDeletedObjectIdList();
+					if (!deleted.isEmpty()) {
+						listener.deleted(feed.config, deleted);
+					}
+				}
+			} catch (Throwable t) {
+				feed.failure = t;
+				log.error("Harvest of '" + feed.config + "' failed", t);
+			}
+			done.countDown();
+		}
+	}
+
+	/**
+	 * Creates named daemon threads for the feeds.
+	 */
+	private static class RunnerThreadFactory implements ThreadFactory {
+
+		private final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "rifcs-feed-"
+					+ count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+
+	/**
+	 * Harvest the feeds given on the command line.
+	 *
+	 * @param args options and configuration files, see the class description
+	 */
+	public static void main(String[] args) {
+		int threads = Runtime.getRuntime().availableProcessors();
+		int storageThreads = DEFAULT_STORAGE_THREADS;
+		int batchSize = DEFAULT_BATCH_SIZE;
+		List<File> configs = new ArrayList<File>();
+		for (int i = 0; i < args.length; i++) {
+			if ("-threads".equals(args[i]) && i + 1 < args.length) {
+				threads = Integer.parseInt(args[++i]);
+			} else if ("-storageThreads".equals(args[i]) && i + 1 < args.length) {
+				storageThreads = Integer.parseInt(args[++i]);
+			} else if ("-batchSize".equals(args[i]) && i + 1 < args.length) {
+				batchSize = Integer.parseInt(args[++i]);
+			} else {
+				configs.add(new File(args[i]));
+			}
+		}
+		if (configs.isEmpty()) {
+			System.err.println("Usage: MultiFeedHarvestRunner [-threads n]"
+					+ " [-storageThreads n] [-batchSize n] config.json...");
+			System.exit(2);
+		}
+
+		Logger log = LoggerFactory.getLogger(MultiFeedHarvestRunner.class);
+		Storage storage = null;
+		MultiFeedHarvestRunner runner = null;
+		boolean failed = false;
+		try {
+			String storageType = new JsonSimple(configs.get(0)).getString(
+					DEFAULT_STORAGE, "storage", "type");
+			storage = PluginManager.getStorage(storageType);
+			if (storage == null) {
+				throw new HarvesterException("Storage plugin '" + storageType
+						+ "' not found");
+			}
+			storage.init(configs.get(0));
+			runner = new MultiFeedHarvestRunner(storage, threads,
+					storageThreads, batchSize);
+			for (File config : configs) {
+				runner.addFeed(config);
+			}
+			final Storage feedStorage = storage;
+			final Logger feedLog = log;
+			runner.run(new FeedListener() {
+				@Override
+				public void harvested(File config, Set<String> objectIdList) {
+					feedLog.info("{}: {} objects harvested", config.getName(),
+							objectIdList.size());
+				}
+
+				@Override
+				public void deleted(File config, Set<String> objectIdList)
+						throws HarvesterException {
+					for (String oid : objectIdList) {
+						try {
+							feedStorage.removeObject(oid);
+						} catch (StorageException e) {
+							throw new HarvesterException("Error deleting '"
+									+ oid + "'", e);
+						}
+					}
+					feedLog.info("{}: {} objects deleted", config.getName(),
+							objectIdList.size());
+				}
+			});
+		} catch (Exception e) {
+			log.error("Harvest failed", e);
+			failed = true;
+		} finally {
+			if (runner != null) {
+				runner.shutdown();
+			}
+			if (storage != null) {
+				try {
+					storage.shutdown();
+				} catch (PluginException e) {
+					log.warn("Error shutting down storage", e);
+				}
+			}
+		}
+		System.exit(failed ? 1 : 0);
+	}
+}
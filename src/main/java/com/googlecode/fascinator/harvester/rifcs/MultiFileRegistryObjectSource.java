@@ -0,0 +1,338 @@
+package com.googlecode.fascinator.harvester.rifcs;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Pattern;
+
+import com.googlecode.fascinator.api.harvester.HarvesterException;
+
+/**
+ * Registry object source reading several RIF-CS files, either one after the
+ * other or several at a time.
+ * <p>
+ * When files are read concurrently, each file is read on its own thread into
+ * a bounded queue shared by all files. Records of one file keep their order,
+ * but records of different files are interleaved. Given an in-flight budget,
+ * each reader takes a record's share of it before queueing the record, so
+ * queued records count against the budget; only the one record each reader
+ * is waiting to queue is held outside it.
+ */
+public class MultiFileRegistryObjectSource implements RegistryObjectSource {
+
+	/**
+	 * Opens the source for a single file.
+	 */
+	public interface SourceFactory {
+
+		/**
+		 * @param file the RIF-CS file
+		 * @return a source for the file
+		 * @throws HarvesterException if the file could not be opened
+		 */
+		RegistryObjectSource open(File file) throws HarvesterException;
+	}
+
+	/** How many records each reading thread may have queued */
+	private static final int QUEUED_RECORDS_PER_FILE = 100;
+
+	/** The file name endings read from a directory, in lower case */
+	private static final String[] DIRECTORY_EXTENSIONS = { ".xml", ".xml.gz",
+			".xml.xz", ".zip" };
+
+	private final SourceFactory sourceFactory;
+
+	private final List<File> files;
+
+	/** The in-flight budget taken by the readers, or null */
+	private final InFlightBudget budget;
+
+	private int nextFile;
+
+	private boolean closed;
+
+	/** The file being read in sequential mode */
+	private RegistryObjectSource current;
+
+	/** The readers in concurrent mode */
+	private ExecutorService readers;
+
+	private BlockingQueue<HarvestRecord> queue;
+
+	private AtomicInteger remainingFiles;
+
+	private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+	/**
+	 * @param files the files to read
+	 * @param threads the number of files read at a time
+	 * @param sourceFactory opens each file
+	 */
+	public MultiFileRegistryObjectSource(List<File> files, int threads,
+			SourceFactory sourceFactory) {
+		this(files, threads, sourceFactory, null);
+	}
+
+	/**
+	 * @param files the files to read
+	 * @param threads the number of files read at a time
+	 * @param sourceFactory opens each file
+	 * @param budget the in-flight budget records read concurrently take their
+	 *            share of before they are queued, or null
+	 */
+	public MultiFileRegistryObjectSource(List<File> files, int threads,
+			SourceFactory sourceFactory, InFlightBudget budget) {
+		this.files = files;
+		this.sourceFactory = sourceFactory;
+		this.budget = budget;
+		if (threads > 1 && files.size() > 1) {
+			startReaders(Math.min(threads, files.size()));
+		}
+	}
+
+	/**
+	 * Find the files a location refers to: a single file, the RIF-CS files in
+	 * a directory (those ending in ".xml", ".xml.gz", ".xml.xz" or ".zip"),
+	 * or the files matching a glob pattern ("*" and "?") in the last part of
+	 * the path, e.g. "/data/exports/parties-*.xml". Hidden files are ignored.
+	 * Files are sorted by name.
+	 * 
+	 * @param location the file, directory or pattern
+	 * @return the files found, empty if there are none
+	 */
+	public static List<File> listFiles(String location) {
+		File file = new File(location);
+		if (file.isFile()) {
+			return Collections.singletonList(file);
+		}
+
+		File directory = file;
+		FileFilter filter = new FileFilter() {
+			@Override
+			public boolean accept(File candidate) {
+				return candidate.isFile() && !candidate.isHidden()
+						&& hasDirectoryExtension(candidate.getName());
+			}
+		};
+		if (!file.isDirectory()) {
+			String name = file.getName();
+			if (name.indexOf('*') < 0 && name.indexOf('?') < 0) {
+				return Collections.emptyList();
+			}
+			directory = file.getAbsoluteFile().getParentFile();
+			final Pattern pattern = globToPattern(name);
+			filter = new FileFilter() {
+				@Override
+				public boolean accept(File candidate) {
+					return candidate.isFile() && !candidate.isHidden()
+							&& pattern.matcher(candidate.getName()).matches();
+				}
+			};
+		}
+
+		File[] found = directory == null ? null : directory.listFiles(filter);
+		if (found == null) {
+			return Collections.emptyList();
+		}
+		Arrays.sort(found);
+		return new ArrayList<File>(Arrays.asList(found));
+	}
+
+	private static boolean hasDirectoryExtension(String name) {
+		String lowerCase = name.toLowerCase(Locale.ENGLISH);
+		for (String extension : DIRECTORY_EXTENSIONS) {
+			if (lowerCase.endsWith(extension)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static Pattern globToPattern(String glob) {
+		StringBuilder regex = new StringBuilder();
+		StringBuilder literal = new StringBuilder();
+		for (char c : glob.toCharArray()) {
+			if (c == '*' || c == '?') {
+				if (literal.length() > 0) {
+					regex.append(Pattern.quote(literal.toString()));
+					literal.setLength(0);
+				}
+				regex.append(c == '*' ? ".*" : ".");
+			} else {
+				literal.append(c);
+			}
+		}
+		if (literal.length() > 0) {
+			regex.append(Pattern.quote(literal.toString()));
+		}
+		return Pattern.compile(regex.toString());
+	}
+
+	private void startReaders(int threads) {
+		queue = new ArrayBlockingQueue<HarvestRecord>(threads
+				* QUEUED_RECORDS_PER_FILE);
+		remainingFiles = new AtomicInteger(files.size());
+		readers = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "rifcs-file-reader-"
+						+ count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		for (final File file : files) {
+			readers.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						readFile(file);
+					} finally {
+						remainingFiles.decrementAndGet();
+					}
+				}
+			});
+		}
+	}
+
+	private void readFile(File file) {
+		if (failure.get() != null) {
+			return;
+		}
+		RegistryObjectSource fileSource = null;
+		try {
+			fileSource = sourceFactory.open(file);
+			HarvestRecord record;
+			while ((record = fileSource.next()) != null) {
+				if (budget == null) {
+					queue.put(record);
+				} else {
+					budget.measure(record);
+					budget.acquire(record.getSize());
+					try {
+						queue.put(record);
+					} catch (InterruptedException e) {
+						budget.release(record.getSize());
+						throw e;
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			// closed before the file was finished
+			Thread.currentThread().interrupt();
+		} catch (Throwable t) {
+			failure.compareAndSet(null, t);
+		} finally {
+			if (fileSource != null) {
+				fileSource.close();
+			}
+		}
+	}
+
+	/**
+	 * @return true if the records returned have already taken their share of
+	 *         the in-flight budget
+	 */
+	public boolean isReserving() {
+		return readers != null && budget != null;
+	}
+
+	/**
+	 * @return true if {@link #next()} may have to wait for the readers, which
+	 *         may in turn be waiting for the in-flight budget held by records
+	 *         already returned
+	 */
+	public boolean mayWait() {
+		return readers != null && !closed && queue.isEmpty();
+	}
+
+	@Override
+	public HarvestRecord next() throws HarvesterException {
+		if (closed) {
+			return null;
+		}
+		if (readers != null) {
+			return nextQueued();
+		}
+		while (true) {
+			if (current == null) {
+				if (nextFile >= files.size()) {
+					return null;
+				}
+				current = sourceFactory.open(files.get(nextFile++));
+			}
+			HarvestRecord record = current.next();
+			if (record != null) {
+				return record;
+			}
+			current.close();
+			current = null;
+		}
+	}
+
+	private HarvestRecord nextQueued() throws HarvesterException {
+		try {
+			while (true) {
+				checkFailure();
+				// Readers queue their last record before counting their
+				// file as done, so an empty queue after the last file is
+				// done means there is nothing left
+				boolean done = remainingFiles.get() == 0;
+				HarvestRecord record = queue.poll(100, TimeUnit.MILLISECONDS);
+				if (record != null) {
+					return record;
+				}
+				if (done) {
+					checkFailure();
+					return null;
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new HarvesterException(
+					"Interrupted while waiting for RIF-CS files", e);
+		}
+	}
+
+	private void checkFailure() throws HarvesterException {
+		Throwable t = failure.get();
+		if (t instanceof HarvesterException) {
+			throw (HarvesterException) t;
+		}
+		if (t != null) {
+			throw new HarvesterException("Error reading RIF-CS file: ", t);
+		}
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+		if (current != null) {
+			current.close();
+			current = null;
+		}
+		if (readers != null) {
+			readers.shutdownNow();
+			HarvestRecord record;
+			while ((record = queue.poll()) != null) {
+				if (budget != null) {
+					budget.release(record.getSize());
+				}
+			}
+		}
+	}
+}
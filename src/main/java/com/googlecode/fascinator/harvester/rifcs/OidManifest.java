@@ -0,0 +1,484 @@
+package com.googlecode.fascinator.harvester.rifcs;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * The object IDs harvested from one source file, kept as a sorted binary
+ * file of 16 byte records (the MD5 object IDs without their hex encoding).
+ * <p>
+ * The IDs of a new harvest are collected with {@link #add(String)}, sorted in
+ * memory and spilled to sorted runs beyond a limit.
+ * {@link #merge(DataOutputStream, boolean)} merges the runs and walks the
+ * previous manifest, memory-mapped a window at a time, alongside them: IDs
+ * only in the previous manifest have vanished from the source. They are
+ * dropped from the new manifest, or kept until they have been dealt with. The
+ * new manifest replaces the previous one once {@link #install()} is called.
+ * Neither set is ever held in memory as a whole.
+ * <p>
+ * This class is not thread-safe.
+ */
+public class OidManifest {
+
+	/** Bytes per object ID */
+	public static final int RECORD_SIZE = 16;
+
+	/** Bytes of the previous manifest mapped at once */
+	private static final int WINDOW_SIZE = RECORD_SIZE << 22;
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private final File file;
+
+	private final int maxInMemory;
+
+	/** High and low halves of each buffered ID, in pairs */
+	private long[] buffer = new long[256];
+
+	private int size;
+
+	private final List<File> runs = new ArrayList<File>();
+
+	/**
+	 * @param file the manifest file; runs are written next to it
+	 * @param maxInMemory the number of IDs kept in memory before they are
+	 *            spilled to disk
+	 */
+	public OidManifest(File file, int maxInMemory) {
+		this.file = file.getAbsoluteFile();
+		this.maxInMemory = Math.max(maxInMemory, 1);
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Add an object ID harvested from the source file.
+	 *
+	 * @param oid a 32 character hex MD5 object ID
+	 * @throws IOException if a run could not be spilled
+	 */
+	public void add(String oid) throws IOException {
+		if (size * 2 == buffer.length) {
+			long[] grown = new long[Math.min(buffer.length * 2,
+					maxInMemory * 2)];
+			System.arraycopy(buffer, 0, grown, 0, buffer.length);
+			buffer = grown;
+		}
+		buffer[size * 2] = parseHex(oid, 0);
+		buffer[size * 2 + 1] = parseHex(oid, 16);
+		size++;
+		if (size >= maxInMemory) {
+			spill();
+		}
+	}
+
+	/**
+	 * Sort the buffered IDs and write them to a new run.
+	 */
+	private void spill() throws IOException {
+		sort(buffer, 0, size - 1);
+		createDirectory();
+		File run = File.createTempFile("rifcs-manifest", ".run",
+				file.getParentFile());
+		runs.add(run);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(run)));
+		try {
+			for (int i = 0; i < size * 2; i++) {
+				out.writeLong(buffer[i]);
+			}
+		} finally {
+			out.close();
+		}
+		size = 0;
+	}
+
+	/**
+	 * Write the new manifest next to the previous one, without replacing it
+	 * yet: the IDs added in this harvest, and optionally the IDs of the
+	 * previous manifest which were not added again.
+	 *
+	 * @param vanished receives the IDs of the previous manifest which were
+	 *            not added again as 16 byte records, or null
+	 * @param keepPrevious true to keep those IDs in the new manifest, until
+	 *            they have been dealt with
+	 * @return the number of IDs of the previous manifest which were not added
+	 *         again
+	 * @throws IOException if the manifest or the runs could not be read or
+	 *             written
+	 */
+	public long merge(DataOutputStream vanished, boolean keepPrevious)
+			throws IOException {
+		sort(buffer, 0, size - 1);
+		createDirectory();
+		File partial = getPartialFile();
+		List<IdReader> readers = new ArrayList<IdReader>();
+		DataOutputStream out = null;
+		MappedIdReader previous = null;
+		long count = 0;
+		try {
+			readers.add(new BufferReader(buffer, size));
+			for (File run : runs) {
+				readers.add(new RunReader(run));
+			}
+			if (file.exists()) {
+				previous = new MappedIdReader(file);
+			}
+			out = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(partial)));
+
+			boolean first = true;
+			long lastHigh = 0;
+			long lastLow = 0;
+			while (true) {
+				// The smallest current ID of all the runs
+				IdReader next = null;
+				for (IdReader reader : readers) {
+					if (reader.hasCurrent()
+							&& (next == null || compare(reader.high,
+									reader.low, next.high, next.low) < 0)) {
+						next = reader;
+					}
+				}
+				if (next == null) {
+					break;
+				}
+				long high = next.high;
+				long low = next.low;
+				next.advance();
+				if (!first && high == lastHigh && low == lastLow) {
+					continue;
+				}
+				first = false;
+				lastHigh = high;
+				lastLow = low;
+
+				// Everything before it in the previous manifest has vanished
+				while (previous != null && previous.hasCurrent()) {
+					int order = compare(previous.high, previous.low, high, low);
+					if (order > 0) {
+						break;
+					}
+					if (order < 0) {
+						writeVanished(previous, out, vanished, keepPrevious);
+						count++;
+					}
+					previous.advance();
+				}
+				out.writeLong(high);
+				out.writeLong(low);
+			}
+			while (previous != null && previous.hasCurrent()) {
+				writeVanished(previous, out, vanished, keepPrevious);
+				count++;
+				previous.advance();
+			}
+			out.close();
+			out = null;
+		} finally {
+			IOUtils.closeQuietly(out);
+			for (IdReader reader : readers) {
+				reader.close();
+			}
+			if (previous != null) {
+				previous.close();
+			}
+		}
+		return count;
+	}
+
+	private static void writeVanished(IdReader previous,
+			DataOutputStream manifest, DataOutputStream vanished,
+			boolean keepPrevious) throws IOException {
+		if (keepPrevious) {
+			manifest.writeLong(previous.high);
+			manifest.writeLong(previous.low);
+		}
+		if (vanished != null) {
+			vanished.writeLong(previous.high);
+			vanished.writeLong(previous.low);
+		}
+	}
+
+	/**
+	 * Replace the manifest with the one written by
+	 * {@link #merge(DataOutputStream, boolean)}.
+	 *
+	 * @throws IOException if the manifest could not be replaced
+	 */
+	public void install() throws IOException {
+		File partial = getPartialFile();
+		if (!partial.renameTo(file)
+				&& !(file.delete() && partial.renameTo(file))) {
+			throw new IOException("Could not rename " + partial + " to "
+					+ file);
+		}
+		close();
+	}
+
+	private File getPartialFile() {
+		return new File(file.getParentFile(), file.getName() + ".tmp");
+	}
+
+	/**
+	 * Discard the IDs added, the runs and any new manifest not yet
+	 * installed, leaving the manifest as it was.
+	 */
+	public void close() {
+		size = 0;
+		for (File run : runs) {
+			run.delete();
+		}
+		runs.clear();
+		getPartialFile().delete();
+	}
+
+	private void createDirectory() throws IOException {
+		File directory = file.getParentFile();
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Could not create " + directory);
+		}
+	}
+
+	/**
+	 * @param oid a hex object ID
+	 * @param start the first of 16 hex digits
+	 * @return the 64 bits of the digits
+	 */
+	static long parseHex(String oid, int start) {
+		if (oid.length() != RECORD_SIZE * 2) {
+			throw new IllegalArgumentException("Not an MD5 object ID: " + oid);
+		}
+		long value = 0;
+		for (int i = start; i < start + 16; i++) {
+			int digit = Character.digit(oid.charAt(i), 16);
+			if (digit < 0) {
+				throw new IllegalArgumentException("Not an MD5 object ID: "
+						+ oid);
+			}
+			value = (value << 4) | digit;
+		}
+		return value;
+	}
+
+	/**
+	 * @return the 32 character lower case hex object ID of two halves
+	 */
+	static String toHex(long high, long low) {
+		char[] chars = new char[RECORD_SIZE * 2];
+		for (int i = 15; i >= 0; i--) {
+			chars[i] = HEX[(int) (high & 0xf)];
+			chars[i + 16] = HEX[(int) (low & 0xf)];
+			high >>>= 4;
+			low >>>= 4;
+		}
+		return new String(chars);
+	}
+
+	/**
+	 * Compare two IDs as unsigned 128 bit numbers, the order of their hex
+	 * strings.
+	 */
+	static int compare(long high1, long low1, long high2, long low2) {
+		if (high1 != high2) {
+			return (high1 ^ Long.MIN_VALUE) < (high2 ^ Long.MIN_VALUE) ? -1
+					: 1;
+		}
+		if (low1 != low2) {
+			return (low1 ^ Long.MIN_VALUE) < (low2 ^ Long.MIN_VALUE) ? -1 : 1;
+		}
+		return 0;
+	}
+
+	/**
+	 * Quicksort the pairs <code>from</code> to <code>to</code> (inclusive).
+	 */
+	private static void sort(long[] pairs, int from, int to) {
+		while (from < to) {
+			int middle = (from + to) >>> 1;
+			long pivotHigh = pairs[middle * 2];
+			long pivotLow = pairs[middle * 2 + 1];
+			int i = from;
+			int j = to;
+			while (i <= j) {
+				while (compare(pairs[i * 2], pairs[i * 2 + 1], pivotHigh,
+						pivotLow) < 0) {
+					i++;
+				}
+				while (compare(pairs[j * 2], pairs[j * 2 + 1], pivotHigh,
+						pivotLow) > 0) {
+					j--;
+				}
+				if (i <= j) {
+					swap(pairs, i, j);
+					i++;
+					j--;
+				}
+			}
+			// Recurse into the smaller half to bound the stack depth
+			if (j - from < to - i) {
+				sort(pairs, from, j);
+				from = i;
+			} else {
+				sort(pairs, i, to);
+				to = j;
+			}
+		}
+	}
+
+	private static void swap(long[] pairs, int i, int j) {
+		long high = pairs[i * 2];
+		long low = pairs[i * 2 + 1];
+		pairs[i * 2] = pairs[j * 2];
+		pairs[i * 2 + 1] = pairs[j * 2 + 1];
+		pairs[j * 2] = high;
+		pairs[j * 2 + 1] = low;
+	}
+
+	/**
+	 * Reads sorted IDs one at a time.
+	 */
+	private abstract static class IdReader {
+
+		protected long high;
+
+		protected long low;
+
+		private boolean current;
+
+		/**
+		 * @return false once there are no more IDs
+		 */
+		protected abstract boolean read() throws IOException;
+
+		void advance() throws IOException {
+			current = read();
+		}
+
+		boolean hasCurrent() {
+			return current;
+		}
+
+		void close() {
+		}
+	}
+
+	private static class BufferReader extends IdReader {
+
+		private final long[] pairs;
+
+		private final int size;
+
+		private int index;
+
+		BufferReader(long[] pairs, int size) throws IOException {
+			this.pairs = pairs;
+			this.size = size;
+			advance();
+		}
+
+		@Override
+		protected boolean read() {
+			if (index == size) {
+				return false;
+			}
+			high = pairs[index * 2];
+			low = pairs[index * 2 + 1];
+			index++;
+			return true;
+		}
+	}
+
+	private static class RunReader extends IdReader {
+
+		private final DataInputStream in;
+
+		RunReader(File run) throws IOException {
+			in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(run)));
+			advance();
+		}
+
+		@Override
+		protected boolean read() throws IOException {
+			try {
+				high = in.readLong();
+				low = in.readLong();
+				return true;
+			} catch (EOFException e) {
+				return false;
+			}
+		}
+
+		@Override
+		void close() {
+			IOUtils.closeQuietly(in);
+		}
+	}
+
+	/**
+	 * Reads a manifest through a memory-mapped window which slides along the
+	 * file, so manifests larger than 2GB can be read.
+	 */
+	private static class MappedIdReader extends IdReader {
+
+		private final RandomAccessFile file;
+
+		private final FileChannel channel;
+
+		private final long length;
+
+		private long position;
+
+		private MappedByteBuffer window;
+
+		MappedIdReader(File manifest) throws IOException {
+			file = new RandomAccessFile(manifest, "r");
+			channel = file.getChannel();
+			length = channel.size() - channel.size() % RECORD_SIZE;
+			advance();
+		}
+
+		@Override
+		protected boolean read() throws IOException {
+			if (window == null || !window.hasRemaining()) {
+				if (position == length) {
+					return false;
+				}
+				long mapped = Math.min(WINDOW_SIZE, length - position);
+				window = channel.map(FileChannel.MapMode.READ_ONLY, position,
+						mapped);
+				position += mapped;
+			}
+			high = window.getLong();
+			low = window.getLong();
+			return true;
+		}
+
+		@Override
+		void close() {
+			window = null;
+			try {
+				file.close();
+			} catch (IOException e) {
+				// nothing more we can do
+			}
+		}
+	}
+}
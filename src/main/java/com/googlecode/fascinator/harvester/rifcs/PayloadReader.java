@@ -0,0 +1,83 @@
+package com.googlecode.fascinator.harvester.rifcs;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.commons.io.IOUtils;
+
+import com.googlecode.fascinator.api.storage.Payload;
+import com.googlecode.fascinator.api.storage.StorageException;
+import com.googlecode.fascinator.common.JsonSimple;
+
+/**
+ * Reads the JSON payloads stored by the harvester, whether or not they were
+ * stored with the "gzip" payload encoding.
+ * <p>
+ * Compressed payloads are recognised by their leading bytes, so transformers
+ * and scripts can use this for every payload without checking the content
+ * type or the harvest configuration.
+ */
+public final class PayloadReader {
+
+	/** Content type of payloads stored with the "gzip" payload encoding */
+	public static final String GZIP_CONTENT_TYPE = "application/gzip";
+
+	/** Content type of uncompressed payloads */
+	public static final String JSON_CONTENT_TYPE = "application/json";
+
+	private PayloadReader() {
+	}
+
+	/**
+	 * Open a payload, decompressing it if it is gzip compressed.
+	 *
+	 * @param payload the payload
+	 * @return the uncompressed content, to be closed by the caller
+	 * @throws StorageException if the payload could not be opened
+	 * @throws IOException if the compressed header is invalid
+	 */
+	public static InputStream open(Payload payload) throws StorageException,
+			IOException {
+		return decode(payload.open());
+	}
+
+	/**
+	 * Wrap a stream which may be gzip compressed so that it reads the
+	 * uncompressed content.
+	 *
+	 * @param in the stored content
+	 * @return the uncompressed content; closing it closes <code>in</code>
+	 * @throws IOException if the stream could not be read
+	 */
+	public static InputStream decode(InputStream in) throws IOException {
+		BufferedInputStream buffered = new BufferedInputStream(in);
+		try {
+			if (InputFormat.detect(buffered) == InputFormat.GZIP) {
+				return InputFormat.GZIP.decompress(buffered);
+			}
+		} catch (IOException e) {
+			IOUtils.closeQuietly(buffered);
+			throw e;
+		}
+		return buffered;
+	}
+
+	/**
+	 * Read and parse a JSON payload.
+	 *
+	 * @param payload the payload
+	 * @return the parsed JSON
+	 * @throws StorageException if the payload could not be opened
+	 * @throws IOException if the payload is not valid (compressed) JSON
+	 */
+	public static JsonSimple readJson(Payload payload)
+			throws StorageException, IOException {
+		InputStream in = open(payload);
+		try {
+			return new JsonSimple(in);
+		} finally {
+			IOUtils.closeQuietly(in);
+		}
+	}
+}
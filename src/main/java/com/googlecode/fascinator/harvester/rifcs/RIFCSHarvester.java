@@ -1,51 +1,35 @@
 package com.googlecode.fascinator.harvester.rifcs;
 
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.text.ParseException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
 
-import org.ands.rifcs.base.AccessPolicy;
-import org.ands.rifcs.base.Activity;
-import org.ands.rifcs.base.Address;
-import org.ands.rifcs.base.AddressPart;
-import org.ands.rifcs.base.CitationInfo;
-import org.ands.rifcs.base.Collection;
-import org.ands.rifcs.base.Coverage;
-import org.ands.rifcs.base.Description;
-import org.ands.rifcs.base.Electronic;
-import org.ands.rifcs.base.ExistenceDate;
-import org.ands.rifcs.base.Identifier;
-import org.ands.rifcs.base.Location;
-import org.ands.rifcs.base.Name;
-import org.ands.rifcs.base.NamePart;
-import org.ands.rifcs.base.Party;
-import org.ands.rifcs.base.Physical;
-import org.ands.rifcs.base.RIFCS;
-import org.ands.rifcs.base.RIFCSElement;
-import org.ands.rifcs.base.RIFCSException;
-import org.ands.rifcs.base.RIFCSWrapper;
 import org.ands.rifcs.base.RegistryObject;
-import org.ands.rifcs.base.RelatedInfo;
-import org.ands.rifcs.base.RelatedObject;
-import org.ands.rifcs.base.Relation;
-import org.ands.rifcs.base.Right;
-import org.ands.rifcs.base.Service;
-import org.ands.rifcs.base.Subject;
-import org.ands.rifcs.ch.RIFCSReader;
 import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.io.IOUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.w3c.dom.Document;
 
+import com.googlecode.fascinator.api.PluginException;
 import com.googlecode.fascinator.api.harvester.HarvesterException;
 import com.googlecode.fascinator.api.storage.DigitalObject;
 import com.googlecode.fascinator.api.storage.Payload;
@@ -53,18 +37,140 @@ import com.googlecode.fascinator.api.storage.StorageException;
 import com.googlecode.fascinator.common.JsonObject;
 import com.googlecode.fascinator.common.JsonSimple;
 import com.googlecode.fascinator.common.harvester.impl.GenericHarvester;
-import com.googlecode.fascinator.common.storage.StorageUtils;
 
 /**
  * Harvester for RIF-CS xml files.
  * <p>
  * Configuration options:
  * <ul>
- * <li>fileLocation: The location of the csv file (required)</li>
+ * <li>fileLocation: The location of the RIF-CS file, a directory of RIF-CS
+ * files, or a pattern such as "/data/parties-*.xml" matching several files.
+ * Only the files in a directory ending in ".xml", ".xml.gz", ".xml.xz" or
+ * ".zip" are read (required)</li>
+ * <li>fileName: The file name used to generate object IDs, only for a single
+ * file, and not for a zip archive of several files (defaults to the name of
+ * the file)</li>
+ * <li>fileThreads: The number of files read at the same time (defaults to
+ * 1)</li>
+ * <li>filedsMapping: The fields to map RIF-CS elements to, keyed by element
+ * identifiers such as "name.primary.given" or by paths from the class element
+ * such as "coverage/temporal/date[dateFrom]" or "rights/licence/@rightsUri"
+ * (see RegistryObjectMapper)</li>
+ * <li>includedFields: The mapped fields written to the record, or empty for
+ * all of them. Subjects of people are numbered, e.g. "ANZSRC_FOR_1" (defaults
+ * to all fields)</li>
+ * <li>ignoredFields: Mapped fields left out of the record. Elements mapped only
+ * to fields which are left out are not read at all. "ID" is always written, as
+ * it identifies the object (defaults to none)</li>
+ * <li>stringCacheSize: The number of slots of the table sharing values which
+ * repeat across records (groups, originating sources, types, related object
+ * keys, subjects and years) between the records in flight, 0 to turn it off.
+ * Its hit rate is reported with the harvest metrics (defaults to 4096)</li>
  * <li>payloadId: The payload identifier used to store the JSON this.data (defaults
  * to "metadata.json")</li>
+ * <li>payloadEncoding: "gzip" to store the JSON payload gzip compressed, with
+ * the content type "application/gzip", or "none" to store it as it is.
+ * {@link PayloadReader} reads either (defaults to "none")</li>
+ * <li>prettyPrint: Store the JSON payload indented, for reading while
+ * debugging. Otherwise it is stored compact, serialised as storage reads it
+ * (defaults to false)</li>
+ * <li>streaming: Read the file one registry object at a time instead of
+ * loading the whole document into memory first. Only the sections of each
+ * registry object with a mapped element are read; the rest (e.g. coverage) are
+ * skipped by the parser (defaults to false)</li>
+ * <li>batchSize: The maximum number of objects returned by each call to
+ * getObjectIdList(), 0 for all of them in one call (defaults to 0)</li>
+ * <li>threads: The number of threads mapping registry objects to JSON, only
+ * used in streaming mode. Records are still stored in source order, so the
+ * output is the same as with a single thread (defaults to 1)</li>
+ * <li>incremental: Store a fingerprint of each registry object in the object
+ * metadata, and skip records whose fingerprint has not changed since the last
+ * harvest. The fingerprint also covers the mapping and the options deciding
+ * how the payload is stored, so changing them stores every record again. In
+ * streaming mode the fingerprint only covers the sections which are read
+ * (defaults to false)</li>
+ * <li>mergeMode: "merge" to merge the new JSON into an existing payload, or
+ * "replace" to overwrite it without reading it first (defaults to
+ * "merge")</li>
+ * <li>storageThreads: The number of threads writing records to storage, 0
+ * to store each record on the harvest thread as soon as it is mapped. Not
+ * used when the harvest is given writer threads shared with other harvests,
+ * see {@link #setStorageWriterPool(StorageWriterPool)} (defaults to 0)</li>
+ * <li>storageQueueSize: The maximum number of mapped records waiting for the
+ * storage threads; mapping pauses while the queue is full (defaults to
+ * 1000)</li>
+ * <li>maxInFlightRecords: The most records held between reading and storage
+ * at a time, counting those queued by the file reading threads, those being
+ * mapped and those queued for the storage threads. Reading pauses while the
+ * limit is reached. Each file reading thread may hold one more record it is
+ * waiting to queue (no limit by default)</li>
+ * <li>maxInFlightBytes: The most memory, in bytes, held by records between
+ * reading and storage, estimated from the size of their xml. Only bounds
+ * memory in streaming mode, as otherwise the whole document is held, and does
+ * not cover the record each file reading thread is waiting to queue (no limit
+ * by default)</li>
+ * <li>dryRun: Read and map every record but store nothing, to measure
+ * throughput or try out a mapping. Records are counted as not stored (dry
+ * run) rather than stored, no object IDs are returned, and checkpoints and
+ * manifests are not used. The harvest summary reports records and megabytes
+ * read per second (defaults to false)</li>
+ * <li>dryRunOutput: A file to write the mapped records of a dry run to, as
+ * one JSON object per line with the object ID, data and metadata (none by
+ * default)</li>
+ * <li>skipFailedRecords: Skip records which are rejected by the RIF-CS object
+ * model, or can not be mapped (e.g. an unknown class element) or stored,
+ * rather than stopping the harvest. They are counted as failed in the harvest
+ * metrics, and any earlier objects of their file are not reported as
+ * vanished. Errors in the xml itself still stop the harvest (defaults to
+ * false)</li>
+ * <li>deadLetterFile: A file to write the skipped records to, as one JSON
+ * object per line with the file, the registry object key, the error and the
+ * registry object's xml (none by default)</li>
+ * <li>maxErrorRate: The fraction of the records read which may be skipped
+ * before the harvest is stopped after all, e.g. 0.05 for 5%. Until 100
+ * records have been read it is taken as a fraction of 100, so a few early
+ * failures do not stop the harvest; 0 stops it at the first failure
+ * (defaults to 0.05)</li>
+ * <li>checkpointFile: A file to save the position of the harvest to. If the
+ * harvest stops before it is complete, the next harvest with the same
+ * configuration and parse mode carries on after the last record stored,
+ * unless a source file has changed size or modification time since. The file
+ * is removed once the harvest completes (no checkpoints by default)</li>
+ * <li>checkpointInterval: The number of records stored between checkpoints;
+ * a checkpoint is also saved at the end of every batch (defaults to
+ * 1000)</li>
+ * <li>relationshipIndex: A file to write the relationships between the
+ * harvested objects to, with the key of every related object resolved to its
+ * object ID, as one JSON object per line. Not written when a harvest resumes
+ * from a checkpoint (none by default)</li>
+ * <li>relationshipIndexMemory: The number of objects and relations the
+ * relationship index keeps in memory before spilling them to sorted files next
+ * to the index (defaults to 100000)</li>
+ * <li>manifestDirectory: A directory to keep a manifest of the object IDs
+ * harvested from each source file in. When a harvest completes, objects in
+ * the manifest of a file which were not harvested from it again are reported
+ * as vanished. Not used when a harvest resumes from a checkpoint (no manifests
+ * by default)</li>
+ * <li>deleteMissing: Return vanished objects from getDeletedObjectIdList() so
+ * they are deleted, rather than only logging them. The manifests are updated
+ * once every vanished object has been handed out; objects which are only
+ * logged stay in the manifests until they are deleted (defaults to
+ * false)</li>
+ * <li>manifestMemory: The number of object IDs of each file kept in memory
+ * before they are spilled to sorted files in the manifest directory (defaults
+ * to 1000000)</li>
  * </ul>
  * <p>
+ * While harvesting, counters and latencies for reading, mapping and storing
+ * records are available over JMX as
+ * "com.googlecode.fascinator.harvester.rifcs:type=HarvestMetrics", and are
+ * logged when the harvest finishes.
+ * <p>
+ * Files may be gzip or xz compressed, or zip archives holding one RIF-CS
+ * document per entry; they are decompressed while being read. Object IDs are
+ * generated from the file name without the ".gz"/".xz" extension, or from the
+ * entry name for zip archives.
+ * <p>
  * This plugin is written based on RIF-CS schema version 1.3
  * <p>
  * Based on Greg Pendlebury's CallistaHarvester.
@@ -74,15 +180,59 @@ import com.googlecode.fascinator.common.storage.StorageUtils;
  */
 public class RIFCSHarvester extends GenericHarvester {
 
-	private RIFCSReader rifcsReader;
-	private String filename;
-	private RIFCS rifcs;
+	private String fileNameOverride;
+	private boolean streaming;
+	private MultiFileRegistryObjectSource source;
 	private boolean hasMore;
-	private int currentId = 1;
+	private int batchSize;
+	private int threads;
+	private ExecutorService mappingPool;
+	private StorageWriterPipeline writerPipeline;
+	private StorageWriterPool sharedWriterPool;
 	private Logger log = LoggerFactory.getLogger(RIFCSHarvester.class);
 	private String payloadId;
+	private boolean prettyPrint;
+	private boolean gzipPayload;
+	private boolean dryRun;
+	private DryRunSink dryRunSink;
+	private boolean skipFailedRecords;
+	private double maxErrorRate;
+	private DeadLetterSink deadLetterSink;
 	private static final String DEFAULT_PAYLOAD_ID = "metadata.json";
 
+	/** Object metadata property holding the registry object fingerprint */
+	private static final String FINGERPRINT_PROPERTY = "rifcs-fingerprint";
+
+	/** How many records each mapping thread may have queued or in progress */
+	private static final int PENDING_RECORDS_PER_THREAD = 4;
+
+	/** How many records may wait for the storage writers by default */
+	private static final int DEFAULT_STORAGE_QUEUE_SIZE = 1000;
+
+	/** How many records are stored between checkpoints by default */
+	private static final int DEFAULT_CHECKPOINT_INTERVAL = 1000;
+
+	/** How many index entries are kept in memory by default */
+	private static final int DEFAULT_RELATIONSHIP_INDEX_MEMORY = 100000;
+
+	/** How many object IDs of each file are kept in memory by default */
+	private static final int DEFAULT_MANIFEST_MEMORY = 1000000;
+
+	/** The class element child holding related objects */
+	private static final String RELATED_OBJECT = "relatedObject";
+
+	/** The fraction of records which may fail by default */
+	private static final double DEFAULT_MAX_ERROR_RATE = 0.05;
+
+	/** The fewest records the error rate is measured over */
+	private static final int ERROR_RATE_MIN_RECORDS = 100;
+
+	/** How many repeated values are canonicalised by default */
+	private static final int DEFAULT_STRING_CACHE_SIZE = 4096;
+
+	/** Numbers the harvesters in this JVM, to keep their JMX names apart */
+	private static final AtomicInteger INSTANCES = new AtomicInteger();
+
 	/**
 	 * Ignored field names (column)
 	 */
@@ -93,15 +243,97 @@ public class RIFCSHarvester extends GenericHarvester {
 	 */
 	private List<String> includedFields;
 
+	/**
+	 * The mapped fields written to the record
+	 */
+	private FieldFilter fieldFilter;
+
 	/**
 	 * A prefix for generating the object's ID
 	 */
 	private String idPrefix;
 
-	private JsonSimple filedsMapping = new JsonSimple();
+	/**
+	 * The compiled "filedsMapping"
+	 */
+	private RegistryObjectMapper mapper;
+
+	/**
+	 * The limit on records between reading and storage, or null
+	 */
+	private InFlightBudget budget;
+
+	/**
+	 * Canonical instances of values repeated across records, or null
+	 */
+	private StringInternTable strings;
+
+	/**
+	 * The children of the class element read in streaming mode, e.g.
+	 * "identifier"; the rest are passed over by the parser
+	 */
+	private Set<String> sections;
+
+	/**
+	 * Whether unchanged registry objects are skipped
+	 */
+	private boolean incremental;
+
+	/**
+	 * Digest of the configuration affecting the stored output, included in
+	 * every fingerprint
+	 */
+	private String configFingerprint;
+
+	/**
+	 * Whether existing payloads are overwritten rather than merged
+	 */
+	private boolean replacePayload;
+
+	/**
+	 * The location being harvested, for log messages
+	 */
+	private String fileLocation;
+
+	private HarvestMetrics metrics;
+
+	/**
+	 * The saved position of the harvest, or null without checkpoints
+	 */
+	private HarvestCheckpoint checkpoint;
+
+	private int checkpointInterval;
 
-	// the output json object.
-	private JsonObject data;
+	/**
+	 * Records dispatched since the last checkpoint
+	 */
+	private int sinceCheckpoint;
+
+	/**
+	 * The relationships between the harvested objects, or null
+	 */
+	private RelationshipIndex relationshipIndex;
+
+	/**
+	 * Finds objects which have gone from their source file, or null
+	 */
+	private DeletionDetector deletionDetector;
+
+	/**
+	 * Whether vanished objects are returned for deletion
+	 */
+	private boolean deleteMissing;
+
+	/**
+	 * Guards the deletion detector and relationship index, which the storage
+	 * writer threads add to
+	 */
+	private final Object writtenLock = new Object();
+
+	/**
+	 * The JMX name the metrics are registered under, or null
+	 */
+	private ObjectName metricsName;
 
 	public RIFCSHarvester() {
 		super("xml", "RIF-CS Harvester");
@@ -116,33 +348,378 @@ public class RIFCSHarvester extends GenericHarvester {
 		if (filePath == null) {
 			throw new HarvesterException("No this.data file provided!");
 		}
-		File rifcsDataFile = new File(filePath);
-		if (rifcsDataFile == null || !rifcsDataFile.exists()) {
+		List<File> rifcsDataFiles = MultiFileRegistryObjectSource
+				.listFiles(filePath);
+		if (rifcsDataFiles.isEmpty()) {
 			throw new HarvesterException("Could not find rif-cs file '"
 					+ filePath + "'");
 		}
-		
-		filename = options.getString(rifcsDataFile.getName(), "fileName");
-		
+
+		fileNameOverride = options.getString(null, "fileName");
+		if (fileNameOverride != null && rifcsDataFiles.size() > 1) {
+			log.warn("'fileName' is ignored when harvesting several files");
+			fileNameOverride = null;
+		}
+		if (fileNameOverride != null
+				&& countZipEntries(rifcsDataFiles.get(0)) > 1) {
+			// Entries of the same name would share object IDs
+			log.warn("'fileName' is ignored for a zip archive of several"
+					+ " files");
+			fileNameOverride = null;
+		}
 
 		idPrefix = options.getString("", "recordIDPrefix");
-		ignoredFields = getStringList(options, "ignoreFields");
+		ignoredFields = new ArrayList<String>(getStringList(options,
+				"ignoredFields"));
+		// "ignoreFields" was read by earlier versions
+		ignoredFields.addAll(getStringList(options, "ignoreFields"));
 		includedFields = getStringList(options, "includedFields");
+		fieldFilter = new FieldFilter(includedFields, ignoredFields);
+
+		JsonObject mappingConfig = options.getObject("filedsMapping");
+		mapper = new RegistryObjectMapper(mappingConfig, fieldFilter);
+		incremental = options.getBoolean(false, "incremental");
+		String mergeMode = options.getString("merge", "mergeMode");
+		if (!"merge".equals(mergeMode) && !"replace".equals(mergeMode)) {
+			throw new HarvesterException("Unknown mergeMode '" + mergeMode
+					+ "', expected 'merge' or 'replace'");
+		}
+		replacePayload = "replace".equals(mergeMode);
 
-		filedsMapping = new JsonSimple(options.getObject("filedsMapping"));
-
-		rifcsReader = new RIFCSReader();
 		payloadId = options.getString(DEFAULT_PAYLOAD_ID, "payloadId");
+		int stringCacheSize = options.getInteger(DEFAULT_STRING_CACHE_SIZE,
+				"stringCacheSize");
+		strings = stringCacheSize > 0 ? new StringInternTable(stringCacheSize)
+				: null;
+		prettyPrint = options.getBoolean(false, "prettyPrint");
+		String payloadEncoding = options.getString("none", "payloadEncoding");
+		if (!"none".equals(payloadEncoding) && !"gzip".equals(payloadEncoding)) {
+			throw new HarvesterException("Unknown payloadEncoding '"
+					+ payloadEncoding + "', expected 'none' or 'gzip'");
+		}
+		gzipPayload = "gzip".equals(payloadEncoding);
+		// Everything deciding the bytes stored, so a change is written out
+		configFingerprint = DigestUtils.md5Hex(idPrefix + "\n" + mappingConfig
+				+ "\n" + includedFields + "\n" + ignoredFields + "\n"
+				+ payloadId + "\n" + mergeMode + "\n" + prettyPrint + "\n"
+				+ payloadEncoding);
+		dryRun = options.getBoolean(false, "dryRun");
+		abandonDryRunSink();
+		String dryRunOutput = options.getString(null, "dryRunOutput");
+		if (dryRun && dryRunOutput != null) {
+			dryRunSink = new DryRunSink(new File(dryRunOutput));
+		}
+		skipFailedRecords = options.getBoolean(false, "skipFailedRecords");
+		maxErrorRate = getDouble(options, DEFAULT_MAX_ERROR_RATE,
+				"maxErrorRate");
+		if (maxErrorRate < 0 || maxErrorRate > 1) {
+			throw new HarvesterException("Expected a maxErrorRate between 0"
+					+ " and 1, found " + maxErrorRate);
+		}
+		closeDeadLetterSink();
+		String deadLetterFile = options.getString(null, "deadLetterFile");
+		if (deadLetterFile != null) {
+			if (skipFailedRecords) {
+				deadLetterSink = new DeadLetterSink(new File(deadLetterFile));
+			} else {
+				log.warn("'deadLetterFile' is only used with"
+						+ " 'skipFailedRecords'");
+			}
+		}
+		batchSize = options.getInteger(0, "batchSize");
+		streaming = options.getBoolean(false, "streaming");
+		threads = options.getInteger(1, "threads");
+		if (threads > 1) {
+			if (streaming) {
+				mappingPool = Executors.newFixedThreadPool(threads,
+						new MappingThreadFactory());
+			} else {
+				// A shared DOM is not safe for concurrent reads
+				log.warn("'threads' is only supported in streaming mode,"
+						+ " mapping records sequentially");
+			}
+		}
+		int storageThreads = options.getInteger(0, "storageThreads");
+		if (storageThreads > 0 || sharedWriterPool != null) {
+			int storageQueueSize = options.getInteger(
+					DEFAULT_STORAGE_QUEUE_SIZE, "storageQueueSize");
+			StorageWriterPipeline.RecordWriter recordWriter = new StorageWriterPipeline.RecordWriter() {
+				@Override
+				public String write(HarvestRecord record)
+						throws HarvesterException {
+					String oid = storeRecord(record);
+					recordWritten(record);
+					return oid;
+				}
+			};
+			if (sharedWriterPool != null) {
+				writerPipeline = new StorageWriterPipeline(recordWriter,
+						sharedWriterPool, storageQueueSize);
+			} else {
+				writerPipeline = new StorageWriterPipeline(recordWriter,
+						storageThreads, storageQueueSize);
+			}
+		}
+		String checkpointFile = options.getString(null, "checkpointFile");
+		boolean resumed = false;
+		checkpoint = null;
+		if (checkpointFile != null && dryRun) {
+			log.info("Checkpoints are not kept in a dry run");
+		} else if (checkpointFile != null) {
+			// Positions are only valid for the same files, object IDs and
+			// parse mode
+			checkpoint = new HarvestCheckpoint(new File(checkpointFile),
+					DigestUtils.md5Hex(filePath + "\n" + fileNameOverride
+							+ "\n" + configFingerprint + "\n" + streaming),
+					HarvestCheckpoint.sourceKey(rifcsDataFiles));
+			resumed = checkpoint.load();
+			checkpointInterval = options.getInteger(
+					DEFAULT_CHECKPOINT_INTERVAL, "checkpointInterval");
+			sinceCheckpoint = 0;
+		}
+		closeRelationshipIndex();
+		String relationshipIndexFile = options.getString(null,
+				"relationshipIndex");
+		if (relationshipIndexFile != null && resumed) {
+			// Records stored before the restart would be missing from it
+			log.warn("Not writing a relationship index in a resumed harvest");
+		} else if (relationshipIndexFile != null) {
+			relationshipIndex = new RelationshipIndex(new File(
+					relationshipIndexFile), options.getInteger(
+					DEFAULT_RELATIONSHIP_INDEX_MEMORY, "relationshipIndexMemory"));
+		}
+		sections = mapper.getElementNames();
+		if (relationshipIndex != null) {
+			sections.add(RELATED_OBJECT);
+		}
+		closeDeletionDetector();
+		String manifestDirectory = options.getString(null, "manifestDirectory");
+		if (manifestDirectory != null) {
+			if (resumed) {
+				// Records stored before the restart would look vanished
+				log.warn("Not looking for vanished objects in a resumed harvest");
+			} else if (dryRun) {
+				log.info("Not looking for vanished objects in a dry run");
+			} else {
+				deletionDetector = new DeletionDetector(new File(
+						manifestDirectory), options.getInteger(
+						DEFAULT_MANIFEST_MEMORY, "manifestMemory"));
+			}
+		}
+		deleteMissing = options.getBoolean(false, "deleteMissing");
+		int maxInFlightRecords = options.getInteger(0, "maxInFlightRecords");
+		long maxInFlightBytes = getLong(options, 0, "maxInFlightBytes");
+		budget = null;
+		if (maxInFlightRecords > 0 || maxInFlightBytes > 0) {
+			budget = new InFlightBudget(maxInFlightRecords, maxInFlightBytes);
+			if (!streaming) {
+				log.warn("The in-flight budget does not cover the document"
+						+ " held in memory, set 'streaming' to bound memory");
+			}
+		}
+		int fileThreads = options.getInteger(1, "fileThreads");
+		source = new MultiFileRegistryObjectSource(rifcsDataFiles,
+				fileThreads, new MultiFileRegistryObjectSource.SourceFactory() {
+					@Override
+					public RegistryObjectSource open(File file)
+							throws HarvesterException {
+						return openSource(file);
+					}
+				}, budget);
+		fileLocation = filePath;
+		metrics = new HarvestMetrics(strings, budget);
+		registerMetrics();
+		hasMore = true;
+	}
+
+	/**
+	 * Register the metrics of this harvest with the platform MBean server,
+	 * replacing those of an earlier harvest by the same harvester.
+	 */
+	private void registerMetrics() {
+		unregisterMetrics();
+		try {
+			metricsName = new ObjectName(
+					"com.googlecode.fascinator.harvester.rifcs:type=HarvestMetrics,name="
+							+ ObjectName.quote(fileLocation) + ",instance="
+							+ INSTANCES.incrementAndGet());
+			ManagementFactory.getPlatformMBeanServer().registerMBean(metrics,
+					metricsName);
+		} catch (JMException e) {
+			log.warn("Could not register harvest metrics with JMX", e);
+			metricsName = null;
+		}
+	}
+
+	private void unregisterMetrics() {
+		if (metricsName != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(
+						metricsName);
+			} catch (JMException e) {
+				log.warn("Could not unregister harvest metrics from JMX", e);
+			}
+			metricsName = null;
+		}
+	}
+
+	/**
+	 * Store records on writer threads shared with other harvests in the same
+	 * process, in place of the harvest's own "storageThreads". The pool is
+	 * not stopped when the harvest finishes. Takes effect from the next call
+	 * to init().
+	 *
+	 * @param pool the shared writer threads, or null to go back to the
+	 *            harvest's own
+	 */
+	public void setStorageWriterPool(StorageWriterPool pool) {
+		sharedWriterPool = pool;
+	}
+
+	/**
+	 * @return the metrics of the current harvest, or null before init()
+	 */
+	public HarvestMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * @param file a RIF-CS file
+	 * @return the number of documents in the file if it is a zip archive, or
+	 *         0 if it is not
+	 * @throws HarvesterException if the file could not be read
+	 */
+	private static int countZipEntries(File file) throws HarvesterException {
+		BufferedInputStream in = null;
+		try {
+			in = new BufferedInputStream(new FileInputStream(file));
+			if (InputFormat.detect(in) != InputFormat.ZIP) {
+				return 0;
+			}
+			in.close();
+			return ZipRegistryObjectSource.countEntries(file);
+		} catch (IOException e) {
+			throw new HarvesterException("Error reading rif-cs file '" + file
+					+ "'", e);
+		} finally {
+			IOUtils.closeQuietly(in);
+		}
+	}
+
+	/**
+	 * Open a registry object source for a RIF-CS file, which may be gzip or
+	 * xz compressed, or a zip archive of RIF-CS files. Compressed files are
+	 * decompressed while they are read.
+	 *
+	 * @param rifcsDataFile the RIF-CS file
+	 * @return the source
+	 * @throws HarvesterException if the file could not be opened or parsed
+	 */
+	private RegistryObjectSource openSource(File rifcsDataFile)
+			throws HarvesterException {
+		InputStream in = null;
+		InputFormat format;
 		try {
-			rifcsReader.mapToDOM(new FileInputStream(rifcsDataFile));
-			Document document = rifcsReader.getDocument();
-			RIFCSWrapper rifcsWrapper = new RIFCSWrapper(document);
-			rifcs = rifcsWrapper.getRIFCSObject();
-			hasMore = true;
-		} catch (Exception e) {
+			in = metrics.countBytesRead(new FileInputStream(rifcsDataFile));
+			BufferedInputStream buffered = new BufferedInputStream(in,
+					InputFormat.BUFFER_SIZE);
+			in = buffered;
+			format = InputFormat.detect(buffered);
+			if (format == InputFormat.ZIP) {
+				return new ZipRegistryObjectSource(in,
+						new ZipRegistryObjectSource.EntrySourceFactory() {
+							@Override
+							public RegistryObjectSource open(InputStream entry,
+									String entryName) throws HarvesterException {
+								return openSource(entry,
+										fileNameOverride != null ? fileNameOverride
+												: entryName);
+							}
+						});
+			}
+			in = format.decompress(in);
+		} catch (IOException e) {
+			IOUtils.closeQuietly(in);
 			throw new HarvesterException(e);
 		}
+		String fileName = fileNameOverride != null ? fileNameOverride
+				: format.stripExtension(rifcsDataFile.getName());
+		return openSource(in, fileName);
+	}
+
+	/**
+	 * Open a registry object source for a RIF-CS document.
+	 *
+	 * @param in the RIF-CS xml, closed by the source
+	 * @param fileName the file name used to generate object IDs
+	 * @return the source
+	 * @throws HarvesterException if the document could not be parsed
+	 */
+	private RegistryObjectSource openSource(InputStream in, String fileName)
+			throws HarvesterException {
+		int skip = checkpoint == null ? 0 : checkpoint
+				.getResumeOrdinal(fileName);
+		if (streaming) {
+			return new StreamingRegistryObjectSource(in, fileName, skip,
+					sections);
+		}
+		try {
+			return new DocumentRegistryObjectSource(in, fileName, skip);
+		} finally {
+			IOUtils.closeQuietly(in);
+		}
+	}
 
+	/**
+	 * Gets a number which may be larger than an int from a JsonSimple object.
+	 *
+	 * @param json a JsonSimple object
+	 * @param defaultValue the value if the node was not found
+	 * @param path path to the node
+	 * @return the number
+	 * @throws HarvesterException if the node is not a number
+	 */
+	private long getLong(JsonSimple json, long defaultValue, Object... path)
+			throws HarvesterException {
+		Object value = json.getPath(path);
+		if (value == null) {
+			return defaultValue;
+		}
+		if (value instanceof Number) {
+			return ((Number) value).longValue();
+		}
+		try {
+			return Long.parseLong(value.toString().trim());
+		} catch (NumberFormatException e) {
+			throw new HarvesterException("Expected a number for '"
+					+ path[path.length - 1] + "', found '" + value + "'");
+		}
+	}
+
+	/**
+	 * Gets a fractional number from a JsonSimple object.
+	 *
+	 * @param json a JsonSimple object
+	 * @param defaultValue the value if the node was not found
+	 * @param path path to the node
+	 * @return the number
+	 * @throws HarvesterException if the node is not a number
+	 */
+	private double getDouble(JsonSimple json, double defaultValue,
+			Object... path) throws HarvesterException {
+		Object value = json.getPath(path);
+		if (value == null) {
+			return defaultValue;
+		}
+		if (value instanceof Number) {
+			return ((Number) value).doubleValue();
+		}
+		try {
+			return Double.parseDouble(value.toString().trim());
+		} catch (NumberFormatException e) {
+			throw new HarvesterException("Expected a number for '"
+					+ path[path.length - 1] + "', found '" + value + "'");
+		}
 	}
 
 	/**
@@ -164,12 +741,97 @@ public class RIFCSHarvester extends GenericHarvester {
 	@Override
 	public Set<String> getObjectIdList() throws HarvesterException {
 		Set<String> objectIdList = new HashSet<String>();
-		Map<String, RegistryObject> registryObjects = rifcs
-				.getRegistryObjects();
-		for (Entry<String, RegistryObject> entry : registryObjects.entrySet()) {
-			objectIdList.add(parseRegistryObject(entry.getValue()));
+		if (!hasMore) {
+			return objectIdList;
+		}
+		LinkedList<Future<HarvestRecord>> pending = new LinkedList<Future<HarvestRecord>>();
+		int read = 0;
+		try {
+			while (batchSize <= 0 || read < batchSize) {
+				// Numbered by the source, in file order, so the generated
+				// record ids do not depend on which thread maps the record
+				if (budget != null && source.mayWait()) {
+					// The file readers may be waiting for the budget held by
+					// records only this thread can move on
+					while (!pending.isEmpty()) {
+						dispatch(waitForMapping(pending.removeFirst()),
+								objectIdList);
+					}
+				}
+				long start = System.nanoTime();
+				HarvestRecord record = source.next();
+				if (record == null) {
+					hasMore = false;
+					break;
+				}
+				metrics.recordParsed(System.nanoTime() - start);
+				read++;
+				if (budget != null && !source.isReserving()) {
+					reserve(record, pending, objectIdList);
+				}
+				if (mappingPool == null) {
+					mapRecord(record);
+					dispatch(record, objectIdList);
+				} else {
+					pending.add(submitMapping(record));
+					if (pending.size() >= threads * PENDING_RECORDS_PER_THREAD) {
+						dispatch(waitForMapping(pending.removeFirst()),
+								objectIdList);
+					}
+				}
+			}
+			// Store in source order so the output matches sequential mode
+			while (!pending.isEmpty()) {
+				dispatch(waitForMapping(pending.removeFirst()), objectIdList);
+			}
+			// Only hand out identifiers of objects which are fully stored
+			if (writerPipeline != null) {
+				writerPipeline.flush();
+				writerPipeline.drainStored(objectIdList);
+			}
+			if (!hasMore && relationshipIndex != null) {
+				writeRelationshipIndex();
+			}
+			if (!hasMore && deletionDetector != null) {
+				findVanishedObjects();
+			}
+			if (!hasMore && dryRunSink != null) {
+				dryRunSink.close();
+			}
+			if (!hasMore && metrics.getRecordsFailed() > 0) {
+				log.warn("{} records of '{}' failed and were skipped",
+						metrics.getRecordsFailed(), fileLocation);
+			}
+			if (!hasMore && deadLetterSink != null) {
+				deadLetterSink.close();
+			}
+			if (checkpoint != null) {
+				if (hasMore) {
+					saveCheckpoint();
+				} else {
+					checkpoint.delete();
+				}
+			}
+		} catch (HarvesterException e) {
+			hasMore = false;
+			for (Future<HarvestRecord> future : pending) {
+				future.cancel(true);
+			}
+			// An unfinished harvest says nothing about vanished objects
+			closeDeletionDetector();
+			throw e;
+		} finally {
+			if (!hasMore) {
+				source.close();
+				shutdownMappingPool();
+				shutdownWriterPipeline();
+				closeRelationshipIndex();
+				abandonDryRunSink();
+				closeDeadLetterSink();
+				log.info(dryRun ? "Dry run of '{}' finished: {}"
+						: "Harvest of '{}' finished: {}", fileLocation, metrics);
+			}
 		}
-		hasMore = false;
 		if (objectIdList.size() > 0) {
 			log.debug("Created {} objects", objectIdList.size());
 		}
@@ -177,853 +839,575 @@ public class RIFCSHarvester extends GenericHarvester {
 	}
 
 	/**
-	 * Obtain the registry object of rif-cs xml
-	 * 
-	 * @param registryObject
-	 * @throws HarvesterException
+	 * Take a record's share of the in-flight budget. While it is exhausted
+	 * the oldest records waiting for the mapping threads are stored first, as
+	 * only this thread can move them on; after that it waits for the storage
+	 * writers.
+	 *
+	 * @param record the record read
+	 * @param pending the records being mapped, oldest first
+	 * @param objectIdList the identifiers of the objects stored
+	 * @throws HarvesterException if a record could not be stored, or the wait
+	 *             was interrupted
 	 */
-	private String parseRegistryObject(RegistryObject registryObject)
+	private void reserve(HarvestRecord record,
+			LinkedList<Future<HarvestRecord>> pending, Set<String> objectIdList)
 			throws HarvesterException {
-		String recordId = Integer.toString(currentId++);
-		
-		this.data = new JsonObject();
-		try {
-			this.data.put("group", registryObject.getGroup());
-			this.data.put("key", registryObject.getKey());
-			this.data.put("originatingSource",
-					registryObject.getOriginatingSource());
-			RIFCSElement element = registryObject.getClassObject();			
-			parseRIFCSElement(element);
-		} catch (RIFCSException e) {
-			throw new HarvesterException(e);
-		}
-		log.debug(this.data.toString());
-		JsonObject meta = new JsonObject();
-		if (this.data.containsKey("ID")) {
-		    recordId = this.data.get("ID").toString();
+		budget.measure(record);
+		while (!budget.tryAcquire(record.getSize())) {
+			if (pending.isEmpty()) {
+				try {
+					budget.acquire(record.getSize());
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new HarvesterException(
+							"Interrupted while waiting for records to be stored",
+							e);
+				}
+				return;
+			}
+			dispatch(waitForMapping(pending.removeFirst()), objectIdList);
 		}
-		meta.put("dc.identifier", idPrefix + recordId);
+	}
 
-		String oid = DigestUtils.md5Hex(filename
-				+ idPrefix + recordId);
-		storeJsonInObject(this.data, meta, oid);
-		return oid;
+	/**
+	 * Map a record on the mapping pool.
+	 *
+	 * @param record the record to map
+	 * @return the pending result
+	 */
+	private Future<HarvestRecord> submitMapping(final HarvestRecord record) {
+		return mappingPool.submit(new Callable<HarvestRecord>() {
+			@Override
+			public HarvestRecord call() throws HarvesterException {
+				mapRecord(record);
+				return record;
+			}
+		});
 	}
 
 	/**
-	 * Get the child element of registry object which consists of one of
-	 * Activity, Collection, Party, or Service.
-	 * 
-	 * @param element
-	 * @throws HarvesterException
+	 * Wait for a record to be mapped on the mapping pool.
+	 *
+	 * @param future the pending result
+	 * @return the mapped record
+	 * @throws HarvesterException if the mapping failed or was interrupted
 	 */
-	private void parseRIFCSElement(RIFCSElement element) throws HarvesterException {
-		if (element instanceof Activity) {
-			Activity activity = (Activity) element;
-
-			parseElement(activity.getType(), activity.getIdentifiers(),
-					activity.getNames(), activity.getLocations(),
-					activity.getRelatedObjects(),
-					activity.getSubjects(), activity.getDescriptions(),
-					activity.getCoverage(), activity.getRelatedInfo(),
-					activity.getRights(), activity.getExistenceDates(),
-					null, null);
-
-		} else if (element instanceof Collection) {
-			Collection collection = (Collection) element;
-
-			parseElement(collection.getType(),
-					collection.getIdentifiers(), collection.getNames(),
-					collection.getLocations(),
-					collection.getRelatedObjects(),
-					collection.getSubjects(),
-					collection.getDescriptions(),
-					collection.getCoverage(),
-					collection.getRelatedInfo(),
-					collection.getRightsList(), null,
-					collection.getCitationInfos(), null);
-		} else if (element instanceof Party) {
-			Party party = (Party) element;
-
-			parseElement(party.getType(), party.getIdentifiers(),
-					party.getNames(), party.getLocations(),
-					party.getRelatedObjects(), party.getSubjects(),
-					party.getDescriptions(), party.getCoverage(),
-					party.getRelatedInfo(), party.getRights(),
-					party.getExistenceDates(), null, null);
-		}
-		else if (element instanceof Service) {
-			Service service = (Service) element;
-
-			parseElement(service.getType(), service.getIdentifiers(),
-					service.getNames(), service.getLocations(),
-					service.getRelatedObjects(), service.getSubjects(),
-					service.getDescriptions(), service.getCoverage(),
-					service.getRelatedInfo(), service.getRights(),
-					service.getExistenceDates(), null,
-					service.getAccessPolicies());
-		}
-		else {
-			throw new HarvesterException(
-					"Wrong element found, only supports activity, collection, party, or service");
+	private HarvestRecord waitForMapping(Future<HarvestRecord> future)
+			throws HarvesterException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new HarvesterException("Interrupted while mapping records",
+					e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof HarvesterException) {
+				throw (HarvesterException) e.getCause();
+			}
+			throw new HarvesterException(e.getCause());
 		}
 	}
 
-	private void parseElement(String type, List<Identifier> identifiers,
-			List<Name> names, List<Location> locations,
-			List<RelatedObject> relatedObjects, List<Subject> subjects,
-			List<Description> descriptions, List<Coverage> coverages,
-			List<RelatedInfo> relatedInfos, List<Right> rights,
-			List<ExistenceDate> existenceDates,
-			List<CitationInfo> citationInfos, List<AccessPolicy> accessPolicies) {
-
-		// get the type for rifcs element
-		if (type != null && !type.isEmpty()) {
-			this.data.put("type", type);
+	/**
+	 * Store a mapped record, or queue it for the storage writers.
+	 *
+	 * @param record the mapped record
+	 * @param objectIdList the identifiers of the objects stored
+	 * @throws HarvesterException if the record could not be stored
+	 */
+	private void dispatch(HarvestRecord record, Set<String> objectIdList)
+			throws HarvesterException {
+		if (record.getError() != null) {
+			dispatchFailed(record);
+			return;
 		}
-
-		// get the identifiers for rifcs element
-		if (identifiers != null && !identifiers.isEmpty()) {
-			parseIdentifiersForRIFCSElement(identifiers);
+		if (writerPipeline == null) {
+			addStored(objectIdList, storeRecord(record));
+			recordWritten(record);
+		} else {
+			writerPipeline.submit(record);
 		}
-
-		// get names and nameparts for rifcs element
-		if (names != null && !names.isEmpty()) {
-			parseNamesForRIFCSElement(names);
+		if (checkpoint != null) {
+			checkpoint.dispatched(record);
+			if (++sinceCheckpoint >= checkpointInterval) {
+				saveCheckpoint();
+			}
 		}
+	}
 
-		// get locations for rifcs element
-		if (locations != null && !locations.isEmpty()) {
-			parseLocationsForRIFCSElement(locations);
+	/**
+	 * Note the object of a record once its write has finished, on whichever
+	 * thread wrote it. A record whose storage failed and was skipped is
+	 * treated like one which could not be mapped, as its object may not
+	 * exist.
+	 *
+	 * @param record the record written
+	 * @throws HarvesterException if a manifest or the relationship index could
+	 *             not spill to disk
+	 */
+	private void recordWritten(HarvestRecord record) throws HarvesterException {
+		synchronized (writtenLock) {
+			if (record.getError() != null) {
+				if (deletionDetector != null) {
+					deletionDetector.incomplete(record.getFileName());
+				}
+				return;
+			}
+			if (deletionDetector != null) {
+				deletionDetector.add(record.getFileName(), record.getOid());
+			}
+			if (relationshipIndex != null) {
+				relationshipIndex.addObject(record.getRegistryObject()
+						.getKey(), record.getOid());
+				relationshipIndex.addEdges(record.getOid(), record.getEdges());
+			}
 		}
+	}
 
-		// get the related objects for rifcs element
-		if (relatedObjects != null && !relatedObjects.isEmpty()) {
-			parseRelatedObjectsForRIFCSElement(relatedObjects);
+	/**
+	 * Skip a record which could not be mapped, keeping the harvest's position
+	 * moving past it.
+	 *
+	 * @param record the record
+	 * @throws HarvesterException if too many records have failed, or the
+	 *             record could not be written to the dead letter file
+	 */
+	private void dispatchFailed(HarvestRecord record)
+			throws HarvesterException {
+		if (budget != null) {
+			budget.release(record.getSize());
 		}
-
-		// get the subjects for rifcs element
-		if (subjects != null && !subjects.isEmpty()) {
-			boolean isMultiple = "person".equals(type);
-			parseSubjectsForRIFCSElement(subjects, isMultiple);
+		if (deletionDetector != null) {
+			// Its object, if it has one, can not be told from a vanished one
+			deletionDetector.incomplete(record.getFileName());
 		}
-
-		// get the descriptions for rifcs element
-		if (descriptions != null && !descriptions.isEmpty()) {
-			parseDescriptionsForRIFCSElement(descriptions);
+		if (checkpoint != null) {
+			checkpoint.dispatched(record);
+			if (++sinceCheckpoint >= checkpointInterval) {
+				saveCheckpoint();
+			}
 		}
+		skipFailed(record, record.getError());
+	}
 
-		// get the related info for rifcs element
-		if (relatedInfos != null && !relatedInfos.isEmpty()) {
-			parseRelatedInfosForRIFCSElement(relatedInfos);
+	/**
+	 * Record a failed record as skipped, unless too many have failed.
+	 *
+	 * @param record the record
+	 * @param error why it failed
+	 * @throws HarvesterException if too many records have failed, or the
+	 *             record could not be written to the dead letter file
+	 */
+	private void skipFailed(HarvestRecord record, Throwable error)
+			throws HarvesterException {
+		log.warn("Skipping record " + record.getOrdinal() + " of '"
+				+ record.getFileName() + "'", error);
+		if (deadLetterSink != null) {
+			deadLetterSink.write(record, error);
 		}
-
-		// get the existance dates for rifcs element
-		if (existenceDates != null && !existenceDates.isEmpty()) {
-			parseExistenceDatesForRIFCSElement(existenceDates);
+		long read = metrics.getRecordsParsed();
+		long failed = metrics.getRecordsFailed();
+		if (failed > maxErrorRate * Math.max(read, ERROR_RATE_MIN_RECORDS)) {
+			throw new HarvesterException(failed + " of " + read
+					+ " records have failed, more than the maxErrorRate of "
+					+ maxErrorRate, error);
 		}
-
-//		// get the coverages for rifcs element
-//		if (coverages != null && !coverages.isEmpty()) {
-//			parseCoveragesForRIFCSElement(coverages);
-//		}
-
-//		// get the right for rifcs element
-//		if (rights != null && !rights.isEmpty()) {
-//			parseRightsForRIFCSElement(rights);
-//		}
-
-//		// get the citation info for rifcs element
-//		if (citationInfos != null && !citationInfos.isEmpty()) {
-//			parseCitationInfosForRIFCSElement(citationInfos);
-//		}
-
-//		// get the access policy for rifcs element
-//		if (accessPolicies != null && !accessPolicies.isEmpty()) {
-//			parseAccessPoliciesForRIFCSElement(accessPolicies);
-//		}
 	}
 
-	// ========= Identifiers =============
-
 	/**
-	 * Obtaining identifiers (included in the mapping) element
-	 * of the rif-cs xml，and set the value into output json object.
-	 * 
-	 * @param identifiers all the identifiers
+	 * Save the position of the harvest, once every record dispatched so far
+	 * has been stored.
+	 *
+	 * @throws HarvesterException if a record could not be stored or the
+	 *             checkpoint could not be saved
 	 */
-	@SuppressWarnings("unchecked")
-	private void parseIdentifiersForRIFCSElement(List<Identifier> identifiers) {
-
-		for (Identifier identifier : identifiers) {
-			String key = "identifier." + identifier.getType();
-			String csvFieldName = filedsMapping.getString("",key);
-			if(!"".equals(csvFieldName)) {
-				this.data.put(csvFieldName, identifier.getValue());
-			}
+	private void saveCheckpoint() throws HarvesterException {
+		if (writerPipeline != null) {
+			writerPipeline.flush();
 		}
+		checkpoint.save();
+		sinceCheckpoint = 0;
 	}
 
-	// ========= Name and NamePart =============
 	/**
-	 * Obtaining names element of the rif-cs xml
+	 * Resolve the related object keys of the harvest and write the
+	 * relationship index.
 	 *
-	 * @param names
+	 * @throws HarvesterException if the index could not be written
 	 */
-	private void parseNamesForRIFCSElement(List<Name> names) {
-		for (Name name : names) {
-			String nameType = name.getType();
-
-			List<NamePart> nameParts = name.getNameParts();
-			for (NamePart namePart : nameParts) {
-				StringBuffer key = new StringBuffer();
-				key.append("name.");
-				key.append(nameType);
-
-				String subType = namePart.getType();
-				if(subType != null && !"".equals(subType)) {
-					key.append(".");
-					key.append(subType);
-				}
-
-				String csvFieldName = filedsMapping.getString("",key.toString());
-				if (!"".equals(csvFieldName)) {
-					this.data.put(csvFieldName, namePart.getValue());
-				}
+	private void writeRelationshipIndex() throws HarvesterException {
+		long resolved = relationshipIndex.write();
+		log.info("Relationship index: {} objects, {} relations, {} resolved",
+				new Object[] { relationshipIndex.getObjects(),
+						relationshipIndex.getEdges(), resolved });
+	}
 
+	/**
+	 * Compare the harvest with the manifests of the earlier harvests. Vanished
+	 * objects are kept for getDeletedObjectIdList() if they are to be deleted,
+	 * and otherwise kept in the manifests so a later harvest can delete them.
+	 *
+	 * @throws HarvesterException if the manifests could not be updated
+	 */
+	private void findVanishedObjects() throws HarvesterException {
+		long vanished = deletionDetector.finish(deleteMissing);
+		if (!deleteMissing) {
+			if (vanished > 0) {
+				log.warn("{} objects have vanished from '{}', set"
+						+ " 'deleteMissing' to delete them", vanished,
+						fileLocation);
 			}
+			closeDeletionDetector();
 		}
 	}
 
-	// ========= Locations =============
+	private void closeDeletionDetector() {
+		if (deletionDetector != null) {
+			deletionDetector.close();
+			deletionDetector = null;
+		}
+	}
 
 	/**
-	 * Obtaining locations element of the rif-cs xml
-	 *
-	 * @param locations
+	 * Close the dead letter file, keeping what was written.
 	 */
-	@SuppressWarnings("unchecked")
-	private void parseLocationsForRIFCSElement(List<Location> locations) {
-		for (Location location : locations) {
-
-			if (location.getAddresses() != null
-					&& !location.getAddresses().isEmpty()) {
-				for (Address address : location.getAddresses()) {
-					parseAddressForRIFCSElement(address);
-				}
+	private void closeDeadLetterSink() {
+		if (deadLetterSink != null) {
+			try {
+				deadLetterSink.close();
+			} catch (HarvesterException e) {
+				log.warn("Error closing dead letter file", e);
 			}
+			deadLetterSink = null;
 		}
 	}
 
 	/**
-	 * Get the address for location element
-	 *
-	 * @param address
-	 * @return {@link JsonObject}
+	 * Close the dry run output after a failure, keeping what was written.
 	 */
-	@SuppressWarnings("unchecked")
-	private void parseAddressForRIFCSElement(Address address) {
-		if (address.getElectronics() != null
-				&& !address.getElectronics().isEmpty()) {
-			for (Electronic electronic : address.getElectronics()) {
-				parseElectronicForRIFCSElement(electronic);
+	private void abandonDryRunSink() {
+		if (dryRunSink != null) {
+			try {
+				dryRunSink.close();
+			} catch (HarvesterException e) {
+				log.warn("Error closing dry run output", e);
 			}
+			dryRunSink = null;
 		}
-		if (address.getPhysicalAddresses() != null
-				&& !address.getPhysicalAddresses().isEmpty()) {
-			for (Physical physical : address.getPhysicalAddresses()) {
-				parsePhysicalForRIFCSElement(physical);
-			}
+	}
+
+	private void closeRelationshipIndex() {
+		if (relationshipIndex != null) {
+			relationshipIndex.close();
+			relationshipIndex = null;
+		}
+	}
+
+	private void shutdownWriterPipeline() {
+		if (writerPipeline != null) {
+			writerPipeline.shutdown();
+			writerPipeline = null;
 		}
 	}
 
+	private void shutdownMappingPool() {
+		if (mappingPool != null) {
+			mappingPool.shutdownNow();
+			mappingPool = null;
+		}
+	}
+
+	@Override
+	public void shutdown() throws PluginException {
+		if (source != null) {
+			source.close();
+		}
+		shutdownMappingPool();
+		shutdownWriterPipeline();
+		closeRelationshipIndex();
+		closeDeletionDetector();
+		abandonDryRunSink();
+		closeDeadLetterSink();
+		unregisterMetrics();
+		super.shutdown();
+	}
+
 	/**
-	 * Get the electronic address for address element
+	 * Map a record, keeping the error with the record instead of throwing it
+	 * if failed records are skipped. A record rejected as it was read only
+	 * counts as failed.
 	 *
-	 * @param electronic
+	 * @param record the record to map
+	 * @throws HarvesterException if the record could not be mapped and failed
+	 *             records are not skipped
 	 */
-	@SuppressWarnings("unchecked")
-	private void parseElectronicForRIFCSElement(Electronic electronic) {
-		if (!electronic.getType().isEmpty()) {
-			String key = "location.address.electronic." + electronic.getType();
-			String csvFieldName = filedsMapping.getString("",key);
-			if(!"".equals(csvFieldName)) {
-				this.data.put(csvFieldName, electronic.getValue());
+	private void mapRecord(HarvestRecord record) throws HarvesterException {
+		Throwable error = record.getError();
+		if (error != null) {
+			// Rejected by the RIF-CS object model as it was read
+			metrics.recordFailed();
+			if (skipFailedRecords) {
+				return;
+			}
+			if (error instanceof HarvesterException) {
+				throw (HarvesterException) error;
 			}
+			throw new HarvesterException(error);
+		}
+		if (!skipFailedRecords) {
+			parseRegistryObject(record);
+			return;
+		}
+		try {
+			parseRegistryObject(record);
+		} catch (HarvesterException e) {
+			record.setError(e);
+		} catch (RuntimeException e) {
+			metrics.recordFailed();
+			record.setError(e);
 		}
 	}
 
 	/**
-	 * Get physical address for address element
-	 *
-	 * @param physical
-	 * @return {@link JsonObject}
+	 * Map the registry object of a record to its JSON data and metadata. Only
+	 * the record itself is written to, so records may be mapped concurrently.
+	 * 
+	 * @param record the record to map
+	 * @throws HarvesterException
 	 */
-	@SuppressWarnings("unchecked")
-	private void parsePhysicalForRIFCSElement(Physical physical) {
-		for (AddressPart addressPart : physical.getAddressParts()) {
-			String key = "location.address.physical." + addressPart.getType();
-			String csvFieldName = filedsMapping.getString("",key);
-			if (!"".equals(csvFieldName)) {
-				this.data.put(csvFieldName, addressPart.getValue());
-			}
+	void parseRegistryObject(HarvestRecord record)
+			throws HarvesterException {
+		long start = System.nanoTime();
+		RegistryObject registryObject = record.getRegistryObject();
+		String recordId = Integer.toString(record.getOrdinal());
+
+		if (incremental) {
+			record.setFingerprint(RegistryObjectFingerprint.compute(
+					registryObject.getElement(), configFingerprint));
+		}
+		if (relationshipIndex != null) {
+			record.setEdges(RelationshipIndex.edges(registryObject
+					.getElement(), strings));
 		}
-	}
 
-//	/**
-//	 * Get spatial for location element
-//	 *
-//	 * @param spatial
-//	 * @return {@link JsonObject}
-//	 */
-//	private JsonObject getSpatialForRIFCSElement(Spatial spatial) {
-//		JsonObject spatialObject = new JsonObject();
-//		spatialObject.put("type", spatial.getType());
-//		spatialObject.put("value", spatial.getValue());
-//		return spatialObject;
-//	}
-
-	// ========= Related Objects =============
+		JsonObject data = new JsonObject();
+		String rifcsClass;
+		try {
+			rifcsClass = mapper.map(registryObject.getElement(), data, strings);
+		} catch (HarvesterException e) {
+			metrics.recordFailed();
+			throw e;
+		}
+		// Only serialised when debug logging is on
+		log.debug("{}", data);
+		JsonObject meta = new JsonObject();
+		if (data.containsKey("ID")) {
+		    recordId = data.get("ID").toString();
+		}
+		meta.put("dc.identifier", idPrefix + recordId);
+
+		record.setData(data);
+		record.setMetadata(meta);
+		record.setOid(DigestUtils.md5Hex(record.getFileName() + idPrefix
+				+ recordId));
+		metrics.recordMapped(rifcsClass, System.nanoTime() - start);
+	}
 
 	/**
-	 * Obtaining related objects element of the rif-cs xml
+	 * Store a mapped record, and release its share of the in-flight budget.
 	 *
-	 * @param relatedObjects
+	 * @param record the mapped record
+	 * @return the object identifier the record was stored under, or null if
+	 *         the record is unchanged or failed, and was skipped; a record
+	 *         which failed is given the error
+	 * @throws HarvesterException if the record could not be stored and failed
+	 *             records are not skipped, or too many have failed
 	 */
-	@SuppressWarnings("unchecked")
-	private void parseRelatedObjectsForRIFCSElement(List<RelatedObject> relatedObjects) {
-		for (RelatedObject relatedObject : relatedObjects) {
-			String relatedObjectKey = relatedObject.getKey();
-			List<Relation> relations = relatedObject.getRelations();
-			for (Relation relation : relations) {
-				String relationType = relation.getType();
-				String key = "relatedObject." + relationType;
-				String csvFieldName = filedsMapping.getString("",key);
-
-				if (!"".equals(csvFieldName)) {
-//					// for isMemberOf relation.
-//					if ("isMemberOf".equalsIgnoreCase(relationType)) {
-//						csvFieldName = csvFieldName + "_" + relations.indexOf(relation) + 1;
-//					}
-
-					this.data.put(csvFieldName, relatedObjectKey);
-				}
+	private String storeRecord(HarvestRecord record) throws HarvesterException {
+		try {
+			return storeMappedRecord(record);
+		} catch (HarvesterException e) {
+			if (!skipFailedRecords) {
+				throw e;
+			}
+			record.setError(e);
+			skipFailed(record, e);
+			return null;
+		} finally {
+			if (budget != null) {
+				budget.release(record.getSize());
 			}
 		}
 	}
 
-	// ========= Subjects =============
-
 	/**
-	 * Obtaining subjects element of the rif-cs xml
+	 * Store a mapped record, unless it is unchanged.
 	 *
-	 * @param subjects
+	 * @param record the mapped record
+	 * @return the object identifier the record was stored under, or null if
+	 *         the record is unchanged and was skipped
+	 * @throws HarvesterException if the record could not be stored
 	 */
-	@SuppressWarnings("unchecked")
-	private void parseSubjectsForRIFCSElement(List<Subject> subjects, boolean isMutiple) {
-		for (Subject subject : subjects) {
-			String key = "subject." + subject.getType();
-			String csvFieldName = filedsMapping.getString("",key);
-			if (!"".equals(csvFieldName)) {
-				if(isMutiple) {
-					this.data.put(csvFieldName + "_" + (subjects.indexOf(subject) + 1), subject.getValue());
-				} else {
-					this.data.put(csvFieldName, subject.getValue());
-					break;
-				}
+	private String storeMappedRecord(HarvestRecord record)
+			throws HarvesterException {
+		long start = System.nanoTime();
+		if (dryRun) {
+			// Nothing is stored, so no identifiers are handed out either
+			if (dryRunSink != null) {
+				dryRunSink.write(record);
+			}
+			metrics.recordDryRun(System.nanoTime() - start);
+			return null;
+		}
+		try {
+			DigitalObject object = getStoredObject(record.getOid());
+			if (incremental && object != null && isUnchanged(record, object)) {
+				log.debug("Skipping unchanged object '{}'", record.getOid());
+				closeObject(object);
+				metrics.recordSkipped(System.nanoTime() - start);
+				return null;
 			}
+			storeJsonInObject(record.getData(), record.getMetadata(),
+					record.getOid(), record.getFingerprint(), object);
+		} catch (HarvesterException e) {
+			metrics.recordFailed();
+			throw e;
 		}
+		metrics.recordStored(System.nanoTime() - start);
+		return record.getOid();
 	}
 
-	// ========= Descriptions =============
+	private void addStored(Set<String> objectIdList, String oid) {
+		if (oid != null) {
+			objectIdList.add(oid);
+		}
+	}
 
 	/**
-	 * Obtaining description element of the rif-cs xml
+	 * Look up an object in storage. The storage API has no existence check,
+	 * so this is the only place a missing object costs an exception.
 	 *
-	 * @param descriptions
+	 * @param oid the object identifier
+	 * @return the stored object, or null if it has not been stored yet
 	 */
-	@SuppressWarnings("unchecked")
-	private void parseDescriptionsForRIFCSElement(List<Description> descriptions) {
-		for (Description description : descriptions) {
-			String key = "description." + description.getType();
-			String csvFieldName = filedsMapping.getString("",key);
-			if(!"".equals(csvFieldName)) {
-				this.data.put(csvFieldName, description.getValue());
-			}
+	private DigitalObject getStoredObject(String oid) {
+		long start = System.nanoTime();
+		try {
+			return getStorage().getObject(oid);
+		} catch (StorageException ex) {
+			return null;
+		} finally {
+			metrics.recordStorageCall(System.nanoTime() - start);
 		}
 	}
 
-	// ========= Coverages =============
-
-//	/**
-//	 * Obtaining coverages element of the rif-cs xml
-//	 *
-//	 * @param coverages
-//	 */
-//	@SuppressWarnings("unchecked")
-//	private void parseCoveragesForRIFCSElement(List<Coverage> coverages) {
-//		if (coverages.size() == 1) {
-//			Coverage coverage = coverages.get(0);
-//			JsonObject coverageObject = getCoverageForRIFCSElement(coverage);
-//			this.data.put("coverage", coverageObject);
-//		} else {
-//			JSONArray coverageArray = new JSONArray();
-//			for (Coverage coverage : coverages) {
-//				coverageArray.add(getCoverageForRIFCSElement(coverage));
-//			}
-//			this.data.put("coverage", coverageArray);
-//		}
-//	}
-//
-//	/**
-//	 * Get the temporal and spatial for the coverage element
-//	 *
-//	 * @param coverage
-//	 * @return {@link JsonObject}
-//	 */
-//	@SuppressWarnings("unchecked")
-//	private JsonObject getCoverageForRIFCSElement(Coverage coverage) {
-//		JsonObject coverageObject = new JsonObject();
-//		if (coverage.getTemporals() != null
-//				&& !coverage.getTemporals().isEmpty()) {
-//			if (coverage.getTemporals().size() == 1) {
-//				Temporal temporal = coverage.getTemporals().get(0);
-//				JsonObject temporalObject = getTemporalForRIFCSElement(temporal);
-//				coverageObject.put("temporal", temporalObject);
-//			} else {
-//				JSONArray temporalArray = new JSONArray();
-//				for (Temporal temporal : coverage.getTemporals()) {
-//					temporalArray.add(getTemporalForRIFCSElement(temporal));
-//				}
-//				coverageObject.put("temporal", temporalArray);
-//			}
-//		}
-//		if (coverage.getSpatials() != null && !coverage.getSpatials().isEmpty()) {
-//			if (coverage.getSpatials().size() == 1) {
-//				Spatial spatial = coverage.getSpatials().get(0);
-//				JsonObject spatialObject = getSpatialForRIFCSElement(spatial);
-//				coverageObject.put("spatial", spatialObject);
-//			} else {
-//				JSONArray spatialArray = new JSONArray();
-//				for (Spatial spatial : coverage.getSpatials()) {
-//					spatialArray.add(getSpatialForRIFCSElement(spatial));
-//				}
-//				coverageObject.put("spatial", spatialArray);
-//			}
-//		}
-//		return coverageObject;
-//	}
-//
-//	/**
-//	 * Get the date and text of the temporal element
-//	 *
-//	 * @param temporal
-//	 * @return {@link JsonObject}
-//	 */
-//	@SuppressWarnings("unchecked")
-//	private JsonObject getTemporalForRIFCSElement(Temporal temporal) {
-//		JsonObject dateObject = new JsonObject();
-//		if (temporal.getDates() != null && !temporal.getDates().isEmpty()) {
-//			if (temporal.getDates().size() == 1) {
-//				TemporalCoverageDate temporalCoverageDate = temporal.getDates()
-//						.get(0);
-//				JsonObject temporalObject = getTemporalCoverageDateForRIFCSElement(temporalCoverageDate);
-//				dateObject.put("date", temporalObject);
-//			} else {
-//				JSONArray temporalArray = new JSONArray();
-//				for (TemporalCoverageDate temporalCoverageDate : temporal
-//						.getDates()) {
-//					temporalArray
-//							.add(getTemporalCoverageDateForRIFCSElement(temporalCoverageDate));
-//				}
-//				dateObject.put("date", temporalArray);
-//			}
-//		}
-//		if (temporal.getText() != null && !temporal.getText().isEmpty()) {
-//			if (temporal.getText().size() == 1) {
-//				dateObject.put("text", temporal.getText().get(0));
-//			} else {
-//				JSONArray textArray = new JSONArray();
-//				textArray.addAll(temporal.getText());
-//				dateObject.put("text", textArray);
-//			}
-//		}
-//		return dateObject;
-//	}
-//
-//	/**
-//	 * Get the date details for the temporal date element
-//	 *
-//	 * @param temporalCoverageDate
-//	 * @return {@link JsonObject}
-//	 */
-//	private JsonObject getTemporalCoverageDateForRIFCSElement(
-//			TemporalCoverageDate temporalCoverageDate) {
-//		JsonObject temporalCoverageDateObject = new JsonObject();
-//		temporalCoverageDateObject.put("type", temporalCoverageDate.getType());
-//		if (!temporalCoverageDate.DateFormat().isEmpty()) {
-//			temporalCoverageDateObject.put("dateFormat",
-//					temporalCoverageDate.DateFormat());
-//		}
-//		temporalCoverageDateObject
-//				.put("value", temporalCoverageDate.getValue());
-//		return temporalCoverageDateObject;
-//	}
-
-	// ========= Related Info =============
-
 	/**
-	 * Obtaining related info element of the rif-cs xml
+	 * Close a stored object which was only read. Its metadata is written back
+	 * as it was read.
 	 *
-	 * @param relatedInfos
+	 * @param object the stored object
 	 */
-	@SuppressWarnings("unchecked")
-	private void parseRelatedInfosForRIFCSElement(List<RelatedInfo> relatedInfos) {
-		for (RelatedInfo relatedInfo : relatedInfos) {
-			String title = relatedInfo.getTitle();
-			String key = "relatedInfo." + relatedInfo.getType() + "." + title;
-			String csvFieldName = filedsMapping.getString("",key);
-			if(!"".equals(csvFieldName)) {
-				this.data.put(csvFieldName, relatedInfo.getIdentifier().getValue());
-			}
+	private void closeObject(DigitalObject object) {
+		try {
+			object.close();
+		} catch (StorageException ex) {
+			log.warn("Error closing object '{}'", object.getId());
 		}
 	}
 
-	// ========= Rights =============
-//
-//	/**
-//	 * Obtaining right element of the rif-cs xml
-//	 *
-//	 * @param rights
-//	 */
-//	@SuppressWarnings("unchecked")
-//	private void parseRightsForRIFCSElement(List<Right> rights) {
-//		if (rights.size() == 1) {
-//			Right right = rights.get(0);
-//			JsonObject rightObject = getRightForRIFCSElement(right);
-//			this.data.put("right", rightObject);
-//		} else {
-//			JSONArray rightArray = new JSONArray();
-//			for (Right right : rights) {
-//				rightArray.add(getRightForRIFCSElement(right));
-//			}
-//			this.data.put("right", rightArray);
-//		}
-//	}
-//
-//	/**
-//	 * Get the right details for the rights element
-//	 *
-//	 * @param right
-//	 * @return {@link JsonObject}
-//	 */
-//	private JsonObject getRightForRIFCSElement(Right right) {
-//		JsonObject rightDetailsObject = new JsonObject();
-//		if (right.getRightsStatement() != null) {
-//			JsonObject rightsStatementObject = new JsonObject();
-//			RightsInfo rightsStatement = right.getRightsStatement();
-//			if (!rightsStatement.getRightsUri().isEmpty()) {
-//				rightsStatementObject.put("rightsUri",
-//						rightsStatement.getRightsUri());
-//			}
-//			rightsStatementObject.put("value", rightsStatement.getValue());
-//			rightDetailsObject.put("rightsStatement", rightsStatementObject);
-//		}
-//		if (right.getLicence() != null) {
-//			JsonObject licenseObject = new JsonObject();
-//			RightsTypedInfo rightsTypedInfo = right.getLicence();
-//			if (!rightsTypedInfo.getType().isEmpty()) {
-//				licenseObject.put("type", rightsTypedInfo.getType());
-//			}
-//			if (!rightsTypedInfo.getRightsUri().isEmpty()) {
-//				licenseObject.put("rightsUri", rightsTypedInfo.getRightsUri());
-//			}
-//			licenseObject.put("value", rightsTypedInfo.getValue());
-//			rightDetailsObject.put("license", licenseObject);
-//		}
-//		if (right.getAccessRights() != null) {
-//			JsonObject accessRightsObject = new JsonObject();
-//			RightsTypedInfo rightsTypedInfo = right.getAccessRights();
-//			if (!rightsTypedInfo.getType().isEmpty()) {
-//				accessRightsObject.put("type", rightsTypedInfo.getType());
-//			}
-//			if (!rightsTypedInfo.getRightsUri().isEmpty()) {
-//				accessRightsObject.put("rightsUri",
-//						rightsTypedInfo.getRightsUri());
-//			}
-//			accessRightsObject.put("value", rightsTypedInfo.getValue());
-//			rightDetailsObject.put("accessRights", accessRightsObject);
-//		}
-//		return rightDetailsObject;
-//	}
-
-	// ========= Existence Date =============
-
 	/**
-	 * Obtaining existence dates element of the rif-cs xml for non-collection
-	 * elements
+	 * Check whether a record's object was stored from the same registry
+	 * object content by an earlier harvest.
 	 *
-	 * @param existenceDates
+	 * @param record the mapped record
+	 * @param object the stored object
+	 * @return true if the stored fingerprint matches the record's
 	 */
-	@SuppressWarnings("unchecked")
-	private void parseExistenceDatesForRIFCSElement(List<ExistenceDate> existenceDates) {
-		W3CDateFormat dateFormat = new W3CDateFormat();
-		String startYear = "";
-		String endYear = "";
-
-		for (ExistenceDate existenceDate : existenceDates) {
-			String startDateValue = existenceDate.getStartDate().getValue();
-
-			if("".equals(startYear) || startYear.compareTo(startDateValue) >= 0) {
-				startYear = startDateValue;
-			}
-
-			String endDateValue = existenceDate.getEndDate().getValue();
-			if("".equals(endYear) || endYear.compareTo(endDateValue) <= 0) {
-				endYear = endDateValue;
-			}
-		}
-
+	private boolean isUnchanged(HarvestRecord record, DigitalObject object) {
 		try {
-			startYear = (dateFormat.parse(startYear).getYear() + 1900)+ "";
-			endYear = (dateFormat.parse(endYear).getYear() + 1900) + "";
-
-			String key1 = "existenceDates.startDate";
-			String key2 = "existenceDates.endDate";
-
-			String csvfiledName1 = filedsMapping.getString("",key1);
-			if(csvfiledName1 != null) {
-				this.data.put(csvfiledName1, startYear);
-			}
-
-			String csvfiledName2 = filedsMapping.getString("",key2);
-			if (csvfiledName2 != null) {
-				this.data.put(csvfiledName2, endYear);
-			}
-		} catch (ParseException e) {
-			e.printStackTrace();
+			return record.getFingerprint().equals(
+					object.getMetadata().getProperty(FINGERPRINT_PROPERTY));
+		} catch (StorageException ex) {
+			log.warn("Error reading metadata of '{}', storing it again",
+					record.getOid());
+			return false;
 		}
 	}
 
-	// ========= Related Info =============
-
-//	/**
-//	 * Obtaining citation info element of the rif-cs xml
-//	 *
-//	 * @param citationInfos
-//	 */
-//	@SuppressWarnings("unchecked")
-//	private void parseCitationInfosForRIFCSElement(List<CitationInfo> citationInfos) {
-//		if (citationInfos.size() == 1) {
-//			CitationInfo citationInfo = citationInfos.get(0);
-//			JsonObject citationInfosObject = getCitationInfoForRIFCSElement(citationInfo);
-//			this.data.put("citationInfo", citationInfosObject);
-//		} else {
-//			JSONArray citationInfosArray = new JSONArray();
-//			for (CitationInfo citationInfo : citationInfos) {
-//				citationInfosArray
-//						.add(getCitationInfoForRIFCSElement(citationInfo));
-//			}
-//			this.data.put("citationInfo", citationInfosArray);
-//		}
-//	}
-//
-//	/**
-//	 * Get full citation info for citation info element
-//	 *
-//	 * @param citationInfo
-//	 * @return {@link JsonObject}
-//	 */
-//	private JsonObject getCitationInfoForRIFCSElement(CitationInfo citationInfo) {
-//		JsonObject citationInfoObject = new JsonObject();
-//		if (citationInfo.getCitation() != null
-//				&& !citationInfo.getCitation().isEmpty()) {
-//			JsonObject fullCitationObject = new JsonObject();
-//			if (!citationInfo.getCitationStyle().isEmpty()) {
-//				fullCitationObject
-//						.put("style", citationInfo.getCitationStyle());
-//			}
-//			fullCitationObject.put("value", citationInfo.getCitation());
-//			citationInfoObject.put("fullCitation", fullCitationObject);
-//		}
-//		if (citationInfo.getCitationMetadata() != null) {
-//			JsonObject citationMetadataObject = getCitationMetadataForRIFCSElement(citationInfo
-//					.getCitationMetadata());
-//			citationMetadataObject.put("citationMetadata",
-//					citationMetadataObject);
-//		}
-//		return citationInfoObject;
-//	}
-//
-//	/**
-//	 * Get the citation metadata for citation info elements
-//	 *
-//	 * @param citationMetadata
-//	 * @return {@link JsonObject}
-//	 */
-//	@SuppressWarnings("unchecked")
-//	private JsonObject getCitationMetadataForRIFCSElement(
-//			CitationMetadata citationMetadata) {
-//		JsonObject citationMetaDataObject = new JsonObject();
-//
-//		Identifier identifier = citationMetadata.getIdentifier();
-//		JsonObject identifierObject = new JsonObject();
-//		identifierObject.put("value", identifier.getValue());
-//		identifierObject.put("type", identifier.getType());
-//		citationMetaDataObject.put("identifer", identifierObject);
-//
-//		if (citationMetadata.getContributors().size() == 1) {
-//			Contributor contributor = citationMetadata.getContributors().get(0);
-//			JsonObject contributorObject = getContributorForRIFCSElement(contributor);
-//			citationMetaDataObject.put("contributor", contributorObject);
-//		} else {
-//			JSONArray contributorArray = new JSONArray();
-//			for (Contributor contributor : citationMetadata.getContributors()) {
-//				contributorArray
-//						.add(getContributorForRIFCSElement(contributor));
-//			}
-//			citationMetaDataObject.put("contributor", contributorArray);
-//		}
-//
-//		citationMetaDataObject.put("title", citationMetadata.getTitle());
-//		citationMetaDataObject.put("edition", citationMetadata.getEdition());
-//		if (!citationMetadata.getPublisher().isEmpty()) {
-//			citationMetaDataObject.put("publisher",
-//					citationMetadata.getPublisher());
-//		}
-//		citationMetaDataObject.put("placePublished",
-//				citationMetadata.getPlacePublished());
-//		if (citationMetadata.getDates() != null
-//				&& !citationMetadata.getDates().isEmpty()) {
-//			if (citationMetadata.getDates().size() == 1) {
-//				CitationDate citationDate = citationMetadata.getDates().get(0);
-//				JsonObject citationDateObject = getCitationDateForRIFCSElement(citationDate);
-//				citationMetaDataObject.put("date", citationDateObject);
-//			} else {
-//				JSONArray citationDateArray = new JSONArray();
-//				for (CitationDate citationDate : citationMetadata.getDates()) {
-//					citationDateArray
-//							.add(getCitationDateForRIFCSElement(citationDate));
-//				}
-//				citationMetaDataObject.put("date", citationDateArray);
-//			}
-//		}
-//		citationMetaDataObject.put("url", citationMetadata.getURL());
-//		citationMetaDataObject.put("context", citationMetadata.getContext());
-//
-//		return citationMetaDataObject;
-//	}
-//
-//	/**
-//	 * Get citation date details for citation date element
-//	 *
-//	 * @param citationDate
-//	 * @return {@link JsonObject}
-//	 */
-//	private JsonObject getCitationDateForRIFCSElement(CitationDate citationDate) {
-//		JsonObject citationDateObject = new JsonObject();
-//		citationDateObject.put("type", citationDate.getType());
-//		citationDateObject.put("value", citationDate.getValue());
-//		return citationDateObject;
-//	}
-//
-//	/**
-//	 * Get contributor for citation metadata element
-//	 *
-//	 * @param contributor
-//	 * @return {@link JsonObject}
-//	 */
-//	@SuppressWarnings("unchecked")
-//	private JsonObject getContributorForRIFCSElement(Contributor contributor) {
-//		JsonObject contributorObject = new JsonObject();
-//		if (contributor.getNameParts().size() == 1) {
-//			NamePart namePart = contributor.getNameParts().get(0);
-//			if (namePart.getType() != null && !namePart.getType().isEmpty()) {
-//				JsonObject namePartObject = new JsonObject();
-//				namePartObject.put("type", namePart.getType());
-//				namePartObject.put("value", namePart.getValue());
-//				contributorObject.put("namePart", namePartObject);
-//			} else {
-//				contributorObject.put("namePart", namePart.getValue());
-//			}
-//		} else {
-//			JSONArray namePartArray = new JSONArray();
-//			for (NamePart namePart : contributor.getNameParts()) {
-//				JsonObject namePartObject = new JsonObject();
-//				namePartObject.put("type", namePart.getType());
-//				namePartObject.put("value", namePart.getValue());
-//				namePartArray.add(namePartObject);
-//			}
-//			contributorObject.put("namePart", namePartArray);
-//		}
-//		return contributorObject;
-//	}
-//
-//	// ========= Access Policy =============
-//
-//	/**
-//	 * Obtaining access policy element of the rif-cs xml
-//	 *
-//	 * @param accessPolicies
-//	 */
-//	@SuppressWarnings("unchecked")
-//	private void parseAccessPoliciesForRIFCSElement(List<AccessPolicy> accessPolicies) {
-//		if (accessPolicies.size() == 1) {
-//			AccessPolicy accessPolicy = accessPolicies.get(0);
-//			this.data.put("accessPolicy", accessPolicy.getValue());
-//		} else {
-//			JSONArray accessPolicyArray = new JSONArray();
-//			for (AccessPolicy accessPolicy : accessPolicies) {
-//				accessPolicyArray.add(accessPolicy.getValue());
-//			}
-//			this.data.put("accessPolicy", accessPolicyArray);
-//		}
-//	}
-
 	@Override
 	public boolean hasMoreObjects() {
 		return hasMore;
 	}
 
+	/**
+	 * Get the objects which have gone from their source file since the last
+	 * harvest, once the harvest is complete and only if "deleteMissing" is
+	 * set.
+	 *
+	 * @return the object identifiers, up to batchSize of them
+	 * @throws HarvesterException if the vanished objects could not be read
+	 */
+	@Override
+	public Set<String> getDeletedObjectIdList() throws HarvesterException {
+		if (hasMore || !hasMoreDeletedObjects()) {
+			return new HashSet<String>();
+		}
+		return deletionDetector.next(batchSize);
+	}
+
+	@Override
+	public boolean hasMoreDeletedObjects() {
+		return !hasMore && deletionDetector != null
+				&& deletionDetector.hasMore();
+	}
+
 	/**
 	 * Store the processed data and metadata in the system
 	 *
 	 * @param dataJson an instantiated JSON object containing data to store
 	 * @param metaJson an instantiated JSON object containing metadata to store
+	 * @param oid the object identifier
+	 * @param fingerprint the registry object fingerprint to record, or null
+	 * @param object the stored object, or null if it does not exist yet
 	 * @throws HarvesterException if an error occurs
 	 */
 	private void storeJsonInObject(JsonObject dataJson, JsonObject metaJson,
-								   String oid) throws HarvesterException {
-		// Does the object already exist?
-		DigitalObject object = null;
-		try {
-			object = getStorage().getObject(oid);
-			storeJsonInPayload(dataJson, metaJson, object);
-
-		} catch (StorageException ex) {
+								   String oid, String fingerprint, DigitalObject object)
+			throws HarvesterException {
+		if (object == null) {
 			// This is going to be brand new
+			long start = System.nanoTime();
 			try {
-				object = StorageUtils.getDigitalObject(getStorage(), oid);
-				storeJsonInPayload(dataJson, metaJson, object);
-			} catch (StorageException ex2) {
+				object = getStorage().createObject(oid);
+			} catch (StorageException ex) {
 				throw new HarvesterException(
-						"Error creating new digital object: ", ex2);
+						"Error creating new digital object: ", ex);
+			} finally {
+				metrics.recordStorageCall(System.nanoTime() - start);
 			}
+			createPayload(dataJson, metaJson, object);
+		} else {
+			storeJsonInPayload(dataJson, metaJson, object);
 		}
 
 		// Set the pending flag
-		if (object != null) {
-			try {
-				object.getMetadata().setProperty("render-pending", "true");
-				object.close();
-			} catch (Exception ex) {
-				log.error("Error setting 'render-pending' flag: ", ex);
+		try {
+			object.getMetadata().setProperty("render-pending", "true");
+			if (fingerprint != null) {
+				object.getMetadata().setProperty(FINGERPRINT_PROPERTY,
+						fingerprint);
 			}
+			object.close();
+		} catch (Exception ex) {
+			log.error("Error setting 'render-pending' flag: ", ex);
 		}
 	}
 
 	/**
-	 * Store the processed data and metadata in a payload
+	 * Store the processed data and metadata in the payload of an existing
+	 * object, merging it with the current payload unless the merge mode is
+	 * "replace"
 	 *
 	 * @param dataJson an instantiated JSON object containing data to store
 	 * @param metaJson an instantiated JSON object containing metadata to store
@@ -1032,64 +1416,97 @@ public class RIFCSHarvester extends GenericHarvester {
 	 */
 	private void storeJsonInPayload(JsonObject dataJson, JsonObject metaJson,
 									DigitalObject object) throws HarvesterException {
+		if (!object.getPayloadIdList().contains(payloadId)) {
+			createPayload(dataJson, metaJson, object);
+			return;
+		}
 
-		Payload payload = null;
 		JsonSimple json = new JsonSimple();
-		try {
-			// New payloads
-			payload = object.getPayload(payloadId);
-			//log.debug("Updating existing payload: '{}' => '{}'",
-			//        object.getId(), payloadId);
-
+		if (!replacePayload) {
 			// Get the old JSON to merge
+			Payload payload = null;
 			try {
-				json = new JsonSimple(payload.open());
+				payload = object.getPayload(payloadId);
+				json = PayloadReader.readJson(payload);
+			} catch (StorageException ex) {
+				throw new HarvesterException(
+						"Error reading existing payload: ", ex);
 			} catch (IOException ex) {
 				log.error("Error parsing existing JSON: '{}' => '{}'",
 						object.getId(), payloadId);
 				throw new HarvesterException(
 						"Error parsing existing JSON: ", ex);
 			} finally {
-				payload.close();
+				closePayload(payload);
 			}
+		}
 
-			// Update storage
-			try {
-				InputStream in = streamMergedJson(dataJson, metaJson, json);
-				object.updatePayload(payloadId, in);
+		// Update storage
+		Payload payload;
+		try {
+			InputStream in = streamMergedJson(dataJson, metaJson, json);
+			payload = object.updatePayload(payloadId,
+					metrics.countPayloadBytes(in));
+		} catch (IOException ex2) {
+			throw new HarvesterException(
+					"Error processing JSON data: ", ex2);
+		} catch (StorageException ex2) {
+			throw new HarvesterException(
+					"Error updating payload: ", ex2);
+		}
+		tidyPayload(payload);
+	}
 
-			} catch (IOException ex2) {
-				throw new HarvesterException(
-						"Error processing JSON data: ", ex2);
-			} catch (StorageException ex2) {
-				throw new HarvesterException(
-						"Error updating payload: ", ex2);
-			}
+	/**
+	 * Write the processed data and metadata straight into a new payload,
+	 * without looking for existing JSON to merge with
+	 *
+	 * @param dataJson an instantiated JSON object containing data to store
+	 * @param metaJson an instantiated JSON object containing metadata to store
+	 * @param object   the object to put our payload in
+	 * @throws HarvesterException if an error occurs
+	 */
+	private void createPayload(JsonObject dataJson, JsonObject metaJson,
+							   DigitalObject object) throws HarvesterException {
+		Payload payload;
+		try {
+			InputStream in = streamMergedJson(dataJson, metaJson,
+					new JsonSimple());
+			payload = object.createStoredPayload(payloadId,
+					metrics.countPayloadBytes(in));
+		} catch (IOException ex2) {
+			throw new HarvesterException(
+					"Error parsing JSON encoding: ", ex2);
+		} catch (StorageException ex2) {
+			throw new HarvesterException(
+					"Error creating new payload: ", ex2);
+		}
+		tidyPayload(payload);
+	}
 
-		} catch (StorageException ex) {
-			// Create a new Payload
+	/**
+	 * Set the MIME type of a stored payload and close it
+	 *
+	 * @param payload the payload, may be null
+	 */
+	private void tidyPayload(Payload payload) {
+		if (payload != null) {
 			try {
-				//log.debug("Creating new payload: '{}' => '{}'",
-				//        object.getId(), payloadId);
-				InputStream in = streamMergedJson(dataJson, metaJson, json);
-				payload = object.createStoredPayload(payloadId, in);
-
-			} catch (IOException ex2) {
-				throw new HarvesterException(
-						"Error parsing JSON encoding: ", ex2);
-			} catch (StorageException ex2) {
-				throw new HarvesterException(
-						"Error creating new payload: ", ex2);
+				payload.setContentType(gzipPayload ? PayloadReader.GZIP_CONTENT_TYPE
+						: PayloadReader.JSON_CONTENT_TYPE);
+				payload.close();
+			} catch (Exception ex) {
+				log.error("Error setting Payload MIME type and closing: ", ex);
 			}
 		}
+	}
 
-		// Tidy up before we finish
+	private void closePayload(Payload payload) {
 		if (payload != null) {
 			try {
-				payload.setContentType("application/json");
 				payload.close();
-			} catch (Exception ex) {
-				log.error("Error setting Payload MIME type and closing: ", ex);
+			} catch (StorageException ex) {
+				log.error("Error closing payload: ", ex);
 			}
 		}
 	}
@@ -1097,13 +1514,16 @@ public class RIFCSHarvester extends GenericHarvester {
 	/**
 	 * Merge the newly processed data with an (possible) existing data already
 	 * present, also convert the completed JSON merge into a Stream for storage.
+	 * The JSON is compact and serialised as the stream is read, unless
+	 * "prettyPrint" is on, and compressed as it is read with the "gzip"
+	 * payload encoding.
 	 *
 	 * @param dataJson an instantiated JSON object containing data to store
 	 * @param metaJson an instantiated JSON object containing metadata to store
 	 * @param existing an instantiated JsonSimple object with any existing data
 	 * @throws IOException if any character encoding issues effect the Stream
 	 */
-	private InputStream streamMergedJson(JsonObject dataJson,
+	InputStream streamMergedJson(JsonObject dataJson,
 										 JsonObject metaJson, JsonSimple existing) throws IOException {
 		// Overwrite and/or create only nodes we consider new data
 		existing.getJsonObject().put("recordIDPrefix", idPrefix);
@@ -1113,7 +1533,29 @@ public class RIFCSHarvester extends GenericHarvester {
 		existingMeta.putAll(metaJson);
 
 		// Turn into a stream to return
-		String jsonString = existing.toString(true);
-		return IOUtils.toInputStream(jsonString, "UTF-8");
+		InputStream in;
+		if (prettyPrint) {
+			String jsonString = existing.toString(true);
+			in = IOUtils.toInputStream(jsonString, "UTF-8");
+		} else {
+			in = new JsonPayloadStream(existing.getJsonObject());
+		}
+		return gzipPayload ? new GzipCompressingInputStream(in) : in;
+	}
+
+	/**
+	 * Creates named daemon threads for the mapping pool.
+	 */
+	private static class MappingThreadFactory implements ThreadFactory {
+
+		private final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "rifcs-mapper-"
+					+ count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
 	}
 }
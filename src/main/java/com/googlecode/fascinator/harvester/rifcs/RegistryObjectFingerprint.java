@@ -0,0 +1,102 @@
+package com.googlecode.fascinator.harvester.rifcs;
+
+import java.math.BigInteger;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ * Computes a fingerprint of the canonical content of a registry object, used
+ * to detect records which have not changed since the last harvest.
+ * <p>
+ * The canonical content is the element tree with attributes in name order,
+ * text trimmed, and whitespace-only text, comments and namespace declarations
+ * left out, so re-indenting or re-ordering attributes in an export does not
+ * change the fingerprint.
+ */
+public class RegistryObjectFingerprint {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final byte START = 1;
+	private static final byte ATTRIBUTE = 2;
+	private static final byte TEXT = 3;
+	private static final byte END = 4;
+
+	private RegistryObjectFingerprint() {
+	}
+
+	/**
+	 * Compute the fingerprint of an element.
+	 * 
+	 * @param element the registry object element
+	 * @param salt extra content to include in the fingerprint, e.g. a digest
+	 *            of the mapping configuration, so the fingerprint changes when
+	 *            the output for the same element would change; may be null
+	 * @return the fingerprint as a hex string
+	 */
+	public static String compute(Element element, String salt) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			// every Java platform is required to support MD5
+			throw new IllegalStateException(e);
+		}
+		if (salt != null) {
+			update(digest, TEXT, salt);
+		}
+		updateElement(digest, element);
+		return String.format("%032x", new BigInteger(1, digest.digest()));
+	}
+
+	private static void updateElement(MessageDigest digest, Element element) {
+		update(digest, START, element.getLocalName() == null ? element
+				.getNodeName() : element.getLocalName());
+
+		NamedNodeMap attributes = element.getAttributes();
+		String[] names = new String[attributes.getLength()];
+		int count = 0;
+		for (int i = 0; i < attributes.getLength(); i++) {
+			String name = ((Attr) attributes.item(i)).getName();
+			if (!name.equals("xmlns") && !name.startsWith("xmlns:")) {
+				names[count++] = name;
+			}
+		}
+		Arrays.sort(names, 0, count);
+		for (int i = 0; i < count; i++) {
+			update(digest, ATTRIBUTE, names[i]);
+			update(digest, TEXT, element.getAttribute(names[i]));
+		}
+
+		for (Node child = element.getFirstChild(); child != null; child = child
+				.getNextSibling()) {
+			switch (child.getNodeType()) {
+			case Node.ELEMENT_NODE:
+				updateElement(digest, (Element) child);
+				break;
+			case Node.TEXT_NODE:
+			case Node.CDATA_SECTION_NODE:
+				String text = child.getNodeValue().trim();
+				if (text.length() > 0) {
+					update(digest, TEXT, text);
+				}
+				break;
+			default:
+				break;
+			}
+		}
+		digest.update(END);
+	}
+
+	private static void update(MessageDigest digest, byte marker, String value) {
+		digest.update(marker);
+		digest.update(value.getBytes(UTF8));
+	}
+}
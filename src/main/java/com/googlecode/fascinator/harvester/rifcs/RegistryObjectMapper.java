@@ -0,0 +1,585 @@
+package com.googlecode.fascinator.harvester.rifcs;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import com.googlecode.fascinator.api.harvester.HarvesterException;
+import com.googlecode.fascinator.common.JsonObject;
+
+/**
+ * The "filedsMapping" configuration compiled into a tree of element paths,
+ * which maps a registry object to its JSON fields in a single walk over its
+ * DOM.
+ * <p>
+ * Two forms of key are understood:
+ * <ul>
+ * <li>The element identifiers described in the README, e.g.
+ * "identifier.local", "name.primary.given", "relatedObject.isMemberOf",
+ * "subject.anzsrc-for" or "relatedInfo.website.Personal Homepage".</li>
+ * <li>Paths from the class element (&lt;party&gt; etc.) to any RIF-CS
+ * element, for keys holding a "/" or "[". Each step is the local name of a
+ * child element, optionally followed by "[type]" to match only elements with
+ * that type attribute and "[child=text]" to match only elements with a child
+ * holding that text. The value is the text of the last element, or one of
+ * its attributes if the path ends with "/@name", e.g.
+ * "coverage/temporal/date[dateFrom]", "citationInfo/fullCitation[Harvard]"
+ * or "rights/licence/@rightsUri".</li>
+ * </ul>
+ * When several elements are mapped to a field, the last one is written.
+ * <p>
+ * The paths are merged into a tree when the configuration is compiled, so
+ * the walk only enters elements on a mapped path, and looks at each of them
+ * once whatever the number of mappings.
+ * <p>
+ * Instances are immutable and may be shared between threads.
+ */
+public class RegistryObjectMapper {
+
+	/** The class elements of a registry object */
+	private static final Set<String> CLASSES = new HashSet<String>(
+			Arrays.asList("activity", "collection", "party", "service"));
+
+	private static final String TYPE = "type";
+
+	private static final String SUBJECT = "subject";
+
+	/** What a mapping does with the elements it matches */
+	private enum Mode {
+		/** Write the value to the field */
+		VALUE,
+		/**
+		 * Write the value of each subject of a person to a numbered field,
+		 * or of the first mapped subject of anything else to the field
+		 */
+		SUBJECT,
+		/** Write the earliest start and latest end year of all the dates */
+		EXISTENCE_DATES
+	}
+
+	/** A mapping to a field from the elements matched by a step */
+	private static class Action {
+		private final Mode mode;
+		private String field;
+		private String endField;
+		/** Read the value from the parent of the matched element */
+		private boolean fromParent;
+		/** Read the value from this child, or null */
+		private String valueChild;
+		/** Read this attribute instead of the text, or null */
+		private String attribute;
+		private boolean intern;
+
+		private Action(Mode mode, String field) {
+			this.mode = mode;
+			this.field = field;
+		}
+	}
+
+	/** An element on a mapped path */
+	private static class Step {
+		private final String name;
+		/** The type attribute to match, "" for none, or null for any */
+		private final String type;
+		private final String conditionChild;
+		/** The text of the condition child to match, "" for none */
+		private final String conditionText;
+		private final List<Action> actions = new ArrayList<Action>();
+		private final Map<String, List<Step>> children = new HashMap<String, List<Step>>();
+		/** True if the children are numbered by their position */
+		private boolean numbered;
+
+		private Step(String name, String type, String conditionChild,
+				String conditionText) {
+			this.name = name;
+			this.type = type;
+			this.conditionChild = conditionChild;
+			this.conditionText = conditionText;
+		}
+
+		private boolean matches(Element element) {
+			if (type != null && !type.equals(element.getAttribute(TYPE))) {
+				return false;
+			}
+			if (conditionChild != null) {
+				Element child = firstChild(element, conditionChild);
+				String text = child == null ? "" : child.getTextContent();
+				return conditionText.equals(text);
+			}
+			return true;
+		}
+
+		private boolean same(Step other) {
+			return name.equals(other.name) && equal(type, other.type)
+					&& equal(conditionChild, other.conditionChild)
+					&& equal(conditionText, other.conditionText);
+		}
+
+		private static boolean equal(String a, String b) {
+			return a == null ? b == null : a.equals(b);
+		}
+	}
+
+	private final Logger log = LoggerFactory
+			.getLogger(RegistryObjectMapper.class);
+
+	private final Step root = new Step("", null, null, null);
+
+	private final FieldFilter filter;
+
+	/**
+	 * Compile the mapping configuration.
+	 *
+	 * @param fieldsMapping the "filedsMapping" configuration object, may be
+	 *            null
+	 * @param filter the fields written to the record, or null for all of them
+	 * @throws HarvesterException if a path is not valid
+	 */
+	public RegistryObjectMapper(JsonObject fieldsMapping, FieldFilter filter)
+			throws HarvesterException {
+		this.filter = filter != null ? filter : new FieldFilter(
+				new ArrayList<String>(), new ArrayList<String>());
+		if (fieldsMapping == null) {
+			return;
+		}
+		for (Map.Entry<?, ?> entry : fieldsMapping.entrySet()) {
+			if (entry.getKey() == null || entry.getValue() == null) {
+				continue;
+			}
+			String field = entry.getValue().toString();
+			if (field.length() == 0) {
+				continue;
+			}
+			String key = entry.getKey().toString();
+			if (key.indexOf('/') >= 0 || key.indexOf('[') >= 0) {
+				addPath(key, field);
+			} else {
+				addElementKey(key, field);
+			}
+		}
+	}
+
+	/**
+	 * Compile an element identifier, e.g. "name.primary.given".
+	 */
+	private void addElementKey(String key, String field) {
+		// Subjects of people are written to numbered fields
+		if (!filter.accept(field)
+				&& !(key.startsWith("subject.") && filter
+						.acceptNumbered(field))) {
+			return;
+		}
+		if (key.startsWith("identifier.")) {
+			add(field, Mode.VALUE,
+					step("identifier", after(key, "identifier.")));
+		} else if (key.startsWith("name.")) {
+			String type = after(key, "name.");
+			add(field, Mode.VALUE, step("name", typeOf(type)),
+					step("namePart", subtypeOf(type, "")));
+		} else if (key.startsWith("location.address.electronic.")) {
+			Action action = add(field, Mode.VALUE, step("location", null),
+					step("address", null), step("electronic",
+							after(key, "location.address.electronic.")));
+			action.valueChild = "value";
+		} else if (key.startsWith("location.address.physical.")) {
+			add(field, Mode.VALUE, step("location", null),
+					step("address", null), step("physical", null),
+					step("addressPart",
+							after(key, "location.address.physical.")));
+		} else if (key.startsWith("relatedObject.")) {
+			Action action = add(field, Mode.VALUE, step("relatedObject", null),
+					step("relation", after(key, "relatedObject.")));
+			action.fromParent = true;
+			action.valueChild = "key";
+			action.intern = true;
+		} else if (key.startsWith("subject.")) {
+			Action action = add(field, Mode.SUBJECT,
+					step(SUBJECT, after(key, "subject.")));
+			action.intern = true;
+			root.numbered = true;
+		} else if (key.startsWith("description.")) {
+			add(field, Mode.VALUE,
+					step("description", after(key, "description.")));
+		} else if (key.startsWith("relatedInfo.")) {
+			String type = after(key, "relatedInfo.");
+			Action action = add(field, Mode.VALUE, new Step("relatedInfo",
+					typeOf(type), "title", subtypeOf(type, "")));
+			action.valueChild = "identifier";
+		} else if (key.startsWith("existenceDates.")) {
+			addExistenceDate(after(key, "existenceDates."), field);
+		}
+	}
+
+	private void addExistenceDate(String date, String field) {
+		if (!"startDate".equals(date) && !"endDate".equals(date)) {
+			return;
+		}
+		Step step = merge(root, step("existenceDates", null));
+		Action action = null;
+		for (Action existing : step.actions) {
+			if (existing.mode == Mode.EXISTENCE_DATES) {
+				action = existing;
+			}
+		}
+		if (action == null) {
+			action = new Action(Mode.EXISTENCE_DATES, null);
+			step.actions.add(action);
+		}
+		if ("startDate".equals(date)) {
+			action.field = field;
+		} else {
+			action.endField = field;
+		}
+	}
+
+	/**
+	 * Compile a path, e.g. "citationInfo/fullCitation[Harvard]".
+	 */
+	private void addPath(String path, String field) throws HarvesterException {
+		if (!filter.accept(field)) {
+			return;
+		}
+		String[] parts = path.split("/", -1);
+		int count = parts.length;
+		String attribute = null;
+		if (count > 1 && parts[count - 1].startsWith("@")) {
+			attribute = parts[--count].substring(1);
+			if (attribute.length() == 0) {
+				throw invalidPath(path);
+			}
+		}
+		Step[] steps = new Step[count];
+		for (int i = 0; i < count; i++) {
+			steps[i] = parseStep(parts[i], path);
+		}
+		Action action = add(field, Mode.VALUE, steps);
+		action.attribute = attribute;
+		action.intern = attribute != null;
+	}
+
+	/**
+	 * Parse "name", "name[type]", "name[child=text]" or
+	 * "name[type][child=text]".
+	 */
+	private static Step parseStep(String part, String path)
+			throws HarvesterException {
+		int bracket = part.indexOf('[');
+		String name = bracket < 0 ? part : part.substring(0, bracket);
+		if (name.length() == 0) {
+			throw invalidPath(path);
+		}
+		String type = null;
+		String conditionChild = null;
+		String conditionText = null;
+		while (bracket >= 0) {
+			int end = part.indexOf(']', bracket);
+			if (end < 0) {
+				throw invalidPath(path);
+			}
+			String predicate = part.substring(bracket + 1, end);
+			int equals = predicate.indexOf('=');
+			if (equals < 0) {
+				type = predicate;
+			} else {
+				conditionChild = predicate.substring(0, equals);
+				conditionText = predicate.substring(equals + 1);
+			}
+			bracket = end + 1 < part.length() ? end + 1 : -1;
+			if (bracket >= 0 && part.charAt(bracket) != '[') {
+				throw invalidPath(path);
+			}
+		}
+		return new Step(name, type, conditionChild, conditionText);
+	}
+
+	private static HarvesterException invalidPath(String path) {
+		return new HarvesterException("Invalid mapping path '" + path
+				+ "', expected steps such as 'name[type]' separated by '/'");
+	}
+
+	private static Step step(String name, String type) {
+		return new Step(name, type, null, null);
+	}
+
+	private static String after(String key, String prefix) {
+		return key.substring(prefix.length());
+	}
+
+	/** The type of "type.subtype" */
+	private static String typeOf(String type) {
+		int dot = type.indexOf('.');
+		return dot < 0 ? type : type.substring(0, dot);
+	}
+
+	/** The subtype of "type.subtype", or the default if there is none */
+	private static String subtypeOf(String type, String defaultValue) {
+		int dot = type.indexOf('.');
+		return dot < 0 ? defaultValue : type.substring(dot + 1);
+	}
+
+	/**
+	 * Merge a path into the tree and add a mapping to its last step.
+	 */
+	private Action add(String field, Mode mode, Step... path) {
+		Step step = root;
+		for (Step next : path) {
+			step = merge(step, next);
+		}
+		Action action = new Action(mode, field);
+		step.actions.add(action);
+		return action;
+	}
+
+	private static Step merge(Step parent, Step child) {
+		List<Step> steps = parent.children.get(child.name);
+		if (steps == null) {
+			steps = new ArrayList<Step>();
+			parent.children.put(child.name, steps);
+		}
+		for (Step step : steps) {
+			if (step.same(child)) {
+				return step;
+			}
+		}
+		steps.add(child);
+		return child;
+	}
+
+	/**
+	 * @return the local names of the children of the class element (e.g.
+	 *         "identifier" or "description") which hold a mapped element
+	 */
+	public Set<String> getElementNames() {
+		return new HashSet<String>(root.children.keySet());
+	}
+
+	/**
+	 * Map a registry object: its group, key and originating source, the type
+	 * of its class element and the mapped fields.
+	 *
+	 * @param registryObject the &lt;registryObject&gt; element
+	 * @param data the JSON to write the fields to
+	 * @param strings canonical instances of repeated values, or null
+	 * @return the local name of the class element, e.g. "party"
+	 * @throws HarvesterException if the registry object has no class element
+	 */
+	public String map(Element registryObject, JsonObject data,
+			StringInternTable strings) throws HarvesterException {
+		String key = null;
+		String originatingSource = null;
+		Element classElement = null;
+		for (Element child = firstChild(registryObject, null); child != null; child = nextSibling(
+				child, null)) {
+			String name = localName(child);
+			if (key == null && "key".equals(name)) {
+				key = child.getTextContent();
+			} else if (originatingSource == null
+					&& "originatingSource".equals(name)) {
+				originatingSource = child.getTextContent();
+			} else if (classElement == null && CLASSES.contains(name)) {
+				classElement = child;
+			}
+		}
+		data.put("group", intern(strings, registryObject.getAttribute("group")));
+		data.put("key", key);
+		data.put("originatingSource", intern(strings, originatingSource));
+		if (classElement == null) {
+			throw new HarvesterException(
+					"Wrong element found, only supports activity, collection, party, or service");
+		}
+		String type = classElement.getAttribute(TYPE);
+		if (type.length() > 0) {
+			data.put("type", intern(strings, type));
+		}
+		Walk walk = new Walk(data, strings, "person".equals(type));
+		walk.visit(classElement, root);
+		walk.finish();
+		return localName(classElement);
+	}
+
+	/**
+	 * The state of mapping one registry object.
+	 */
+	private class Walk {
+
+		private final JsonObject data;
+
+		private final StringInternTable strings;
+
+		private final boolean person;
+
+		private boolean subjectWritten;
+
+		private Action existenceDates;
+
+		private String startYear = "";
+
+		private String endYear = "";
+
+		private Walk(JsonObject data, StringInternTable strings, boolean person) {
+			this.data = data;
+			this.strings = strings;
+			this.person = person;
+		}
+
+		private void visit(Element parent, Step step) {
+			Map<String, int[]> positions = step.numbered ? new HashMap<String, int[]>()
+					: null;
+			for (Element child = firstChild(parent, null); child != null; child = nextSibling(
+					child, null)) {
+				String name = localName(child);
+				List<Step> steps = step.children.get(name);
+				if (steps == null) {
+					continue;
+				}
+				int position = 0;
+				if (positions != null) {
+					int[] count = positions.get(name);
+					if (count == null) {
+						count = new int[1];
+						positions.put(name, count);
+					}
+					position = ++count[0];
+				}
+				for (Step next : steps) {
+					if (!next.matches(child)) {
+						continue;
+					}
+					for (Action action : next.actions) {
+						apply(action, child, position);
+					}
+					if (!next.children.isEmpty()) {
+						visit(child, next);
+					}
+				}
+			}
+		}
+
+		private void apply(Action action, Element element, int position) {
+			switch (action.mode) {
+			case VALUE:
+				String value = value(action, element);
+				data.put(action.field, action.intern ? intern(strings, value)
+						: value);
+				break;
+			case SUBJECT:
+				if (person) {
+					String numbered = action.field + "_" + position;
+					if (filter.accept(numbered)) {
+						data.put(numbered, intern(strings,
+								element.getTextContent()));
+					}
+				} else if (!subjectWritten) {
+					// Only the first mapped subject of anything else
+					subjectWritten = true;
+					if (filter.accept(action.field)) {
+						data.put(action.field, intern(strings,
+								element.getTextContent()));
+					}
+				}
+				break;
+			case EXISTENCE_DATES:
+				existenceDates = action;
+				String start = childText(element, "startDate");
+				if ("".equals(startYear) || startYear.compareTo(start) >= 0) {
+					startYear = start;
+				}
+				String end = childText(element, "endDate");
+				if ("".equals(endYear) || endYear.compareTo(end) <= 0) {
+					endYear = end;
+				}
+				break;
+			}
+		}
+
+		private String value(Action action, Element element) {
+			Element source = element;
+			if (action.fromParent) {
+				source = (Element) element.getParentNode();
+			}
+			if (action.valueChild != null) {
+				source = firstChild(source, action.valueChild);
+			}
+			if (source == null) {
+				return null;
+			}
+			if (action.attribute != null) {
+				return source.hasAttribute(action.attribute) ? source
+						.getAttribute(action.attribute) : null;
+			}
+			return source.getTextContent();
+		}
+
+		/**
+		 * Write the values gathered from several elements.
+		 */
+		private void finish() {
+			if (existenceDates == null) {
+				return;
+			}
+			W3CDate startDate = W3CDate.parse(startYear);
+			W3CDate endDate = W3CDate.parse(endYear);
+			if (startDate == null || endDate == null) {
+				log.warn("Invalid existence dates '{}' to '{}'", startYear,
+						endYear);
+				return;
+			}
+			if (existenceDates.field != null) {
+				data.put(existenceDates.field, intern(strings,
+						Integer.toString(startDate.getYear())));
+			}
+			if (existenceDates.endField != null) {
+				data.put(existenceDates.endField, intern(strings,
+						Integer.toString(endDate.getYear())));
+			}
+		}
+	}
+
+	private static String intern(StringInternTable strings, String value) {
+		return strings == null ? value : strings.intern(value);
+	}
+
+	private static String localName(Node node) {
+		String name = node.getLocalName();
+		return name != null ? name : node.getNodeName();
+	}
+
+	/**
+	 * @return the text of the first child with a local name, or "" if there
+	 *         is none
+	 */
+	private static String childText(Element parent, String localName) {
+		Element child = firstChild(parent, localName);
+		return child == null ? "" : child.getTextContent();
+	}
+
+	/**
+	 * @param localName the local name to find, or null for any element
+	 */
+	private static Element firstChild(Element parent, String localName) {
+		return next(parent.getFirstChild(), localName);
+	}
+
+	private static Element nextSibling(Element element, String localName) {
+		return next(element.getNextSibling(), localName);
+	}
+
+	private static Element next(Node node, String localName) {
+		for (; node != null; node = node.getNextSibling()) {
+			if (node.getNodeType() == Node.ELEMENT_NODE
+					&& (localName == null || localName.equals(localName(node)))) {
+				return (Element) node;
+			}
+		}
+		return null;
+	}
+}
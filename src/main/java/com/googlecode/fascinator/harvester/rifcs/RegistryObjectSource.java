@@ -0,0 +1,26 @@
+package com.googlecode.fascinator.harvester.rifcs;
+
+import com.googlecode.fascinator.api.harvester.HarvesterException;
+
+/**
+ * Supplies the registry objects of RIF-CS documents one at a time, so the
+ * harvester does not need to know whether a whole document has been loaded
+ * or is being read incrementally, or how many files are being read.
+ */
+public interface RegistryObjectSource {
+
+	/**
+	 * Read the next registry object.
+	 * 
+	 * @return a record holding the next registry object with the name of its
+	 *         file and its position in the file, or null if the source is
+	 *         exhausted
+	 * @throws HarvesterException if the document could not be read
+	 */
+	HarvestRecord next() throws HarvesterException;
+
+	/**
+	 * Release any resources (files, parsers) held by this source.
+	 */
+	void close();
+}
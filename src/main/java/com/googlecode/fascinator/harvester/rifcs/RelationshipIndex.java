@@ -0,0 +1,466 @@
+package com.googlecode.fascinator.harvester.rifcs;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import org.apache.commons.io.IOUtils;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import com.googlecode.fascinator.api.harvester.HarvesterException;
+import com.googlecode.fascinator.common.JsonObject;
+
+/**
+ * Index of the relationships between the registry objects of a harvest,
+ * resolving the key of every &lt;relatedObject&gt; to the object ID it was
+ * harvested under.
+ * <p>
+ * Objects (key to object ID) and edges (source object ID, relation type and
+ * target key) are collected as the harvest goes. Up to a limit they are kept
+ * in memory; beyond it they are sorted by key and spilled to temporary run
+ * files. At the end of the harvest the runs are merged, which brings each
+ * object together with the edges pointing at it, and every edge is written
+ * to the output file as one JSON object per line:
+ *
+ * <pre>
+ * {"source":"&lt;oid&gt;","relation":"isMemberOf","key":"4031","target":"&lt;oid&gt;"}
+ * </pre>
+ *
+ * Edges to objects which were not part of the harvest have no "target".
+ * Lines are ordered by target key.
+ * <p>
+ * This class is not thread-safe.
+ */
+public class RelationshipIndex {
+
+	/** A relation from one registry object to the key of another */
+	public static class Edge {
+
+		private final String relation;
+
+		private final String key;
+
+		public Edge(String relation, String key) {
+			this.relation = relation;
+			this.key = key;
+		}
+
+		public String getRelation() {
+			return relation;
+		}
+
+		public String getKey() {
+			return key;
+		}
+	}
+
+	private static final String RELATED_OBJECT = "relatedObject";
+
+	private static final int OBJECT = 0;
+
+	private static final int EDGE = 1;
+
+	private final File output;
+
+	private final int maxInMemory;
+
+	private final List<Entry> entries = new ArrayList<Entry>();
+
+	private final List<File> runs = new ArrayList<File>();
+
+	private long objects;
+
+	private long edges;
+
+	/**
+	 * @param output the file to write the resolved edges to; the temporary
+	 *            runs are written next to it
+	 * @param maxInMemory the number of objects and edges kept in memory
+	 *            before they are spilled to disk
+	 */
+	public RelationshipIndex(File output, int maxInMemory) {
+		this.output = output.getAbsoluteFile();
+		this.maxInMemory = Math.max(maxInMemory, 1);
+	}
+
+	/**
+	 * Read the related objects of a registry object.
+	 *
+	 * @param registryObject the &lt;registryObject&gt; element
+	 * @return the relations to other registry objects, in document order
+	 */
+	public static List<Edge> edges(Element registryObject) {
+		return edges(registryObject, null);
+	}
+
+	/**
+	 * Read the related objects of a registry object, sharing the keys and
+	 * relation types with other records through an intern table.
+	 *
+	 * @param registryObject the &lt;registryObject&gt; element
+	 * @param strings the table to canonicalise keys and relation types with,
+	 *            or null
+	 * @return the relations to other registry objects, in document order
+	 */
+	public static List<Edge> edges(Element registryObject,
+			StringInternTable strings) {
+		List<Edge> edges = new ArrayList<Edge>();
+		for (Element classElement : children(registryObject, null)) {
+			for (Element relatedObject : children(classElement, RELATED_OBJECT)) {
+				String key = null;
+				for (Element keyElement : children(relatedObject, "key")) {
+					key = keyElement.getTextContent().trim();
+				}
+				if (key == null || key.length() == 0) {
+					continue;
+				}
+				if (strings != null) {
+					key = strings.intern(key);
+				}
+				for (Element relation : children(relatedObject, "relation")) {
+					String type = relation.getAttribute("type");
+					edges.add(new Edge(strings == null ? type : strings
+							.intern(type), key));
+				}
+			}
+		}
+		return edges;
+	}
+
+	private static List<Element> children(Element parent, String localName) {
+		List<Element> children = new ArrayList<Element>();
+		for (Node child = parent.getFirstChild(); child != null; child = child
+				.getNextSibling()) {
+			if (child.getNodeType() == Node.ELEMENT_NODE
+					&& (localName == null || localName.equals(child
+							.getLocalName()))) {
+				children.add((Element) child);
+			}
+		}
+		return children;
+	}
+
+	/**
+	 * Add a harvested object.
+	 *
+	 * @param key the registry object key
+	 * @param oid the object ID it was harvested under
+	 * @throws HarvesterException if a run could not be spilled to disk
+	 */
+	public void addObject(String key, String oid) throws HarvesterException {
+		add(new Entry(key, OBJECT, oid, ""));
+		objects++;
+	}
+
+	/**
+	 * Add the relations of a harvested object.
+	 *
+	 * @param oid the object ID of the source object
+	 * @param relations its relations
+	 * @throws HarvesterException if a run could not be spilled to disk
+	 */
+	public void addEdges(String oid, List<Edge> relations)
+			throws HarvesterException {
+		for (Edge edge : relations) {
+			add(new Entry(edge.getKey(), EDGE, oid, edge.getRelation()));
+			edges++;
+		}
+	}
+
+	private void add(Entry entry) throws HarvesterException {
+		entries.add(entry);
+		if (entries.size() >= maxInMemory) {
+			spill();
+		}
+	}
+
+	/**
+	 * Sort the entries in memory and write them to a new run.
+	 */
+	private void spill() throws HarvesterException {
+		Collections.sort(entries);
+		Writer out = null;
+		try {
+			createDirectory();
+			File run = File.createTempFile("rifcs-relations", ".run",
+					output.getParentFile());
+			runs.add(run);
+			out = new BufferedWriter(new OutputStreamWriter(
+					new FileOutputStream(run), "UTF-8"));
+			for (Entry entry : entries) {
+				entry.write(out);
+			}
+			out.close();
+			out = null;
+		} catch (IOException e) {
+			throw new HarvesterException("Error spilling relationship index",
+					e);
+		} finally {
+			IOUtils.closeQuietly(out);
+		}
+		entries.clear();
+	}
+
+	/**
+	 * Resolve every edge and write the output file, then remove the runs.
+	 *
+	 * @return the number of edges resolved to a harvested object
+	 * @throws HarvesterException if the runs could not be read or the output
+	 *             written
+	 */
+	public long write() throws HarvesterException {
+		Collections.sort(entries);
+		PriorityQueue<RunReader> queue = new PriorityQueue<RunReader>();
+		Writer out = null;
+		long resolved = 0;
+		try {
+			offer(queue, new RunReader(entries.iterator()));
+			for (File run : runs) {
+				offer(queue, new RunReader(run));
+			}
+			createDirectory();
+			out = new BufferedWriter(new OutputStreamWriter(
+					new FileOutputStream(output), "UTF-8"));
+
+			// Objects sort before the edges with the same key
+			String key = null;
+			String target = null;
+			while (!queue.isEmpty()) {
+				RunReader reader = queue.poll();
+				Entry entry = reader.current;
+				if (reader.advance()) {
+					queue.add(reader);
+				} else {
+					reader.close();
+				}
+				if (!entry.key.equals(key)) {
+					key = entry.key;
+					target = null;
+				}
+				if (entry.kind == OBJECT) {
+					if (target == null) {
+						target = entry.oid;
+					}
+					continue;
+				}
+				JsonObject json = new JsonObject();
+				json.put("source", entry.oid);
+				json.put("relation", entry.relation);
+				json.put("key", entry.key);
+				if (target != null) {
+					json.put("target", target);
+					resolved++;
+				}
+				out.write(json.toJSONString());
+				out.write('\n');
+			}
+			out.close();
+			out = null;
+		} catch (IOException e) {
+			throw new HarvesterException("Error writing relationship index '"
+					+ output + "'", e);
+		} finally {
+			IOUtils.closeQuietly(out);
+			for (RunReader reader : queue) {
+				reader.close();
+			}
+			close();
+		}
+		return resolved;
+	}
+
+	private void createDirectory() throws IOException {
+		File directory = output.getParentFile();
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Could not create " + directory);
+		}
+	}
+
+	private static void offer(PriorityQueue<RunReader> queue, RunReader reader) {
+		if (reader.current != null) {
+			queue.add(reader);
+		} else {
+			reader.close();
+		}
+	}
+
+	public long getObjects() {
+		return objects;
+	}
+
+	public long getEdges() {
+		return edges;
+	}
+
+	/**
+	 * Discard everything collected and remove the runs.
+	 */
+	public void close() {
+		entries.clear();
+		for (File run : runs) {
+			run.delete();
+		}
+		runs.clear();
+	}
+
+	/**
+	 * An object or an edge, ordered by key and then kind.
+	 */
+	private static class Entry implements Comparable<Entry> {
+
+		private final String key;
+
+		private final int kind;
+
+		private final String oid;
+
+		private final String relation;
+
+		Entry(String key, int kind, String oid, String relation) {
+			this.key = key;
+			this.kind = kind;
+			this.oid = oid;
+			this.relation = relation;
+		}
+
+		@Override
+		public int compareTo(Entry other) {
+			int result = key.compareTo(other.key);
+			return result != 0 ? result : kind - other.kind;
+		}
+
+		/**
+		 * Write the entry as a line of tab separated fields.
+		 */
+		void write(Writer out) throws IOException {
+			out.write(Integer.toString(kind));
+			out.write('\t');
+			out.write(escape(key));
+			out.write('\t');
+			out.write(oid);
+			out.write('\t');
+			out.write(escape(relation));
+			out.write('\n');
+		}
+
+		static Entry read(String line) throws IOException {
+			String[] fields = line.split("\t", -1);
+			if (fields.length != 4) {
+				throw new IOException("Invalid relationship index line: "
+						+ line);
+			}
+			return new Entry(unescape(fields[1]),
+					Integer.parseInt(fields[0]), fields[2],
+					unescape(fields[3]));
+		}
+
+		private static String escape(String value) {
+			if (value.indexOf('\\') < 0 && value.indexOf('\t') < 0
+					&& value.indexOf('\n') < 0 && value.indexOf('\r') < 0) {
+				return value;
+			}
+			StringBuilder out = new StringBuilder(value.length() + 8);
+			for (int i = 0; i < value.length(); i++) {
+				char c = value.charAt(i);
+				switch (c) {
+				case '\\':
+					out.append("\\\\");
+					break;
+				case '\t':
+					out.append("\\t");
+					break;
+				case '\n':
+					out.append("\\n");
+					break;
+				case '\r':
+					out.append("\\r");
+					break;
+				default:
+					out.append(c);
+				}
+			}
+			return out.toString();
+		}
+
+		private static String unescape(String value) {
+			if (value.indexOf('\\') < 0) {
+				return value;
+			}
+			StringBuilder out = new StringBuilder(value.length());
+			for (int i = 0; i < value.length(); i++) {
+				char c = value.charAt(i);
+				if (c == '\\' && i + 1 < value.length()) {
+					c = value.charAt(++i);
+					if (c == 't') {
+						c = '\t';
+					} else if (c == 'n') {
+						c = '\n';
+					} else if (c == 'r') {
+						c = '\r';
+					}
+				}
+				out.append(c);
+			}
+			return out.toString();
+		}
+	}
+
+	/**
+	 * The next entry of a sorted run, either in memory or on disk.
+	 */
+	private static class RunReader implements Comparable<RunReader> {
+
+		private final Iterator<Entry> memory;
+
+		private final BufferedReader file;
+
+		private Entry current;
+
+		RunReader(Iterator<Entry> memory) throws IOException {
+			this.memory = memory;
+			this.file = null;
+			advance();
+		}
+
+		RunReader(File run) throws IOException {
+			this.memory = null;
+			this.file = new BufferedReader(new InputStreamReader(
+					new FileInputStream(run), "UTF-8"));
+			advance();
+		}
+
+		/**
+		 * @return false once the run is exhausted
+		 */
+		boolean advance() throws IOException {
+			if (memory != null) {
+				current = memory.hasNext() ? memory.next() : null;
+			} else {
+				String line = file.readLine();
+				current = line == null ? null : Entry.read(line);
+			}
+			return current != null;
+		}
+
+		void close() {
+			IOUtils.closeQuietly(file);
+		}
+
+		@Override
+		public int compareTo(RunReader other) {
+			return current.compareTo(other.current);
+		}
+	}
+}
@@ -0,0 +1,181 @@
+package com.googlecode.fascinator.harvester.rifcs;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.googlecode.fascinator.api.harvester.HarvesterException;
+
+/**
+ * Stores mapped records on a pool of writer threads, so the mapping stage
+ * does not wait on storage I/O.
+ * <p>
+ * At most <code>queueSize</code> records may be waiting for or being written
+ * at any time; {@link #submit(HarvestRecord)} blocks while the limit is
+ * reached. Records with the same object identifier always go to the same
+ * writer, so writes to one object keep their source order.
+ * <p>
+ * The writer threads may be shared with other pipelines through a
+ * {@link StorageWriterPool}; the queue limit and failures still belong to
+ * each pipeline.
+ * <p>
+ * The first failure is kept and rethrown by the next call to
+ * {@link #submit(HarvestRecord)} or {@link #flush()}; records submitted after
+ * a failure are discarded.
+ */
+public class StorageWriterPipeline {
+
+	/**
+	 * Stores a single record.
+	 */
+	public interface RecordWriter {
+
+		/**
+		 * @param record the mapped record
+		 * @return the object identifier stored, or null if the record was
+		 *         skipped
+		 * @throws HarvesterException if the record could not be stored
+		 */
+		String write(HarvestRecord record) throws HarvesterException;
+	}
+
+	private final RecordWriter recordWriter;
+
+	private final StorageWriterPool writers;
+
+	private final boolean ownsWriters;
+
+	private volatile boolean shutdown;
+
+	private final int capacity;
+
+	private final Semaphore slots;
+
+	private final ConcurrentLinkedQueue<String> stored = new ConcurrentLinkedQueue<String>();
+
+	private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+	/**
+	 * @param recordWriter stores each record
+	 * @param threads the number of writer threads
+	 * @param queueSize the maximum number of records waiting for or being
+	 *            written
+	 */
+	public StorageWriterPipeline(RecordWriter recordWriter, int threads,
+			int queueSize) {
+		this(recordWriter, new StorageWriterPool(threads), true, queueSize);
+	}
+
+	/**
+	 * @param recordWriter stores each record
+	 * @param writers the writer threads, shared with other pipelines and not
+	 *            stopped by {@link #shutdown()}
+	 * @param queueSize the maximum number of records of this pipeline
+	 *            waiting for or being written
+	 */
+	public StorageWriterPipeline(RecordWriter recordWriter,
+			StorageWriterPool writers, int queueSize) {
+		this(recordWriter, writers, false, queueSize);
+	}
+
+	private StorageWriterPipeline(RecordWriter recordWriter,
+			StorageWriterPool writers, boolean ownsWriters, int queueSize) {
+		this.recordWriter = recordWriter;
+		this.writers = writers;
+		this.ownsWriters = ownsWriters;
+		this.capacity = Math.max(queueSize, writers.getThreads());
+		this.slots = new Semaphore(capacity);
+	}
+
+	/**
+	 * Queue a record for storage, waiting for space in the queue if needed.
+	 * 
+	 * @param record the mapped record
+	 * @throws HarvesterException if an earlier write failed, the wait was
+	 *             interrupted, or the writer threads have been shut down
+	 */
+	public void submit(final HarvestRecord record) throws HarvesterException {
+		checkFailure();
+		acquire(1);
+		try {
+			writers.execute(record.getOid(), new Runnable() {
+				@Override
+				public void run() {
+					try {
+						if (!shutdown && failure.get() == null) {
+							String oid = recordWriter.write(record);
+							if (oid != null) {
+								stored.add(oid);
+							}
+						}
+					} catch (Throwable t) {
+						failure.compareAndSet(null, t);
+					} finally {
+						slots.release();
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			slots.release();
+			throw new HarvesterException("Storage writers have been shut down",
+					e);
+		}
+	}
+
+	/**
+	 * Wait until every submitted record has been written.
+	 * 
+	 * @throws HarvesterException if any write failed, or the wait was
+	 *             interrupted
+	 */
+	public void flush() throws HarvesterException {
+		acquire(capacity);
+		slots.release(capacity);
+		checkFailure();
+	}
+
+	/**
+	 * Move the identifiers of the objects stored so far into a collection.
+	 * 
+	 * @param objectIdList the collection to add to
+	 */
+	public void drainStored(Collection<String> objectIdList) {
+		String oid;
+		while ((oid = stored.poll()) != null) {
+			objectIdList.add(oid);
+		}
+	}
+
+	/**
+	 * Abandon any records not yet written, and stop the writer threads unless
+	 * they are shared.
+	 */
+	public void shutdown() {
+		shutdown = true;
+		if (ownsWriters) {
+			writers.shutdown();
+		}
+	}
+
+	private void acquire(int permits) throws HarvesterException {
+		try {
+			slots.acquire(permits);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new HarvesterException(
+					"Interrupted while waiting for storage writers", e);
+		}
+	}
+
+	private void checkFailure() throws HarvesterException {
+		Throwable t = failure.get();
+		if (t instanceof HarvesterException) {
+			throw (HarvesterException) t;
+		}
+		if (t != null) {
+			throw new HarvesterException("Error storing record: ", t);
+		}
+	}
+}
@@ -0,0 +1,78 @@
+package com.googlecode.fascinator.harvester.rifcs;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Threads writing mapped records to storage, which may be shared by several
+ * harvests running in one process.
+ * <p>
+ * Writes for the same object identifier always go to the same thread, and
+ * each thread writes in the order it is given records, so writes to one
+ * object keep their order. Records from different harvests queue behind one
+ * another on the same threads, so each harvest gets its turn at storage.
+ */
+public class StorageWriterPool {
+
+	private final ExecutorService[] writers;
+
+	/**
+	 * @param threads the number of writer threads
+	 */
+	public StorageWriterPool(int threads) {
+		writers = new ExecutorService[Math.max(threads, 1)];
+		ThreadFactory threadFactory = new WriterThreadFactory();
+		for (int i = 0; i < writers.length; i++) {
+			writers[i] = Executors.newSingleThreadExecutor(threadFactory);
+		}
+	}
+
+	/**
+	 * @return the number of writer threads
+	 */
+	public int getThreads() {
+		return writers.length;
+	}
+
+	/**
+	 * Run a write on the thread for an object.
+	 *
+	 * @param oid the identifier of the object written
+	 * @param write the write
+	 * @throws RejectedExecutionException if the pool has been shut down
+	 */
+	public void execute(String oid, Runnable write) {
+		writers[(oid.hashCode() & Integer.MAX_VALUE) % writers.length]
+				.execute(write);
+	}
+
+	/**
+	 * Stop the writer threads once the writes already queued have run.
+	 * Queued writes are not dropped, as each one gives back its place in
+	 * its pipeline's queue; a pipeline which has been shut down skips them.
+	 */
+	public void shutdown() {
+		for (ExecutorService writer : writers) {
+			writer.shutdown();
+		}
+	}
+
+	/**
+	 * Creates named daemon threads for the writers.
+	 */
+	private static class WriterThreadFactory implements ThreadFactory {
+
+		private final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "rifcs-storage-writer-"
+					+ count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
@@ -0,0 +1,332 @@
+package com.googlecode.fascinator.harvester.rifcs;
+
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.Set;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.ands.rifcs.base.RIFCSWrapper;
+import org.ands.rifcs.base.RegistryObject;
+import org.apache.commons.io.IOUtils;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import com.googlecode.fascinator.api.harvester.HarvesterException;
+
+/**
+ * Registry object source which reads the RIF-CS document with StAX, one
+ * &lt;registryObject&gt; at a time.
+ * <p>
+ * Each registry object is copied into its own small DOM document (a
+ * &lt;registryObjects&gt; root holding a single &lt;registryObject&gt;) and
+ * wrapped by the ANDS object model, so heap use depends on the size of a
+ * single record rather than the size of the file.
+ * <p>
+ * The sections copied can be limited to those which are going to be used:
+ * other children of the class element (&lt;activity&gt;, &lt;party&gt;
+ * etc.), such as long descriptions or coverage, are passed over by the
+ * reader without being built.
+ * <p>
+ * A registry object the object model rejects is returned as a record holding
+ * the error, so it can be skipped like one which can not be mapped. Errors in
+ * the xml itself are thrown, as the rest of the file can not be read.
+ * <p>
+ * This class is not thread-safe.
+ */
+public class StreamingRegistryObjectSource implements RegistryObjectSource {
+
+	/** RIF-CS registry objects namespace */
+	public static final String RIFCS_NS = "http://ands.org.au/standards/rif-cs/registryObjects";
+
+	private static final String REGISTRY_OBJECTS = "registryObjects";
+
+	private static final String REGISTRY_OBJECT = "registryObject";
+
+	/**
+	 * Shared by every source, as looking up the parser implementations on
+	 * the classpath costs more than parsing a small file. The factories are
+	 * not thread-safe, so they are only used while holding the class lock.
+	 */
+	private static XMLInputFactory inputFactory;
+
+	private static DocumentBuilderFactory builderFactory;
+
+	private final String fileName;
+
+	private InputStream in;
+
+	private int ordinal;
+
+	private final int skip;
+
+	private final Set<String> sections;
+
+	private XMLStreamReader reader;
+
+	private DocumentBuilder documentBuilder;
+
+	/**
+	 * Prepare to read registry objects from the given stream. Nothing is
+	 * parsed until {@link #next()} is called.
+	 * 
+	 * @param in the RIF-CS xml, closed by {@link #close()}
+	 * @param fileName the name of the file being read
+	 * @throws HarvesterException if the parsers could not be created
+	 */
+	public StreamingRegistryObjectSource(InputStream in, String fileName)
+			throws HarvesterException {
+		this(in, fileName, 0);
+	}
+
+	/**
+	 * Prepare to read registry objects from the given stream, passing over
+	 * the first few without building them.
+	 * 
+	 * @param in the RIF-CS xml, closed by {@link #close()}
+	 * @param fileName the name of the file being read
+	 * @param skip the number of registry objects to pass over; the first
+	 *            record returned has the ordinal <code>skip + 1</code>
+	 * @throws HarvesterException if the parsers could not be created
+	 */
+	public StreamingRegistryObjectSource(InputStream in, String fileName,
+			int skip) throws HarvesterException {
+		this(in, fileName, skip, null);
+	}
+
+	/**
+	 * Prepare to read registry objects from the given stream, passing over
+	 * the first few without building them, and copying only some sections of
+	 * each.
+	 * 
+	 * @param in the RIF-CS xml, closed by {@link #close()}
+	 * @param fileName the name of the file being read
+	 * @param skip the number of registry objects to pass over; the first
+	 *            record returned has the ordinal <code>skip + 1</code>
+	 * @param sections the local names of the children of the class element
+	 *            to copy, e.g. "identifier" and "name", or null to copy them
+	 *            all
+	 * @throws HarvesterException if the parsers could not be created
+	 */
+	public StreamingRegistryObjectSource(InputStream in, String fileName,
+			int skip, Set<String> sections) throws HarvesterException {
+		this.in = in;
+		this.fileName = fileName;
+		this.skip = skip;
+		this.sections = sections;
+		try {
+			reader = createStreamReader(in);
+			documentBuilder = createDocumentBuilder();
+		} catch (Exception e) {
+			close();
+			throw new HarvesterException(e);
+		}
+	}
+
+	private static synchronized XMLStreamReader createStreamReader(
+			InputStream in) throws XMLStreamException {
+		if (inputFactory == null) {
+			XMLInputFactory factory = XMLInputFactory.newInstance();
+			factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE,
+					Boolean.TRUE);
+			factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+			factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+			inputFactory = factory;
+		}
+		return inputFactory.createXMLStreamReader(in);
+	}
+
+	static synchronized DocumentBuilder createDocumentBuilder()
+			throws ParserConfigurationException {
+		if (builderFactory == null) {
+			DocumentBuilderFactory factory = DocumentBuilderFactory
+					.newInstance();
+			factory.setNamespaceAware(true);
+			builderFactory = factory;
+		}
+		return builderFactory.newDocumentBuilder();
+	}
+
+	@Override
+	public HarvestRecord next() throws HarvesterException {
+		if (reader == null) {
+			return null;
+		}
+		try {
+			while (reader.hasNext()) {
+				if (reader.next() == XMLStreamConstants.START_ELEMENT
+						&& REGISTRY_OBJECT.equals(reader.getLocalName())
+						&& RIFCS_NS.equals(reader.getNamespaceURI())) {
+					if (++ordinal <= skip) {
+						skipElement();
+						continue;
+					}
+					return toRecord(readRegistryObject());
+				}
+			}
+		} catch (XMLStreamException e) {
+			throw new HarvesterException(e);
+		}
+		close();
+		return null;
+	}
+
+	/**
+	 * Copy the &lt;registryObject&gt; the reader is positioned on into a new
+	 * document, leaving the reader on its end tag. Sections of the class
+	 * element which are not wanted are left out.
+	 * 
+	 * @return the new document
+	 * @throws XMLStreamException if the xml is not well formed
+	 */
+	private Document readRegistryObject() throws XMLStreamException {
+		Document document = documentBuilder.newDocument();
+		Element root = document.createElementNS(RIFCS_NS, REGISTRY_OBJECTS);
+		document.appendChild(root);
+
+		Node current = root;
+		int depth = 0;
+		int event = XMLStreamConstants.START_ELEMENT;
+		while (true) {
+			switch (event) {
+			case XMLStreamConstants.START_ELEMENT:
+				// depth 2 is the class element
+				if (depth == 2 && sections != null
+						&& !sections.contains(reader.getLocalName())) {
+					skipElement();
+					break;
+				}
+				Element element = document.createElementNS(
+						reader.getNamespaceURI(), qualifiedName(
+								reader.getPrefix(), reader.getLocalName()));
+				for (int i = 0; i < reader.getAttributeCount(); i++) {
+					element.setAttributeNS(
+							emptyToNull(reader.getAttributeNamespace(i)),
+							qualifiedName(reader.getAttributePrefix(i),
+									reader.getAttributeLocalName(i)),
+							reader.getAttributeValue(i));
+				}
+				current.appendChild(element);
+				current = element;
+				depth++;
+				break;
+			case XMLStreamConstants.CHARACTERS:
+			case XMLStreamConstants.CDATA:
+			case XMLStreamConstants.SPACE:
+				current.appendChild(document.createTextNode(reader.getText()));
+				break;
+			case XMLStreamConstants.END_ELEMENT:
+				current = current.getParentNode();
+				depth--;
+				if (depth == 0) {
+					return document;
+				}
+				break;
+			default:
+				// comments and processing instructions are not needed
+				break;
+			}
+			event = reader.next();
+		}
+	}
+
+	/**
+	 * Move the reader from a start tag to its end tag, without copying
+	 * anything.
+	 * 
+	 * @throws XMLStreamException if the xml is not well formed
+	 */
+	private void skipElement() throws XMLStreamException {
+		int depth = 1;
+		while (depth > 0) {
+			int event = reader.next();
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				depth++;
+			} else if (event == XMLStreamConstants.END_ELEMENT) {
+				depth--;
+			}
+		}
+	}
+
+	/**
+	 * @param document a document built by {@link #readRegistryObject()}
+	 * @return the record of the registry object, holding the error if the
+	 *         object model rejects it
+	 */
+	private HarvestRecord toRecord(Document document) {
+		try {
+			return new HarvestRecord(fileName, ordinal, wrap(document));
+		} catch (HarvesterException e) {
+			return new HarvestRecord(fileName, ordinal,
+					(Element) document.getDocumentElement().getFirstChild(), e);
+		}
+	}
+
+	/**
+	 * Wrap the single registry object of a document in the RIF-CS object
+	 * model.
+	 * 
+	 * @param document a document built by {@link #readRegistryObject()}
+	 * @return the registry object
+	 * @throws HarvesterException if the object model rejects the document
+	 */
+	protected RegistryObject wrap(Document document) throws HarvesterException {
+		return wrapRegistryObject(document);
+	}
+
+	/**
+	 * Wrap the single registry object of a document in the RIF-CS object
+	 * model.
+	 * 
+	 * @param document a &lt;registryObjects&gt; document holding one
+	 *            &lt;registryObject&gt;
+	 * @return the registry object
+	 * @throws HarvesterException if the object model rejects the document
+	 */
+	static RegistryObject wrapRegistryObject(Document document)
+			throws HarvesterException {
+		try {
+			Iterator<RegistryObject> registryObjects = new RIFCSWrapper(
+					document).getRIFCSObject().getRegistryObjects().values()
+					.iterator();
+			return registryObjects.next();
+		} catch (Exception e) {
+			throw new HarvesterException(e);
+		}
+	}
+
+	private static String qualifiedName(String prefix, String localName) {
+		if (prefix == null || prefix.length() == 0) {
+			return localName;
+		}
+		return prefix + ":" + localName;
+	}
+
+	private static String emptyToNull(String value) {
+		if (value == null || value.length() == 0) {
+			return null;
+		}
+		return value;
+	}
+
+	@Override
+	public void close() {
+		if (reader != null) {
+			try {
+				reader.close();
+			} catch (XMLStreamException e) {
+				// nothing more we can do
+			}
+			reader = null;
+		}
+		IOUtils.closeQuietly(in);
+		in = null;
+	}
+}
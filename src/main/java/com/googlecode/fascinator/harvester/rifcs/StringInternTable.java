@@ -0,0 +1,99 @@
+package com.googlecode.fascinator.harvester.rifcs;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded table of canonical strings, so that the values repeated across
+ * many records (groups, originating sources, related object keys, subject
+ * codes) share one instance instead of each record holding its own copy.
+ * <p>
+ * The table is a fixed array indexed by hash: a value either finds an equal
+ * string in its slot and is replaced by it, or takes over the slot, evicting
+ * whatever was there. Memory is bounded by the table size whatever the
+ * number of distinct values, and values which stop recurring are pushed out
+ * by those which do. Values longer than {@link #MAX_LENGTH} are passed
+ * through, as they are unlikely to repeat and costly to hash.
+ * <p>
+ * The table may be used from any thread without locking. Slots are read and
+ * written racily, which is safe for immutable strings: a racing lookup at
+ * worst misses and stores its own instance.
+ */
+public class StringInternTable {
+
+	/** The longest string canonicalised */
+	public static final int MAX_LENGTH = 128;
+
+	private final String[] slots;
+
+	private final int mask;
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * @param size the number of slots, rounded up to a power of two
+	 */
+	public StringInternTable(int size) {
+		int capacity = Integer.highestOneBit(Math.max(size, 16) - 1) << 1;
+		slots = new String[capacity];
+		mask = capacity - 1;
+	}
+
+	/**
+	 * @param value a string, may be null
+	 * @return an equal string, shared with earlier calls if possible
+	 */
+	public String intern(String value) {
+		if (value == null || value.length() > MAX_LENGTH) {
+			return value;
+		}
+		int hash = value.hashCode();
+		int index = (hash ^ (hash >>> 16)) & mask;
+		String cached = slots[index];
+		if (cached != null && cached.equals(value)) {
+			hits.incrementAndGet();
+			return cached;
+		}
+		slots[index] = value;
+		misses.incrementAndGet();
+		return value;
+	}
+
+	/**
+	 * @return the number of slots
+	 */
+	public int getSize() {
+		return slots.length;
+	}
+
+	/**
+	 * @return the number of values replaced by a canonical instance
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * @return the number of values which were not in the table
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * @return the percentage of lookups which found the value, 0 before the
+	 *         first lookup
+	 */
+	public int getHitPercent() {
+		long hit = hits.get();
+		long total = hit + misses.get();
+		return total == 0 ? 0 : (int) (hit * 100 / total);
+	}
+
+	@Override
+	public String toString() {
+		return getHits() + " of " + (getHits() + getMisses()) + " ("
+				+ getHitPercent() + "%)";
+	}
+}
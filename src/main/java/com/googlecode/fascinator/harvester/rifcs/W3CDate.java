@@ -0,0 +1,337 @@
+package com.googlecode.fascinator.harvester.rifcs;
+
+/**
+ * An immutable date in one of the six W3C date time formats, described in
+ * "Date and Time Formats", <a
+ * href="http://www.w3.org/TR/NOTE-datetime">http://www.w3.org/TR/NOTE-datetime</a>:
+ *
+ * <ol>
+ * <li>YEAR: YYYY (eg 1997)
+ * <li>MONTH: YYYY-MM (eg 1997-07)
+ * <li>DAY: YYYY-MM-DD (eg 1997-07-16)
+ * <li>MINUTE: YYYY-MM-DDThh:mmTZD (eg 1997-07-16T19:20+01:00)
+ * <li>SECOND: YYYY-MM-DDThh:mm:ssTZD (eg 1997-07-16T19:20:30+01:00)
+ * <li>MILLISECOND: YYYY-MM-DDThh:mm:ss.sTZD (eg 1997-07-16T19:20:30.45+01:00)
+ * </ol>
+ *
+ * <p>
+ * Unlike {@link W3CDateFormat}, {@link #parse(CharSequence)} reads the text
+ * once, without trying each pattern in turn, and returns null instead of
+ * throwing when the text is not a W3C date. The fields are kept as written,
+ * so the year of "2009-12-31T23:00-05:00" is 2009 whatever the default time
+ * zone is. Instances hold no mutable state and can be shared between
+ * threads.
+ * </p>
+ */
+public final class W3CDate {
+
+	/** The precision of a date, one per W3C format */
+	public enum Precision {
+		YEAR, MONTH, DAY, MINUTE, SECOND, MILLISECOND
+	}
+
+	private static final int[] DAYS_IN_MONTH = { 31, 28, 31, 30, 31, 30, 31,
+			31, 30, 31, 30, 31 };
+
+	private final Precision precision;
+
+	private final int year;
+
+	private final int month;
+
+	private final int day;
+
+	private final int hour;
+
+	private final int minute;
+
+	private final int second;
+
+	private final int millisecond;
+
+	private final int timeZoneOffset;
+
+	private W3CDate(Precision precision, int year, int month, int day,
+			int hour, int minute, int second, int millisecond,
+			int timeZoneOffset) {
+		this.precision = precision;
+		this.year = year;
+		this.month = month;
+		this.day = day;
+		this.hour = hour;
+		this.minute = minute;
+		this.second = second;
+		this.millisecond = millisecond;
+		this.timeZoneOffset = timeZoneOffset;
+	}
+
+	/**
+	 * Parse a W3C date. Leading and trailing whitespace is ignored.
+	 *
+	 * @param text the text to parse, may be null
+	 * @return the date, or null if the text is not a valid W3C date
+	 */
+	public static W3CDate parse(CharSequence text) {
+		if (text == null) {
+			return null;
+		}
+		int start = 0;
+		int end = text.length();
+		while (start < end && Character.isWhitespace(text.charAt(start))) {
+			start++;
+		}
+		while (end > start && Character.isWhitespace(text.charAt(end - 1))) {
+			end--;
+		}
+
+		int year = digits(text, start, end, 4);
+		if (year < 0) {
+			return null;
+		}
+		int pos = start + 4;
+		if (pos == end) {
+			return new W3CDate(Precision.YEAR, year, 1, 1, 0, 0, 0, 0, 0);
+		}
+
+		int month = text.charAt(pos) == '-' ? digits(text, pos + 1, end, 2)
+				: -1;
+		if (month < 1 || month > 12) {
+			return null;
+		}
+		pos += 3;
+		if (pos == end) {
+			return new W3CDate(Precision.MONTH, year, month, 1, 0, 0, 0, 0, 0);
+		}
+
+		int day = text.charAt(pos) == '-' ? digits(text, pos + 1, end, 2) : -1;
+		if (day < 1 || day > daysInMonth(year, month)) {
+			return null;
+		}
+		pos += 3;
+		if (pos == end) {
+			return new W3CDate(Precision.DAY, year, month, day, 0, 0, 0, 0, 0);
+		}
+
+		// All time formats need hours, minutes and a time zone designator
+		int hour = text.charAt(pos) == 'T' ? digits(text, pos + 1, end, 2)
+				: -1;
+		if (hour < 0 || hour > 23 || pos + 3 >= end
+				|| text.charAt(pos + 3) != ':') {
+			return null;
+		}
+		int minute = digits(text, pos + 4, end, 2);
+		if (minute < 0 || minute > 59) {
+			return null;
+		}
+		pos += 6;
+		Precision precision = Precision.MINUTE;
+		int second = 0;
+		int millisecond = 0;
+		if (pos < end && text.charAt(pos) == ':') {
+			second = digits(text, pos + 1, end, 2);
+			if (second < 0 || second > 59) {
+				return null;
+			}
+			pos += 3;
+			precision = Precision.SECOND;
+			if (pos < end && text.charAt(pos) == '.') {
+				// One or more digits, only the first three are significant
+				int fractionStart = ++pos;
+				int scale = 100;
+				while (pos < end && isDigit(text.charAt(pos))) {
+					millisecond += (text.charAt(pos) - '0') * scale;
+					scale /= 10;
+					pos++;
+				}
+				if (pos == fractionStart) {
+					return null;
+				}
+				precision = Precision.MILLISECOND;
+			}
+		}
+
+		if (pos >= end) {
+			return null;
+		}
+		int timeZoneOffset;
+		char designator = text.charAt(pos);
+		if (designator == 'Z' && pos + 1 == end) {
+			timeZoneOffset = 0;
+		} else if ((designator == '+' || designator == '-')
+				&& pos + 6 == end && text.charAt(pos + 3) == ':') {
+			int offsetHours = digits(text, pos + 1, end, 2);
+			int offsetMinutes = digits(text, pos + 4, end, 2);
+			if (offsetHours < 0 || offsetHours > 23 || offsetMinutes < 0
+					|| offsetMinutes > 59) {
+				return null;
+			}
+			timeZoneOffset = offsetHours * 60 + offsetMinutes;
+			if (designator == '-') {
+				timeZoneOffset = -timeZoneOffset;
+			}
+		} else {
+			return null;
+		}
+		return new W3CDate(precision, year, month, day, hour, minute, second,
+				millisecond, timeZoneOffset);
+	}
+
+	/**
+	 * @return the number of a run of exactly <code>count</code> decimal digits
+	 *         starting at <code>pos</code>, or -1 if there is none
+	 */
+	private static int digits(CharSequence text, int pos, int end, int count) {
+		if (pos + count > end) {
+			return -1;
+		}
+		int value = 0;
+		for (int i = pos; i < pos + count; i++) {
+			char c = text.charAt(i);
+			if (!isDigit(c)) {
+				return -1;
+			}
+			value = value * 10 + (c - '0');
+		}
+		return value;
+	}
+
+	private static boolean isDigit(char c) {
+		return c >= '0' && c <= '9';
+	}
+
+	private static boolean isLeapYear(int year) {
+		return (year % 4 == 0 && year % 100 != 0) || year % 400 == 0;
+	}
+
+	private static int daysInMonth(int year, int month) {
+		if (month == 2 && isLeapYear(year)) {
+			return 29;
+		}
+		return DAYS_IN_MONTH[month - 1];
+	}
+
+	/**
+	 * @return which of the six W3C formats the date was written in
+	 */
+	public Precision getPrecision() {
+		return precision;
+	}
+
+	public int getYear() {
+		return year;
+	}
+
+	/**
+	 * @return the month, from 1 to 12; 1 for a YEAR precision date
+	 */
+	public int getMonth() {
+		return month;
+	}
+
+	/**
+	 * @return the day of the month, from 1; 1 for YEAR and MONTH precision
+	 *         dates
+	 */
+	public int getDay() {
+		return day;
+	}
+
+	public int getHour() {
+		return hour;
+	}
+
+	public int getMinute() {
+		return minute;
+	}
+
+	public int getSecond() {
+		return second;
+	}
+
+	public int getMillisecond() {
+		return millisecond;
+	}
+
+	/**
+	 * @return the offset of the time zone designator from UTC in minutes;
+	 *         zero for dates without a time
+	 */
+	public int getTimeZoneOffset() {
+		return timeZoneOffset;
+	}
+
+	/**
+	 * @return the number of milliseconds since 1970-01-01T00:00Z. Dates
+	 *         without a time are taken as midnight UTC.
+	 */
+	public long getTime() {
+		// Days since the epoch in the proleptic Gregorian calendar
+		long y = month <= 2 ? year - 1 : year;
+		long era = (y >= 0 ? y : y - 399) / 400;
+		long yearOfEra = y - era * 400;
+		long dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day
+				- 1;
+		long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100
+				+ dayOfYear;
+		long days = era * 146097 + dayOfEra - 719468;
+		long minutes = days * 1440 + hour * 60 + minute - timeZoneOffset;
+		return (minutes * 60 + second) * 1000 + millisecond;
+	}
+
+	@Override
+	public boolean equals(Object other) {
+		if (!(other instanceof W3CDate)) {
+			return false;
+		}
+		W3CDate date = (W3CDate) other;
+		return precision == date.precision && getTime() == date.getTime()
+				&& timeZoneOffset == date.timeZoneOffset;
+	}
+
+	@Override
+	public int hashCode() {
+		long time = getTime();
+		return precision.hashCode() * 31 + (int) (time ^ (time >>> 32));
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder out = new StringBuilder(29);
+		pad(out, year, 4);
+		if (precision == Precision.YEAR) {
+			return out.toString();
+		}
+		pad(out.append('-'), month, 2);
+		if (precision == Precision.MONTH) {
+			return out.toString();
+		}
+		pad(out.append('-'), day, 2);
+		if (precision == Precision.DAY) {
+			return out.toString();
+		}
+		pad(out.append('T'), hour, 2);
+		pad(out.append(':'), minute, 2);
+		if (precision != Precision.MINUTE) {
+			pad(out.append(':'), second, 2);
+		}
+		if (precision == Precision.MILLISECOND) {
+			pad(out.append('.'), millisecond, 3);
+		}
+		if (timeZoneOffset == 0) {
+			return out.append('Z').toString();
+		}
+		int offset = Math.abs(timeZoneOffset);
+		out.append(timeZoneOffset < 0 ? '-' : '+');
+		pad(out, offset / 60, 2);
+		pad(out.append(':'), offset % 60, 2);
+		return out.toString();
+	}
+
+	private static void pad(StringBuilder out, int value, int width) {
+		String digits = Integer.toString(value);
+		for (int i = digits.length(); i < width; i++) {
+			out.append('0');
+		}
+		out.append(digits);
+	}
+}
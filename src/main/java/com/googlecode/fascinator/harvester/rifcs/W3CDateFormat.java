@@ -44,6 +44,7 @@ import java.util.TimeZone;
  *
  * Finally note that, like all classes that inherit from DateFormat, <b>this class is not thread-safe</b>.  Also note that you
  * can explicitly specify the timezone to use for formatting using the {@link #setTimeZone(TimeZone)} method.
+ * To parse dates without either restriction, use {@link W3CDate#parse(CharSequence)}.
  *
  * @author Dan Fabulich
  * @see <a href="http://www.w3.org/TR/NOTE-datetime">Date and Time Formats</a>
@@ -0,0 +1,125 @@
+package com.googlecode.fascinator.harvester.rifcs;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Enumeration;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.CloseShieldInputStream;
+
+import com.googlecode.fascinator.api.harvester.HarvesterException;
+
+/**
+ * Registry object source reading every entry of a zip archive as a RIF-CS
+ * document, decompressing the archive as it is read.
+ * <p>
+ * Each entry is treated like a file of its own: its records are numbered
+ * from 1 and take the entry's name (without any directory) as their file
+ * name.
+ */
+public class ZipRegistryObjectSource implements RegistryObjectSource {
+
+	/**
+	 * Opens the source for a single entry.
+	 */
+	public interface EntrySourceFactory {
+
+		/**
+		 * @param in the entry content; closing it does not close the archive
+		 * @param fileName the name of the entry
+		 * @return a source for the entry
+		 * @throws HarvesterException if the entry could not be opened
+		 */
+		RegistryObjectSource open(InputStream in, String fileName)
+				throws HarvesterException;
+	}
+
+	private final EntrySourceFactory sourceFactory;
+
+	private ZipInputStream zip;
+
+	private RegistryObjectSource current;
+
+	/**
+	 * @param in the zip archive, closed by {@link #close()}
+	 * @param sourceFactory opens each entry
+	 */
+	public ZipRegistryObjectSource(InputStream in,
+			EntrySourceFactory sourceFactory) {
+		this.zip = new ZipInputStream(in);
+		this.sourceFactory = sourceFactory;
+	}
+
+	@Override
+	public HarvestRecord next() throws HarvesterException {
+		while (zip != null) {
+			if (current == null) {
+				ZipEntry entry;
+				try {
+					entry = zip.getNextEntry();
+				} catch (IOException e) {
+					throw new HarvesterException(e);
+				}
+				if (entry == null) {
+					close();
+					return null;
+				}
+				if (entry.isDirectory()) {
+					continue;
+				}
+				current = sourceFactory.open(
+						new CloseShieldInputStream(zip),
+						entryFileName(entry.getName()));
+			}
+			HarvestRecord record = current.next();
+			if (record != null) {
+				return record;
+			}
+			current.close();
+			current = null;
+		}
+		return null;
+	}
+
+	/**
+	 * Count the documents in a zip archive from its central directory,
+	 * without reading the entries.
+	 *
+	 * @param file the zip archive
+	 * @return the number of entries which are not directories
+	 * @throws IOException if the archive could not be read
+	 */
+	public static int countEntries(File file) throws IOException {
+		ZipFile zipFile = new ZipFile(file);
+		try {
+			int count = 0;
+			Enumeration<? extends ZipEntry> entries = zipFile.entries();
+			while (entries.hasMoreElements()) {
+				if (!entries.nextElement().isDirectory()) {
+					count++;
+				}
+			}
+			return count;
+		} finally {
+			zipFile.close();
+		}
+	}
+
+	private static String entryFileName(String entryName) {
+		return entryName.substring(entryName.lastIndexOf('/') + 1);
+	}
+
+	@Override
+	public void close() {
+		if (current != null) {
+			current.close();
+			current = null;
+		}
+		IOUtils.closeQuietly(zip);
+		zip = null;
+	}
+}
@@ -1,14 +1,36 @@
 package com.googlecode.fascinator.harvester.rifcs;
 
 import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.ands.rifcs.base.RegistryObject;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
 import com.googlecode.fascinator.api.storage.StorageException;
 import com.googlecode.fascinator.common.JsonSimple;
 import junit.framework.Assert;
 
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
 import org.junit.Before;
 import org.junit.Test;
 
@@ -173,6 +195,978 @@ public class RIFCSHarvesterTest {
 		assertFields(jsonSimple, fieldValues);
 	}
 
+	/**
+	 * Test the streaming parse mode gives the same result as the DOM mode
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testStreamingParties_People() throws Exception {
+		RIFCSHarvester rifcsHarvester = getHarvester("/Parties_People_streaming.json");
+		Set<String> idList = rifcsHarvester.getObjectIdList();
+		Assert.assertEquals(1, idList.size());
+		Assert.assertFalse(rifcsHarvester.hasMoreObjects());
+
+		String id = idList.toArray(new String[1])[0];
+		DigitalObject object = ram.getObject(id);
+		Payload payload = object.getPayload(object.getSourceId());
+		Assert.assertNotNull(payload);
+
+		JsonSimple jsonSimple = getContentInJsonSimple(payload);
+
+		Map<String, String> fieldValues = new HashMap<String, String>();
+		fieldValues.put("ID", "MQ12345678");
+		fieldValues.put("Given_Name", "James");
+		fieldValues.put("Family_Name", "Smith");
+		fieldValues.put("Email","james.smith@mq.edu.au");
+		fieldValues.put("GroupID_1", "4031");
+		fieldValues.put("ANZSRC_FOR_3", "0602");
+		fieldValues.put("Personal_Homepage", "http://www.facebook.com/john.smith99");
+		assertFields(jsonSimple, fieldValues);
+	}
+
+	/**
+	 * Test records without an ID field are numbered by their position in the
+	 * document, the same way in both modes, and a key repeated in the
+	 * document is harvested each time it appears
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testStreamingOrdinals() throws Exception {
+		Set<String> idList = getHarvester("/parties_ordinal.json")
+				.getObjectIdList();
+		Assert.assertEquals(6, idList.size());
+		for (int ordinal = 1; ordinal <= 6; ordinal++) {
+			Assert.assertTrue(idList.contains(DigestUtils
+					.md5Hex("parties_duplicate.xml"
+							+ "au.edu.uts/parties/people/" + ordinal)));
+		}
+		DigitalObject object = ram.getObject(DigestUtils
+				.md5Hex("parties_duplicate.xml" + "au.edu.uts/parties/people/"
+						+ 6));
+		Assert.assertEquals("Repeated", getContentInJsonSimple(
+				object.getPayload(object.getSourceId())).getString("",
+				"data", "Family_Name"));
+
+		Storage streamingRam = PluginManager.getStorage("ram");
+		streamingRam.init("{}");
+		Harvester streamingHarvester = PluginManager.getHarvester("xml",
+				streamingRam);
+		streamingHarvester.init(new File(getClass().getResource(
+				"/parties_ordinal_streaming.json").toURI()));
+		Assert.assertEquals(idList, streamingHarvester.getObjectIdList());
+	}
+
+	/**
+	 * Test the objects are returned in batches of the configured size
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testBatchSize() throws Exception {
+		RIFCSHarvester rifcsHarvester = getHarvester("/parties_batch.json");
+		Set<String> allIds = new HashSet<String>();
+		int calls = 0;
+		while (rifcsHarvester.hasMoreObjects()) {
+			Set<String> idList = rifcsHarvester.getObjectIdList();
+			Assert.assertTrue(idList.size() <= 2);
+			allIds.addAll(idList);
+			calls++;
+		}
+		Assert.assertEquals(3, calls);
+		Assert.assertEquals(5, allIds.size());
+		for (String id : allIds) {
+			Assert.assertNotNull(ram.getObject(id));
+		}
+	}
+
+	/**
+	 * Test records mapped on several threads are stored with the same
+	 * identifiers, payloads and metadata as in sequential mode
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testParallelMapping() throws Exception {
+		RIFCSHarvester rifcsHarvester = getHarvester("/parties_parallel.json");
+		Set<String> idList = rifcsHarvester.getObjectIdList();
+		Assert.assertEquals(5, idList.size());
+		Assert.assertFalse(rifcsHarvester.hasMoreObjects());
+
+		Map<String, String> givenNames = new HashMap<String, String>();
+		for (String id : idList) {
+			DigitalObject object = ram.getObject(id);
+			JsonSimple jsonSimple = getContentInJsonSimple(object
+					.getPayload(object.getSourceId()));
+			givenNames.put(jsonSimple.getString("", "data", "ID"),
+					jsonSimple.getString("", "data", "Given_Name"));
+			Assert.assertEquals("au.edu.uts/parties/people/"
+					+ jsonSimple.getString("", "data", "ID"),
+					jsonSimple.getString("", "metadata", "dc.identifier"));
+		}
+		Assert.assertEquals("Jane", givenNames.get("MQ10000001"));
+		Assert.assertEquals("John", givenNames.get("MQ10000002"));
+		Assert.assertEquals("Mary", givenNames.get("MQ10000003"));
+		Assert.assertEquals("Peter", givenNames.get("MQ10000004"));
+		Assert.assertEquals("Alex", givenNames.get("MQ10000005"));
+
+		Storage sequentialRam = PluginManager.getStorage("ram");
+		sequentialRam.init("{}");
+		Harvester sequentialHarvester = PluginManager.getHarvester("xml",
+				sequentialRam);
+		sequentialHarvester.init(new File(getClass().getResource(
+				"/parties_sequential.json").toURI()));
+		Assert.assertEquals(idList, sequentialHarvester.getObjectIdList());
+		for (String id : idList) {
+			DigitalObject expected = sequentialRam.getObject(id);
+			DigitalObject object = ram.getObject(id);
+			Assert.assertEquals(expected.getSourceId(), object.getSourceId());
+			Assert.assertEquals(expected.getMetadata(), object.getMetadata());
+			Assert.assertEquals(expected.getPayloadIdList(),
+					object.getPayloadIdList());
+			for (String pid : expected.getPayloadIdList()) {
+				Assert.assertTrue(Arrays.equals(
+						getBytes(expected.getPayload(pid)),
+						getBytes(object.getPayload(pid))));
+			}
+		}
+	}
+
+	/**
+	 * Test a second incremental harvest of the same file skips every record,
+	 * unless the payload is to be stored differently
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testIncremental() throws Exception {
+		RIFCSHarvester rifcsHarvester = getHarvester("/parties_incremental.json");
+		Set<String> idList = rifcsHarvester.getObjectIdList();
+		Assert.assertEquals(5, idList.size());
+		for (String id : idList) {
+			Assert.assertNotNull(ram.getObject(id).getMetadata().getProperty(
+					"rifcs-fingerprint"));
+		}
+
+		rifcsHarvester = getHarvester("/parties_incremental.json");
+		Assert.assertEquals(0, rifcsHarvester.getObjectIdList().size());
+		Assert.assertFalse(rifcsHarvester.hasMoreObjects());
+
+		// the payload is stored differently, so every record is stored again
+		rifcsHarvester = getHarvester("/parties_incremental_gzip.json");
+		Assert.assertEquals(idList, rifcsHarvester.getObjectIdList());
+	}
+
+	/**
+	 * Test records written by the storage writer threads are all stored
+	 * before their identifiers are returned
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testStorageWriterPipeline() throws Exception {
+		RIFCSHarvester rifcsHarvester = getHarvester("/parties_pipeline.json");
+		Set<String> idList = rifcsHarvester.getObjectIdList();
+		Assert.assertEquals(5, idList.size());
+		for (String id : idList) {
+			DigitalObject object = ram.getObject(id);
+			Assert.assertNotNull(object.getPayload(object.getSourceId()));
+			Assert.assertEquals("true", object.getMetadata().getProperty(
+					"render-pending"));
+		}
+	}
+
+	/**
+	 * Test harvesting every file matching a pattern, two files at a time,
+	 * with object IDs derived from each file's own name
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testMultipleFiles() throws Exception {
+		RIFCSHarvester rifcsHarvester = getHarvester("/parties_multi.json");
+		Set<String> idList = rifcsHarvester.getObjectIdList();
+		Assert.assertEquals(5, idList.size());
+		Assert.assertTrue(idList.contains(DigestUtils.md5Hex("parties-a.xml"
+				+ "au.edu.uts/parties/people/" + "MQ10000001")));
+		Assert.assertTrue(idList.contains(DigestUtils.md5Hex("parties-b.xml"
+				+ "au.edu.uts/parties/people/" + "MQ10000005")));
+	}
+
+	/**
+	 * Test only the RIF-CS files of a directory are harvested, not other
+	 * files kept alongside them
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testMultiFileDirectory() throws Exception {
+		RIFCSHarvester rifcsHarvester = getHarvester("/parties_multi_dir.json");
+		Set<String> idList = rifcsHarvester.getObjectIdList();
+		Assert.assertEquals(5, idList.size());
+		Assert.assertEquals(0, rifcsHarvester.getMetrics().getRecordsFailed());
+	}
+
+	/**
+	 * Test gzip files and zip archives are read without unpacking them first
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testCompressedFiles() throws Exception {
+		RIFCSHarvester rifcsHarvester = getHarvester("/parties_gzip.json");
+		Set<String> idList = rifcsHarvester.getObjectIdList();
+		Assert.assertEquals(5, idList.size());
+		// the same IDs as the uncompressed parties.xml
+		Assert.assertTrue(idList.contains(DigestUtils.md5Hex("parties.xml"
+				+ "au.edu.uts/parties/people/" + "MQ10000003")));
+
+		rifcsHarvester = getHarvester("/parties_zip.json");
+		idList = rifcsHarvester.getObjectIdList();
+		Assert.assertEquals(5, idList.size());
+		Assert.assertTrue(idList.contains(DigestUtils.md5Hex("parties-a.xml"
+				+ "au.edu.uts/parties/people/" + "MQ10000001")));
+		Assert.assertTrue(idList.contains(DigestUtils.md5Hex("parties-b.xml"
+				+ "au.edu.uts/parties/people/" + "MQ10000005")));
+	}
+
+	/**
+	 * Test "fileName" is ignored for a zip archive of several files, so their
+	 * records keep object IDs of their own
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testZipIgnoresFileName() throws Exception {
+		RIFCSHarvester rifcsHarvester = getHarvester("/parties_zip_named.json");
+		Set<String> idList = rifcsHarvester.getObjectIdList();
+		Assert.assertEquals(5, idList.size());
+		Assert.assertTrue(idList.contains(DigestUtils.md5Hex("parties-a.xml"
+				+ "au.edu.uts/parties/people/" + "MQ10000001")));
+		Assert.assertTrue(idList.contains(DigestUtils.md5Hex("parties-b.xml"
+				+ "au.edu.uts/parties/people/" + "MQ10000005")));
+		Assert.assertFalse(idList.contains(DigestUtils.md5Hex("parties.xml"
+				+ "au.edu.uts/parties/people/" + "MQ10000001")));
+	}
+
+	/**
+	 * Test the harvest metrics count records by outcome and class, and are
+	 * registered with JMX until the harvester is shut down
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testMetrics() throws Exception {
+		RIFCSHarvester rifcsHarvester = getHarvester("/parties_incremental.json");
+		while (rifcsHarvester.hasMoreObjects()) {
+			rifcsHarvester.getObjectIdList();
+		}
+		HarvestMetrics metrics = rifcsHarvester.getMetrics();
+		Assert.assertEquals(5, metrics.getRecordsParsed());
+		Assert.assertEquals(5, metrics.getParties());
+		Assert.assertEquals(0, metrics.getActivities());
+		Assert.assertEquals(5, metrics.getRecordsStored());
+		Assert.assertEquals(0, metrics.getRecordsSkipped());
+		Assert.assertEquals(0, metrics.getRecordsFailed());
+		Assert.assertEquals(5, metrics.getMapLatency().getCount());
+		Assert.assertEquals(5, metrics.getStoreLatency().getCount());
+		Assert.assertTrue(metrics.getStorageLatency().getCount() >= 5);
+		Assert.assertTrue(metrics.getBytesRead() > 0);
+		Assert.assertTrue(metrics.getPayloadBytesWritten() > 0);
+		// Every record has the same group, originating source and type
+		Assert.assertTrue(metrics.getInternHits() >= 12);
+
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		Set<ObjectName> names = server.queryNames(new ObjectName(
+				"com.googlecode.fascinator.harvester.rifcs:type=HarvestMetrics,*"),
+				null);
+		Assert.assertFalse(names.isEmpty());
+
+		rifcsHarvester.shutdown();
+		Assert.assertEquals(names.size() - 1, server.queryNames(
+				new ObjectName(
+						"com.googlecode.fascinator.harvester.rifcs:type=HarvestMetrics,*"),
+				null).size());
+
+		rifcsHarvester = getHarvester("/parties_incremental.json");
+		rifcsHarvester.getObjectIdList();
+		metrics = rifcsHarvester.getMetrics();
+		Assert.assertEquals(5, metrics.getRecordsSkipped());
+		Assert.assertEquals(0, metrics.getRecordsStored());
+		Assert.assertEquals(0, metrics.getPayloadBytesWritten());
+	}
+
+	/**
+	 * Test no more records than the budget allows are held between reading
+	 * and storage, and every record gives its share back
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testInFlightBudget() throws Exception {
+		RIFCSHarvester rifcsHarvester = getHarvester("/parties_budget.json");
+		Set<String> idList = rifcsHarvester.getObjectIdList();
+		Assert.assertEquals(5, idList.size());
+
+		HarvestMetrics metrics = rifcsHarvester.getMetrics();
+		Assert.assertEquals(5, metrics.getRecordsStored());
+		Assert.assertEquals(0, metrics.getInFlightRecords());
+		Assert.assertEquals(0, metrics.getInFlightBytes());
+		Assert.assertTrue(metrics.getPeakInFlightRecords() >= 1);
+		Assert.assertTrue(metrics.getPeakInFlightRecords() <= 2);
+		Assert.assertTrue(metrics.getPeakInFlightBytes() > 0);
+	}
+
+	/**
+	 * Test records queued by the file reading threads count against the
+	 * budget
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testInFlightBudgetFileThreads() throws Exception {
+		RIFCSHarvester rifcsHarvester = getHarvester("/parties_multi_budget.json");
+		Set<String> idList = rifcsHarvester.getObjectIdList();
+		Assert.assertEquals(5, idList.size());
+
+		HarvestMetrics metrics = rifcsHarvester.getMetrics();
+		Assert.assertEquals(5, metrics.getRecordsStored());
+		Assert.assertEquals(0, metrics.getInFlightRecords());
+		Assert.assertTrue(metrics.getPeakInFlightRecords() <= 2);
+	}
+
+	/**
+	 * Test a harvest which stops part way is resumed after the last record
+	 * stored, and the checkpoint is removed once the harvest completes
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testCheckpoint() throws Exception {
+		File checkpointFile = new File(System.getProperty("test.dir"),
+				"checkpoint/parties.properties");
+		checkpointFile.delete();
+
+		RIFCSHarvester rifcsHarvester = getHarvester("/parties_checkpoint.json");
+		Set<String> firstRun = rifcsHarvester.getObjectIdList();
+		Assert.assertEquals(2, firstRun.size());
+		Assert.assertTrue(checkpointFile.exists());
+		// the first harvester is abandoned here, as if the JVM had died
+
+		rifcsHarvester = getHarvester("/parties_checkpoint.json");
+		Set<String> secondRun = new HashSet<String>();
+		while (rifcsHarvester.hasMoreObjects()) {
+			secondRun.addAll(rifcsHarvester.getObjectIdList());
+		}
+		Assert.assertEquals(3, secondRun.size());
+		for (String id : firstRun) {
+			Assert.assertFalse(secondRun.contains(id));
+		}
+		Assert.assertTrue(secondRun.contains(DigestUtils.md5Hex("parties.xml"
+				+ "au.edu.uts/parties/people/" + "MQ10000005")));
+		Assert.assertFalse(checkpointFile.exists());
+	}
+
+	/**
+	 * Test a checkpoint is not resumed once its source file has changed, in
+	 * the other parse mode, nor when it can not be read
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testCheckpointDiscarded() throws Exception {
+		File checkpointFile = new File(System.getProperty("test.dir"),
+				"checkpoint/parties.properties");
+		checkpointFile.delete();
+		File partiesFile = new File(System.getProperty("test.dir"),
+				"parties.xml");
+		long lastModified = partiesFile.lastModified();
+
+		RIFCSHarvester rifcsHarvester = getHarvester("/parties_checkpoint.json");
+		Assert.assertEquals(2, rifcsHarvester.getObjectIdList().size());
+		Assert.assertTrue(checkpointFile.exists());
+
+		// as if the file had been replaced by a new export
+		Assert.assertTrue(partiesFile.setLastModified(lastModified - 60000));
+		try {
+			rifcsHarvester = getHarvester("/parties_checkpoint.json");
+			Set<String> idList = new HashSet<String>();
+			while (rifcsHarvester.hasMoreObjects()) {
+				idList.addAll(rifcsHarvester.getObjectIdList());
+			}
+			Assert.assertEquals(5, idList.size());
+		} finally {
+			partiesFile.setLastModified(lastModified);
+		}
+
+		// saved while streaming, so not resumed when loading the document
+		rifcsHarvester = getHarvester("/parties_checkpoint.json");
+		Assert.assertEquals(2, rifcsHarvester.getObjectIdList().size());
+		Assert.assertTrue(checkpointFile.exists());
+		rifcsHarvester = getHarvester("/parties_checkpoint_dom.json");
+		Set<String> domIdList = new HashSet<String>();
+		while (rifcsHarvester.hasMoreObjects()) {
+			domIdList.addAll(rifcsHarvester.getObjectIdList());
+		}
+		Assert.assertEquals(5, domIdList.size());
+		Assert.assertFalse(checkpointFile.exists());
+
+		// as if the checkpoint had been torn by a power loss
+		FileUtils.writeStringToFile(checkpointFile, "records=2\nfile.parties",
+				"UTF-8");
+		rifcsHarvester = getHarvester("/parties_checkpoint.json");
+		Set<String> idList = new HashSet<String>();
+		while (rifcsHarvester.hasMoreObjects()) {
+			idList.addAll(rifcsHarvester.getObjectIdList());
+		}
+		Assert.assertEquals(5, idList.size());
+		Assert.assertFalse(checkpointFile.exists());
+	}
+
+	/**
+	 * Test related object keys are resolved to the object IDs they were
+	 * harvested under, including targets harvested after their sources and
+	 * with the index spilled to disk
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testRelationshipIndex() throws Exception {
+		RIFCSHarvester rifcsHarvester = getHarvester("/relations.json");
+		Assert.assertEquals(3, rifcsHarvester.getObjectIdList().size());
+
+		String prefix = "relations.xml" + "au.edu.uts/parties/";
+		String jane = DigestUtils.md5Hex(prefix + "MQ10000001");
+		String john = DigestUtils.md5Hex(prefix + "MQ10000002");
+		String group = DigestUtils.md5Hex(prefix + "4031");
+
+		File indexFile = new File(System.getProperty("test.dir"),
+				"relations/relations.json");
+		Map<String, String> targets = new HashMap<String, String>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(
+				new FileInputStream(indexFile), "UTF-8"));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				JsonSimple edge = new JsonSimple(line);
+				targets.put(edge.getString(null, "source") + " "
+						+ edge.getString(null, "relation") + " "
+						+ edge.getString(null, "key"),
+						edge.getString(null, "target"));
+			}
+		} finally {
+			reader.close();
+		}
+		Assert.assertEquals(4, targets.size());
+		Assert.assertEquals(group, targets.get(jane + " isMemberOf 4031"));
+		Assert.assertEquals(group, targets.get(john + " isMemberOf 4031"));
+		Assert.assertEquals(jane, targets.get(john + " hasAssociationWith 1001"));
+		Assert.assertTrue(targets.containsKey(john + " isMemberOf 9999"));
+		Assert.assertNull(targets.get(john + " isMemberOf 9999"));
+		// the spilled runs are removed
+		Assert.assertEquals(1, indexFile.getParentFile().list().length);
+	}
+
+	/**
+	 * Test a dry run maps every record without storing any, writing them to
+	 * the dry run output instead
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testDryRun() throws Exception {
+		RIFCSHarvester rifcsHarvester = getHarvester("/parties_dryrun.json");
+		Assert.assertTrue(rifcsHarvester.getObjectIdList().isEmpty());
+		Assert.assertFalse(rifcsHarvester.hasMoreObjects());
+
+		HarvestMetrics metrics = rifcsHarvester.getMetrics();
+		Assert.assertEquals(5, metrics.getRecordsParsed());
+		Assert.assertEquals(5, metrics.getParties());
+		Assert.assertEquals(0, metrics.getRecordsStored());
+		Assert.assertEquals(5, metrics.getRecordsDryRun());
+		Assert.assertEquals(0, metrics.getStorageCalls());
+		Assert.assertEquals(0, metrics.getPayloadBytesWritten());
+
+		File output = new File(System.getProperty("test.dir"),
+				"dryrun/parties.json");
+		Set<String> oids = new HashSet<String>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(
+				new FileInputStream(output), "UTF-8"));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				JsonSimple record = new JsonSimple(line);
+				String oid = record.getString(null, "oid");
+				Assert.assertEquals(DigestUtils.md5Hex("parties.xml"
+						+ "au.edu.uts/parties/dryrun/"
+						+ record.getString(null, "data", "ID")), oid);
+				Assert.assertNotNull(record.getString(null, "data",
+						"Family_Name"));
+				oids.add(oid);
+				try {
+					ram.getObject(oid);
+					Assert.fail("Object " + oid + " was stored in a dry run");
+				} catch (StorageException e) {
+					// not stored
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		Assert.assertEquals(5, oids.size());
+	}
+
+	/**
+	 * Test objects whose registry objects have gone from the source file are
+	 * returned for deletion by the next harvest of that file, or kept in the
+	 * manifest until they are deleted
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testDeletedObjects() throws Exception {
+		File manifestDir = new File(System.getProperty("test.dir"), "manifest");
+		File[] manifests = manifestDir.listFiles();
+		if (manifests != null) {
+			for (File manifest : manifests) {
+				manifest.delete();
+			}
+		}
+
+		RIFCSHarvester rifcsHarvester = getHarvester("/parties_manifest.json");
+		while (rifcsHarvester.hasMoreObjects()) {
+			rifcsHarvester.getObjectIdList();
+		}
+		Assert.assertFalse(rifcsHarvester.hasMoreDeletedObjects());
+
+		// the same file name, now holding only the first three people, which
+		// are only reported as vanished
+		rifcsHarvester = getHarvester("/parties_manifest_report.json");
+		while (rifcsHarvester.hasMoreObjects()) {
+			rifcsHarvester.getObjectIdList();
+		}
+		Assert.assertFalse(rifcsHarvester.hasMoreDeletedObjects());
+
+		// still vanished when they are to be deleted
+		rifcsHarvester = getHarvester("/parties_manifest_changed.json");
+		Assert.assertFalse(rifcsHarvester.hasMoreDeletedObjects());
+		Set<String> idList = new HashSet<String>();
+		while (rifcsHarvester.hasMoreObjects()) {
+			idList.addAll(rifcsHarvester.getObjectIdList());
+		}
+		Assert.assertEquals(3, idList.size());
+		Set<String> deleted = new HashSet<String>();
+		while (rifcsHarvester.hasMoreDeletedObjects()) {
+			deleted.addAll(rifcsHarvester.getDeletedObjectIdList());
+		}
+		Assert.assertEquals(2, deleted.size());
+		Assert.assertTrue(deleted.contains(DigestUtils.md5Hex("parties.xml"
+				+ "au.edu.uts/parties/people/" + "MQ10000004")));
+		Assert.assertTrue(deleted.contains(DigestUtils.md5Hex("parties.xml"
+				+ "au.edu.uts/parties/people/" + "MQ10000005")));
+
+		// once deleted they are gone from the manifest
+		rifcsHarvester = getHarvester("/parties_manifest_changed.json");
+		while (rifcsHarvester.hasMoreObjects()) {
+			rifcsHarvester.getObjectIdList();
+		}
+		Assert.assertFalse(rifcsHarvester.hasMoreDeletedObjects());
+	}
+
+	/**
+	 * Test only the mapped sections are read in streaming mode
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testProjection() throws Exception {
+		Set<String> sections = new HashSet<String>();
+		sections.add("identifier");
+		sections.add("name");
+		StreamingRegistryObjectSource source = new StreamingRegistryObjectSource(
+				getClass().getResourceAsStream("/activity.xml"),
+				"activity.xml", 0, sections);
+		HarvestRecord record = source.next();
+		source.close();
+		Element element = record.getRegistryObject().getElement();
+		Assert.assertEquals(1, element.getElementsByTagNameNS("*",
+				"identifier").getLength());
+		Assert.assertEquals(1, element.getElementsByTagNameNS("*", "name")
+				.getLength());
+		Assert.assertEquals(0, element.getElementsByTagNameNS("*",
+				"description").getLength());
+		Assert.assertEquals(0, element.getElementsByTagNameNS("*",
+				"relatedObject").getLength());
+
+		RIFCSHarvester rifcsHarvester = getHarvester("/activity_projection.json");
+		Set<String> idList = rifcsHarvester.getObjectIdList();
+		Assert.assertEquals(1, idList.size());
+
+		String id = idList.toArray(new String[1])[0];
+		DigitalObject object = ram.getObject(id);
+		JsonSimple jsonSimple = getContentInJsonSimple(object.getPayload(object
+				.getSourceId()));
+		Map<String, String> fieldValues = new HashMap<String, String>();
+		fieldValues.put("ID", "http://purl.org/au-research/grants/nhmrc/604008");
+		fieldValues.put("Title", "The Many Rivers Diabetes Prevention Program");
+		assertFields(jsonSimple, fieldValues);
+		Assert.assertNull(jsonSimple.getString(null, "data", "Description"));
+	}
+
+	/**
+	 * Test only the included fields which are not ignored are written, along
+	 * with the ID
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testFieldFilter() throws Exception {
+		RIFCSHarvester rifcsHarvester = getHarvester("/activity_filtered.json");
+		Set<String> idList = rifcsHarvester.getObjectIdList();
+		Assert.assertEquals(1, idList.size());
+
+		String id = idList.toArray(new String[1])[0];
+		Assert.assertEquals(DigestUtils.md5Hex("activity.xml"
+				+ "au.edu.uts/activity/"
+				+ "http://purl.org/au-research/grants/nhmrc/604008"), id);
+		DigitalObject object = ram.getObject(id);
+		JsonSimple jsonSimple = getContentInJsonSimple(object.getPayload(object
+				.getSourceId()));
+		Map<String, String> fieldValues = new HashMap<String, String>();
+		fieldValues.put("ID", "http://purl.org/au-research/grants/nhmrc/604008");
+		fieldValues.put("Title", "The Many Rivers Diabetes Prevention Program");
+		fieldValues.put("Investigators", "MQ12345678");
+		assertFields(jsonSimple, fieldValues);
+		Assert.assertNull(jsonSimple.getString(null, "data", "Discipline"));
+		Assert.assertNull(jsonSimple.getString(null, "data", "Description"));
+	}
+
+	/**
+	 * Test fields mapped by their path from the class element, alongside the
+	 * element identifiers
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testMappingPaths() throws Exception {
+		RIFCSHarvester rifcsHarvester = getHarvester("/activity_paths.json");
+		Set<String> idList = rifcsHarvester.getObjectIdList();
+		Assert.assertEquals(1, idList.size());
+
+		String id = idList.toArray(new String[1])[0];
+		DigitalObject object = ram.getObject(id);
+		JsonSimple jsonSimple = getContentInJsonSimple(object.getPayload(object
+				.getSourceId()));
+		Map<String, String> fieldValues = new HashMap<String, String>();
+		fieldValues.put("ID", "http://purl.org/au-research/grants/nhmrc/604008");
+		fieldValues.put("Title", "The Many Rivers Diabetes Prevention Program");
+		fieldValues.put("Homepage", "http://might.have.one.com/");
+		// The last of several matching elements is written
+		fieldValues.put("Discipline", "050202");
+		fieldValues.put("Date_Format", "W3CDTF");
+		fieldValues.put("Investigator_Relation", "isManagedBy");
+		assertFields(jsonSimple, fieldValues);
+		Assert.assertNull(jsonSimple.getString(null, "data", "Unrelated"));
+	}
+
+	/**
+	 * Test a mapping path which can not be parsed is rejected
+	 *
+	 * @throws Exception
+	 */
+	@Test(expected = HarvesterException.class)
+	public void testInvalidMappingPath() throws Exception {
+		getHarvester("/activity_invalid_path.json");
+	}
+
+	/**
+	 * Test the payload is stored as compact JSON
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testCompactPayload() throws Exception {
+		RIFCSHarvester rifcsHarvester = getHarvester("/activity.json");
+		Set<String> idList = rifcsHarvester.getObjectIdList();
+		Assert.assertEquals(1, idList.size());
+
+		String id = idList.toArray(new String[1])[0];
+		DigitalObject object = ram.getObject(id);
+		Payload payload = object.getPayload(object.getSourceId());
+		InputStream in = payload.open();
+		String json = IOUtils.toString(in, "UTF-8");
+		in.close();
+		Assert.assertEquals(-1, json.indexOf('\n'));
+		Assert.assertTrue(json.startsWith("{"));
+
+		JsonSimple jsonSimple = new JsonSimple(json);
+		Assert.assertEquals("au.edu.uts/activity/",
+				jsonSimple.getString(null, "recordIDPrefix"));
+		Assert.assertEquals("The Many Rivers Diabetes Prevention Program",
+				jsonSimple.getString(null, "data", "Title"));
+		Assert.assertEquals("au.edu.uts/activity/"
+				+ "http://purl.org/au-research/grants/nhmrc/604008",
+				jsonSimple.getString(null, "metadata", "dc.identifier"));
+	}
+
+	/**
+	 * Test payloads are stored gzip compressed, and merged with the
+	 * compressed payload of an earlier harvest
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testGzipPayload() throws Exception {
+		RIFCSHarvester rifcsHarvester = getHarvester("/activity_gzip.json");
+		Set<String> idList = rifcsHarvester.getObjectIdList();
+		Assert.assertEquals(1, idList.size());
+		rifcsHarvester.shutdown();
+
+		rifcsHarvester = getHarvester("/activity_gzip.json");
+		Assert.assertEquals(idList, rifcsHarvester.getObjectIdList());
+
+		String id = idList.toArray(new String[1])[0];
+		DigitalObject object = ram.getObject(id);
+		Payload payload = object.getPayload(object.getSourceId());
+		Assert.assertEquals(PayloadReader.GZIP_CONTENT_TYPE,
+				payload.getContentType());
+		InputStream in = payload.open();
+		Assert.assertEquals(0x1f, in.read());
+		Assert.assertEquals(0x8b, in.read());
+		in.close();
+
+		JsonSimple jsonSimple = PayloadReader.readJson(payload);
+		Map<String, String> fieldValues = new HashMap<String, String>();
+		fieldValues.put("ID", "http://purl.org/au-research/grants/nhmrc/604008");
+		fieldValues.put("Title", "The Many Rivers Diabetes Prevention Program");
+		fieldValues.put("Description", "A type II diabetes and obesity prevention program for Primary school aged rural indigenous children");
+		assertFields(jsonSimple, fieldValues);
+	}
+
+	/**
+	 * Test several feeds run together take turns a batch at a time, storing
+	 * through shared writer threads
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testMultiFeedRunner() throws Exception {
+		MultiFeedHarvestRunner runner = new MultiFeedHarvestRunner(ram, 1, 2,
+				2);
+		runner.addFeed(new File(getClass().getResource("/parties_multi.json")
+				.toURI()));
+		runner.addFeed(new File(getClass().getResource("/activity.json")
+				.toURI()));
+		final List<String> batches = new ArrayList<String>();
+		final Set<String> idList = new HashSet<String>();
+		try {
+			runner.run(new MultiFeedHarvestRunner.FeedListener() {
+				@Override
+				public void harvested(File config, Set<String> objectIdList) {
+					batches.add(config.getName());
+					idList.addAll(objectIdList);
+				}
+
+				@Override
+				public void deleted(File config, Set<String> objectIdList) {
+					Assert.fail("Nothing should be deleted");
+				}
+			});
+		} finally {
+			runner.shutdown();
+		}
+		// 5 parties in batches of 2, while the single activity waits its turn
+		Assert.assertEquals(4, batches.size());
+		Assert.assertEquals("parties_multi.json", batches.get(0));
+		Assert.assertEquals("activity.json", batches.get(1));
+		Assert.assertEquals(6, idList.size());
+		for (String id : idList) {
+			DigitalObject object = ram.getObject(id);
+			Assert.assertNotNull(object.getPayload(object.getSourceId()));
+		}
+		Assert.assertEquals(5, runner.getHarvesters().get(0).getMetrics()
+				.getRecordsStored());
+	}
+
+	/**
+	 * Test a record which can not be mapped is skipped and written to the
+	 * dead letter file, while the records around it are stored
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testSkipFailedRecords() throws Exception {
+		RIFCSHarvester rifcsHarvester = getHarvester("/parties_errors.json");
+		Set<String> idList = rifcsHarvester.getObjectIdList();
+		Assert.assertEquals(2, idList.size());
+		Assert.assertTrue(idList.contains(DigestUtils.md5Hex("parties_errors.xml"
+				+ "au.edu.uts/parties/errors/" + "MQ10000003")));
+
+		HarvestMetrics metrics = rifcsHarvester.getMetrics();
+		Assert.assertEquals(3, metrics.getRecordsParsed());
+		Assert.assertEquals(2, metrics.getRecordsStored());
+		Assert.assertEquals(1, metrics.getRecordsFailed());
+
+		File deadLetters = new File(System.getProperty("test.dir"),
+				"deadletter/parties_errors.json");
+		List<String> lines = FileUtils.readLines(deadLetters, "UTF-8");
+		Assert.assertEquals(1, lines.size());
+		JsonSimple record = new JsonSimple(lines.get(0));
+		Assert.assertEquals("1002", record.getString(null, "key"));
+		Assert.assertEquals(Integer.valueOf(2), record.getInteger(null,
+				"ordinal"));
+		Assert.assertNotNull(record.getString(null, "error"));
+		Assert.assertTrue(record.getString("", "xml").contains("MQ10000002"));
+	}
+
+	/**
+	 * Test a record whose storage fails and is skipped is left out of the
+	 * manifest and the relationship index, like one which can not be mapped
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testSkipFailedStorage() throws Exception {
+		File manifest = new File(System.getProperty("test.dir"),
+				"manifest_failed/relations.xml.oids");
+		manifest.delete();
+		String prefix = "relations.xml" + "au.edu.uts/parties/";
+		final String john = DigestUtils.md5Hex(prefix + "MQ10000002");
+		Storage failing = (Storage) Proxy.newProxyInstance(getClass()
+				.getClassLoader(), new Class<?>[] { Storage.class },
+				new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method,
+							Object[] args) throws Throwable {
+						if ("createObject".equals(method.getName())
+								&& john.equals(args[0])) {
+							throw new StorageException("Storage is full");
+						}
+						try {
+							return method.invoke(ram, args);
+						} catch (InvocationTargetException e) {
+							throw e.getCause();
+						}
+					}
+				});
+		Harvester rifcsHarvester = PluginManager.getHarvester("xml", failing);
+		rifcsHarvester.init(new File(getClass().getResource(
+				"/relations_failed.json").toURI()));
+		Set<String> idList = new HashSet<String>();
+		while (rifcsHarvester.hasMoreObjects()) {
+			idList.addAll(rifcsHarvester.getObjectIdList());
+		}
+		Assert.assertEquals(2, idList.size());
+		Assert.assertFalse(idList.contains(john));
+		Assert.assertEquals(1, ((RIFCSHarvester) rifcsHarvester).getMetrics()
+				.getRecordsFailed());
+
+		// only the two objects stored are in the manifest
+		Assert.assertEquals(2 * OidManifest.RECORD_SIZE, manifest.length());
+
+		File indexFile = new File(System.getProperty("test.dir"),
+				"relations/relations_failed.json");
+		for (String line : FileUtils.readLines(indexFile, "UTF-8")) {
+			JsonSimple edge = new JsonSimple(line);
+			Assert.assertFalse(john.equals(edge.getString(null, "source")));
+			Assert.assertFalse(john.equals(edge.getString(null, "target")));
+		}
+	}
+
+	/**
+	 * Test the harvest stops once more records have failed than the error
+	 * rate allows
+	 *
+	 * @throws Exception
+	 */
+	@Test(expected = HarvesterException.class)
+	public void testMaxErrorRate() throws Exception {
+		RIFCSHarvester rifcsHarvester = getHarvester("/parties_errors_abort.json");
+		rifcsHarvester.getObjectIdList();
+	}
+
+	/**
+	 * Test a registry object the RIF-CS object model rejects is returned as a
+	 * record holding the error, and the records after it are still read
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testRejectedRecord() throws Exception {
+		InputStream in = getClass().getResourceAsStream("/parties_errors.xml");
+		RegistryObjectSource source = new StreamingRegistryObjectSource(in,
+				"parties_errors.xml") {
+			@Override
+			protected RegistryObject wrap(Document document)
+					throws HarvesterException {
+				if ("1002".equals(document.getElementsByTagNameNS(RIFCS_NS,
+						"key").item(0).getTextContent())) {
+					throw new HarvesterException("Rejected by the object model");
+				}
+				return super.wrap(document);
+			}
+		};
+		try {
+			Assert.assertNull(source.next().getError());
+			HarvestRecord rejected = source.next();
+			Assert.assertEquals(2, rejected.getOrdinal());
+			Assert.assertNotNull(rejected.getError());
+			Assert.assertNull(rejected.getRegistryObject());
+			Assert.assertEquals("1002", rejected.getKey());
+			Assert.assertNotNull(rejected.getElement());
+			HarvestRecord last = source.next();
+			Assert.assertEquals(3, last.getOrdinal());
+			Assert.assertNull(last.getError());
+			Assert.assertNull(source.next());
+		} finally {
+			source.close();
+		}
+	}
+
+	/**
+	 * Test a registry object rejected by the object model in DOM mode leaves
+	 * the others numbered by their position in the document, as when none is
+	 * rejected
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testRejectedRecordDocument() throws Exception {
+		InputStream in = getClass().getResourceAsStream("/parties_errors.xml");
+		RegistryObjectSource source = new DocumentRegistryObjectSource(in,
+				"parties_errors.xml") {
+			@Override
+			protected Collection<RegistryObject> wrap(Document document)
+					throws HarvesterException {
+				NodeList keys = document.getElementsByTagNameNS(
+						StreamingRegistryObjectSource.RIFCS_NS, "key");
+				for (int i = 0; i < keys.getLength(); i++) {
+					if ("1002".equals(keys.item(i).getTextContent())) {
+						throw new HarvesterException(
+								"Rejected by the object model");
+					}
+				}
+				return super.wrap(document);
+			}
+		};
+		try {
+			HarvestRecord first = source.next();
+			Assert.assertEquals(1, first.getOrdinal());
+			Assert.assertNull(first.getError());
+			HarvestRecord rejected = source.next();
+			Assert.assertEquals(2, rejected.getOrdinal());
+			Assert.assertNotNull(rejected.getError());
+			Assert.assertEquals("1002", rejected.getKey());
+			HarvestRecord last = source.next();
+			Assert.assertEquals(3, last.getOrdinal());
+			Assert.assertNull(last.getError());
+			Assert.assertNull(source.next());
+		} finally {
+			source.close();
+		}
+	}
+
 	private void assertFields(JsonSimple jsonSimple, Map<String, String> fieldValues) {
 		for(String key : fieldValues.keySet()) {
 		    if (!fieldValues.get(key).equals(jsonSimple.getString("","data",key))) {
@@ -209,6 +1203,15 @@ public class RIFCSHarvesterTest {
 		return (RIFCSHarvester) rifcsHarvester;
 	}
 
+	private byte[] getBytes(Payload payload) throws Exception {
+		InputStream in = payload.open();
+		try {
+			return IOUtils.toByteArray(in);
+		} finally {
+			in.close();
+		}
+	}
+
 	private JsonSimple getContentInJsonSimple(Payload payload) {
 		JsonSimple jsonSimple = null;
 		try {
@@ -0,0 +1,70 @@
+package com.googlecode.fascinator.harvester.rifcs;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import com.googlecode.fascinator.harvester.rifcs.W3CDate.Precision;
+
+/**
+ * Test cases for {@link W3CDate}
+ */
+public class W3CDateTest {
+
+	/**
+	 * Each of the six W3C formats is recognised, keeping the fields as written
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testFormats() throws Exception {
+		String[] dates = { "1997", "1997-07", "1997-07-16",
+				"1997-07-16T19:20+01:00", "1997-07-16T19:20:30+01:00",
+				"1997-07-16T19:20:30.450+01:00" };
+		Precision[] precisions = Precision.values();
+		W3CDateFormat format = new W3CDateFormat();
+		for (int i = 0; i < dates.length; i++) {
+			W3CDate date = W3CDate.parse(dates[i]);
+			Assert.assertNotNull(dates[i], date);
+			Assert.assertEquals(precisions[i], date.getPrecision());
+			Assert.assertEquals(1997, date.getYear());
+			Assert.assertEquals(dates[i], date.toString());
+			if (i >= 3) {
+				Assert.assertEquals(format.parse(dates[i]).getTime(),
+						date.getTime());
+			}
+		}
+
+		W3CDate date = W3CDate.parse(" 2009-12-31T23:59:59.5Z\n");
+		Assert.assertEquals(Precision.MILLISECOND, date.getPrecision());
+		Assert.assertEquals(12, date.getMonth());
+		Assert.assertEquals(31, date.getDay());
+		Assert.assertEquals(23, date.getHour());
+		Assert.assertEquals(59, date.getMinute());
+		Assert.assertEquals(59, date.getSecond());
+		Assert.assertEquals(500, date.getMillisecond());
+		Assert.assertEquals(0, date.getTimeZoneOffset());
+		Assert.assertEquals(1262303999500L, date.getTime());
+
+		Assert.assertEquals(-480, W3CDate.parse("2009-12-31T16:00-08:00")
+				.getTimeZoneOffset());
+		Assert.assertEquals(951782400000L, W3CDate.parse("2000-02-29")
+				.getTime());
+	}
+
+	/**
+	 * Anything else is rejected without an exception
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testInvalid() throws Exception {
+		String[] dates = { null, "", "97", "1997-7", "1997-13", "1997-02-29",
+				"1997-07-16T19:20", "1997-07-16T24:00Z", "1997-07-16T19:20:30.Z",
+				"1997-07-16T19:20+0100", "1997-07-16 19:20Z", "1997-07-16x",
+				"1997-07-16T19:20Zulu", "July 1997" };
+		for (String date : dates) {
+			Assert.assertNull(date, W3CDate.parse(date));
+		}
+	}
+}